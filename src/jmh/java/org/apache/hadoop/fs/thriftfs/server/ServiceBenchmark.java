@@ -0,0 +1,133 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.thriftfs.server.HdfsService.HdfsConfig;
+import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark of the service's calls on the local file system
+ * (<code>file:///</code>), invoked in process: it measures the service
+ * itself - handle table, buffers, caches, hadoop streams - without the
+ * thrift stack, which {@link RunBenchmark} includes. Every thread works on
+ * its own handles; run with <code>-t</code> for concurrency, e.g.
+ * <code>gradle jmh -PjmhArgs='ServiceBenchmark -t 4 -p size=65536'</code>.
+ *
+ * @author Axel Mannhardt
+ */
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 2 )
+public class ServiceBenchmark {
+
+    /** The file read has this many payloads of the benchmarked size. */
+    private static final int FILE_CHUNKS = 16;
+
+    @State( Scope.Benchmark )
+    public static class Service {
+        @Param( { "4096", "65536", "1048576" } )
+        public int size;
+
+        HdfsService _service;
+        File _dir;
+        Pathname _file;
+        Pathname _listed;
+
+        @Setup( Level.Trial )
+        public void setUp() throws IOException, TException {
+            _service = new HdfsService( HdfsConfig.forUri( "file:///" ) );
+            _dir = Files.createTempDirectory( "service-benchmark" ).toFile();
+            _file = new Pathname( new File( _dir, "read.bin" ).getPath() );
+            final byte[] data = new byte[size];
+            new Random( 1 ).nextBytes( data );
+            final ThriftHandle handle = _service.create( _file );
+            for ( int i = 0; i < FILE_CHUNKS; i++ ) {
+                _service.writeBytes( handle, ByteBuffer.wrap( data ) );
+            }
+            _service.closeWriteHandle( handle );
+            final File listed = new File( _dir, "listed" );
+            listed.mkdirs();
+            for ( int i = 0; i < 100; i++ ) {
+                new File( listed, "entry-" + i ).createNewFile();
+            }
+            _listed = new Pathname( listed.getPath() );
+        }
+
+        @TearDown( Level.Trial )
+        public void tearDown() throws IOException {
+            FileUtils.deleteDirectory( _dir );
+        }
+    }
+
+    @State( Scope.Thread )
+    public static class Handles {
+        ThriftHandle _read;
+        ThriftHandle _write;
+        ByteBuffer _data;
+        long _offset;
+
+        @Setup( Level.Iteration )
+        public void setUp( final Service service ) throws TException {
+            _read = service._service.open( service._file );
+            _write = service._service.create( new Pathname( new File( service._dir, "write-" + Thread.currentThread().getId() ).getPath() ) );
+            final byte[] data = new byte[service.size];
+            new Random( 2 ).nextBytes( data );
+            _data = ByteBuffer.wrap( data );
+        }
+
+        @TearDown( Level.Iteration )
+        public void tearDown( final Service service ) throws TException {
+            service._service.closeReadHandle( _read );
+            service._service.closeWriteHandle( _write );
+        }
+    }
+
+    @Benchmark
+    public void open( final Service service, final Blackhole blackhole ) throws TException {
+        final ThriftHandle handle = service._service.open( service._file );
+        blackhole.consume( handle );
+        service._service.closeReadHandle( handle );
+    }
+
+    @Benchmark
+    public ByteBuffer pread( final Service service, final Handles handles ) throws TException {
+        final long offset = handles._offset;
+        handles._offset = ( offset + service.size ) % ( (long) FILE_CHUNKS * service.size );
+        return service._service.pread( handles._read, offset, service.size );
+    }
+
+    @Benchmark
+    public boolean writeBytes( final Service service, final Handles handles ) throws TException {
+        return service._service.writeBytes( handles._write, handles._data.duplicate() );
+    }
+
+    @Benchmark
+    public Object listStatus( final Service service ) throws TException {
+        return service._service.listStatus( service._listed );
+    }
+
+}
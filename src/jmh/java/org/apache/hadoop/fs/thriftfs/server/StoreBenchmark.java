@@ -0,0 +1,191 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of {@link ResourceByIdStore} against the store it replaced,
+ * a synchronized <code>HashMap</code> with boxed ids and a linear probe for
+ * free ids (reconstructed below without its console output per call, which
+ * would dominate). <code>get</code> looks up ids of <code>handles</code>
+ * stored resources, as reads and writes do; <code>churn</code> stores, looks
+ * up and releases a resource, as open, read and close do. Run with
+ * <code>-t</code> for concurrency and <code>-prof gc</code> for the
+ * allocations, e.g. <code>gradle jmh -PjmhArgs='StoreBenchmark -t 16'</code>.
+ *
+ * @author Axel Mannhardt
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 2 )
+public class StoreBenchmark {
+
+    @State( Scope.Benchmark )
+    public static class Stores {
+        @Param( { "current", "previous" } )
+        public String store;
+
+        @Param( { "1000" } )
+        public int handles;
+
+        Store _store;
+        long[] _ids;
+
+        @Setup( Level.Trial )
+        public void setUp() {
+            _store = store.equals( "current" ) ? new CurrentStore() : new PreviousStore();
+            _ids = new long[handles];
+            for ( int i = 0; i < handles; i++ ) {
+                _ids[i] = _store.storeNew( new Resource() );
+            }
+        }
+
+        @TearDown( Level.Trial )
+        public void tearDown() {
+            for ( final long id : _ids ) {
+                _store.release( id );
+            }
+        }
+    }
+
+    @State( Scope.Thread )
+    public static class Lookups {
+        final Resource _resource = new Resource();
+        int _next = System.identityHashCode( this ) | 1;
+
+        /** xorshift, a Random would add more than a lookup costs */
+        int next() {
+            _next ^= _next << 13;
+            _next ^= _next >>> 17;
+            _next ^= _next << 5;
+            return _next & Integer.MAX_VALUE;
+        }
+    }
+
+    @Benchmark
+    public Resource get( final Stores stores, final Lookups lookups ) {
+        final Resource resource = stores._store.getResource( stores._ids[lookups.next() % stores._ids.length] );
+        if ( resource == null ) {
+            throw new IllegalStateException( "lost a resource" );
+        }
+        return resource;
+    }
+
+    @Benchmark
+    public Resource churn( final Stores stores, final Lookups lookups ) {
+        final long id = stores._store.storeNew( lookups._resource );
+        final Resource resource = stores._store.getResource( id );
+        stores._store.remove( id );
+        return resource;
+    }
+
+    static final class Resource implements Closeable {
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+
+    private interface Store {
+        long storeNew( Resource resource );
+
+        Resource getResource( long id );
+
+        /** Removes without closing, as the benchmarked resources need not be closed. */
+        void remove( long id );
+
+        void release( long id );
+    }
+
+    private static final class CurrentStore implements Store {
+        private final ResourceByIdStore<Resource> _store = new ResourceByIdStore<Resource>();
+
+        @Override
+        public long storeNew( final Resource resource ) {
+            return _store.storeNew( resource );
+        }
+
+        @Override
+        public Resource getResource( final long id ) {
+            return _store.getResource( id );
+        }
+
+        @Override
+        public void remove( final long id ) {
+            _store.remove( id );
+        }
+
+        @Override
+        public void release( final long id ) {
+            _store.release( id );
+        }
+    }
+
+    /**
+     * The store before the handle table, as it was nested in HdfsService.
+     */
+    private static final class PreviousStore implements Store {
+        private static final long FIRST_ID = 1;
+
+        private final Map<Long, Resource> _store = new HashMap<Long, Resource>();
+        private long _lastAssignedId = FIRST_ID - 1;
+
+        @Override
+        public synchronized long storeNew( final Resource resource ) {
+            final long nextId = nextId();
+            _store.put( Long.valueOf( nextId ), resource );
+            return nextId;
+        }
+
+        @Override
+        public synchronized Resource getResource( final long id ) {
+            return _store.get( Long.valueOf( id ) );
+        }
+
+        @Override
+        public synchronized void remove( final long id ) {
+            _store.remove( Long.valueOf( id ) );
+        }
+
+        @Override
+        public void release( final long id ) {
+            final Resource resource;
+            synchronized ( this ) {
+                resource = _store.remove( Long.valueOf( id ) );
+            }
+            if ( resource != null ) {
+                synchronized ( resource ) {
+                    resource.close();
+                }
+            }
+        }
+
+        private long nextId() {
+            long nextId = _lastAssignedId + 1;
+            while ( _store.containsKey( Long.valueOf( nextId ) ) ) {
+                nextId = nextId < Long.MAX_VALUE ? nextId + 1 : FIRST_ID;
+            }
+            _lastAssignedId = nextId;
+            return nextId;
+        }
+    }
+
+}
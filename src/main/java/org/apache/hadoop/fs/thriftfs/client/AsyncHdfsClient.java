@@ -0,0 +1,521 @@
+package org.apache.hadoop.fs.thriftfs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.thriftfs.api.FileStatus;
+import org.apache.hadoop.thriftfs.api.PathResult;
+import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.StatResult;
+import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem.AsyncClient;
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+import org.apache.hadoop.thriftfs.api.ThriftIOException;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingSocket;
+
+/**
+ * Non blocking client: every call returns a {@link CompletableFuture} right
+ * away. The calls are multiplexed by one selector thread over up to
+ * {@link ClientOptions#maxConnections()} connections, each of which carries
+ * one call at a time; calls beyond wait in a queue, not in a thread. The
+ * server has to use framed transport.
+ *
+ * The futures are completed on the selector thread, so dependent actions must
+ * not block (use the <code>...Async</code> variants of
+ * {@link CompletableFuture} for anything slow). A service error completes the
+ * future with the {@link ThriftIOException}, any other failure closes the
+ * connection it occurred on.
+ *
+ * {@link #openInputStream} and {@link #createOutputStream} expose remote files
+ * as streams which keep calls in flight while the caller is busy with data.
+ *
+ * @author Axel Mannhardt
+ */
+public final class AsyncHdfsClient implements Closeable {
+
+    private final ClientOptions _options;
+    private final TAsyncClientManager _manager;
+    private final TProtocolFactory _protocolFactory = new TBinaryProtocol.Factory();
+    /** Guards the connection bookkeeping. */
+    private final Object _lock = new Object();
+    private final Deque<Connection> _idle = new ArrayDeque<Connection>();
+    private final Deque<Call<?, ?>> _waiting = new ArrayDeque<Call<?, ?>>();
+    /** Calls started on a connection, failed by {@link #close()}. */
+    private final Set<Call<?, ?>> _inFlight = new HashSet<Call<?, ?>>();
+    private int _open;
+    private boolean _closed;
+
+    public AsyncHdfsClient( final ClientOptions options ) throws IOException {
+        _options = options;
+        _manager = new TAsyncClientManager();
+    }
+
+    public CompletableFuture<ThriftHandle> open( final Pathname path ) {
+        return submit( new Call<ThriftHandle, AsyncClient.open_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.open( path, this );
+            }
+
+            @Override
+            ThriftHandle result( final AsyncClient.open_call call ) throws TException {
+                return call.getResult();
+            }
+        } );
+    }
+
+    public CompletableFuture<ThriftHandle> create( final Pathname path ) {
+        return submit( new Call<ThriftHandle, AsyncClient.create_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.create( path, this );
+            }
+
+            @Override
+            ThriftHandle result( final AsyncClient.create_call call ) throws TException {
+                return call.getResult();
+            }
+        } );
+    }
+
+    public CompletableFuture<ByteBuffer> pread( final ThriftHandle handle, final long offset, final int size ) {
+        return submit( new Call<ByteBuffer, AsyncClient.pread_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.pread( handle, offset, size, this );
+            }
+
+            @Override
+            ByteBuffer result( final AsyncClient.pread_call call ) throws TException {
+                return call.getResult();
+            }
+        } );
+    }
+
+    /**
+     * The data must not be modified until the future is completed.
+     */
+    public CompletableFuture<Boolean> writeBytes( final ThriftHandle handle, final ByteBuffer data ) {
+        return submit( new Call<Boolean, AsyncClient.writeBytes_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.writeBytes( handle, data, this );
+            }
+
+            @Override
+            Boolean result( final AsyncClient.writeBytes_call call ) throws TException {
+                return Boolean.valueOf( call.getResult() );
+            }
+        } );
+    }
+
+    public CompletableFuture<Boolean> closeReadHandle( final ThriftHandle handle ) {
+        return submit( new Call<Boolean, AsyncClient.closeReadHandle_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.closeReadHandle( handle, this );
+            }
+
+            @Override
+            Boolean result( final AsyncClient.closeReadHandle_call call ) throws TException {
+                return Boolean.valueOf( call.getResult() );
+            }
+        } );
+    }
+
+    public CompletableFuture<Boolean> closeWriteHandle( final ThriftHandle handle ) {
+        return submit( new Call<Boolean, AsyncClient.closeWriteHandle_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.closeWriteHandle( handle, this );
+            }
+
+            @Override
+            Boolean result( final AsyncClient.closeWriteHandle_call call ) throws TException {
+                return Boolean.valueOf( call.getResult() );
+            }
+        } );
+    }
+
+    public CompletableFuture<FileStatus> stat( final Pathname path ) {
+        return submit( new Call<FileStatus, AsyncClient.stat_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.stat( path, this );
+            }
+
+            @Override
+            FileStatus result( final AsyncClient.stat_call call ) throws TException {
+                return call.getResult();
+            }
+        } );
+    }
+
+    public CompletableFuture<Boolean> exists( final Pathname path ) {
+        return submit( new Call<Boolean, AsyncClient.exists_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.exists( path, this );
+            }
+
+            @Override
+            Boolean result( final AsyncClient.exists_call call ) throws TException {
+                return Boolean.valueOf( call.getResult() );
+            }
+        } );
+    }
+
+    public CompletableFuture<List<FileStatus>> listStatus( final Pathname path ) {
+        return submit( new Call<List<FileStatus>, AsyncClient.listStatus_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.listStatus( path, this );
+            }
+
+            @Override
+            List<FileStatus> result( final AsyncClient.listStatus_call call ) throws TException {
+                return call.getResult();
+            }
+        } );
+    }
+
+    public CompletableFuture<Boolean> mkdirs( final Pathname path ) {
+        return submit( new Call<Boolean, AsyncClient.mkdirs_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.mkdirs( path, this );
+            }
+
+            @Override
+            Boolean result( final AsyncClient.mkdirs_call call ) throws TException {
+                return Boolean.valueOf( call.getResult() );
+            }
+        } );
+    }
+
+    public CompletableFuture<Boolean> rm( final Pathname path, final boolean recursive ) {
+        return submit( new Call<Boolean, AsyncClient.rm_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.rm( path, recursive, this );
+            }
+
+            @Override
+            Boolean result( final AsyncClient.rm_call call ) throws TException {
+                return Boolean.valueOf( call.getResult() );
+            }
+        } );
+    }
+
+    public CompletableFuture<Boolean> rename( final Pathname path, final Pathname dest ) {
+        return submit( new Call<Boolean, AsyncClient.rename_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.rename( path, dest, this );
+            }
+
+            @Override
+            Boolean result( final AsyncClient.rename_call call ) throws TException {
+                return Boolean.valueOf( call.getResult() );
+            }
+        } );
+    }
+
+    public CompletableFuture<List<StatResult>> statBatch( final List<Pathname> paths ) {
+        return submit( new Call<List<StatResult>, AsyncClient.statBatch_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.statBatch( paths, this );
+            }
+
+            @Override
+            List<StatResult> result( final AsyncClient.statBatch_call call ) throws TException {
+                return call.getResult();
+            }
+        } );
+    }
+
+    public CompletableFuture<List<PathResult>> existsBatch( final List<Pathname> paths ) {
+        return submit( new Call<List<PathResult>, AsyncClient.existsBatch_call>() {
+            @Override
+            void start( final AsyncClient client ) throws TException {
+                client.existsBatch( paths, this );
+            }
+
+            @Override
+            List<PathResult> result( final AsyncClient.existsBatch_call call ) throws TException {
+                return call.getResult();
+            }
+        } );
+    }
+
+    /**
+     * Opens a remote file for reading as a stream, which reads
+     * <code>chunkSize</code> bytes per call and keeps
+     * <code>prefetchChunks</code> further chunks in flight (1 is double
+     * buffering, more help on high latency links).
+     */
+    public RemoteInputStream openInputStream( final Pathname path, final int chunkSize, final int prefetchChunks )
+        throws IOException {
+        return new RemoteInputStream( this, await( open( path ) ), chunkSize, prefetchChunks );
+    }
+
+    /**
+     * Creates a remote file as a stream, which sends <code>chunkSize</code>
+     * bytes per call while the caller fills the next chunk.
+     */
+    public RemoteOutputStream createOutputStream( final Pathname path, final int chunkSize ) throws IOException {
+        return new RemoteOutputStream( this, await( create( path ) ), chunkSize );
+    }
+
+    /**
+     * Waits for a future, rethrowing its failure as an IOException. A call
+     * times out on its connection; as a backstop, waiting gives up after
+     * twice the timeout.
+     */
+    <T> T await( final CompletableFuture<T> future ) throws IOException {
+        try {
+            if ( _options.timeoutMillis() == 0 ) {
+                return future.get();
+            }
+            return future.get( 2L * _options.timeoutMillis(), TimeUnit.MILLISECONDS );
+        } catch ( final TimeoutException e ) {
+            throw new SocketTimeoutException( "no reply from " + _options + " within " + 2L * _options.timeoutMillis() + " ms" );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while waiting for the server" );
+        } catch ( final ExecutionException e ) {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof ThriftIOException ) {
+                throw new IOException( ( (ThriftIOException) cause ).getMessage(), cause );
+            }
+            throw new IOException( "call failed: " + cause, cause );
+        }
+    }
+
+    /**
+     * Fails the waiting calls and the calls in flight and closes the
+     * connections. The selector thread is stopped first: it does not fail the
+     * calls of the connections it leaves behind.
+     */
+    @Override
+    public void close() {
+        _manager.stop();
+        final Deque<Call<?, ?>> failed;
+        synchronized ( _lock ) {
+            _closed = true;
+            failed = new ArrayDeque<Call<?, ?>>( _waiting );
+            _waiting.clear();
+            for ( final Connection connection : _idle ) {
+                connection._socket.close();
+            }
+            _open -= _idle.size();
+            _idle.clear();
+            for ( final Call<?, ?> call : _inFlight ) {
+                call._connection._socket.close();
+                failed.add( call );
+            }
+            _open -= _inFlight.size();
+            _inFlight.clear();
+        }
+        for ( final Call<?, ?> call : failed ) {
+            call._future.completeExceptionally( new IOException( "client closed" ) );
+        }
+    }
+
+    private <R> CompletableFuture<R> submit( final Call<R, ?> call ) {
+        final Connection connection;
+        synchronized ( _lock ) {
+            if ( _closed ) {
+                call._future.completeExceptionally( new IOException( "client closed" ) );
+                return call._future;
+            }
+            connection = _idle.pollFirst();
+            if ( connection == null ) {
+                if ( _open >= _options.maxConnections() ) {
+                    _waiting.addLast( call );
+                    return call._future;
+                }
+                _open++;
+            }
+        }
+        if ( connection == null ) {
+            connectAndStart( call );
+        } else {
+            start( connection, call );
+        }
+        return call._future;
+    }
+
+    /**
+     * Opens a connection (its slot is taken already) for the call. If that
+     * fails, the slot goes to the next waiting call.
+     */
+    private void connectAndStart( final Call<?, ?> first ) {
+        Call<?, ?> call = first;
+        while ( call != null ) {
+            final Connection connection;
+            try {
+                connection = connect();
+            } catch ( final IOException e ) {
+                call._future.completeExceptionally( e );
+                synchronized ( _lock ) {
+                    call = _waiting.pollFirst();
+                    if ( call == null ) {
+                        _open--;
+                    }
+                }
+                continue;
+            }
+            start( connection, call );
+            return;
+        }
+    }
+
+    private Connection connect() throws IOException {
+        final TNonblockingSocket socket = new TNonblockingSocket( _options.host(), _options.port(), _options.timeoutMillis() );
+        final AsyncClient client = new AsyncClient( _protocolFactory, _manager, socket );
+        client.setTimeout( _options.timeoutMillis() );
+        return new Connection( socket, client );
+    }
+
+    private void start( final Connection connection, final Call<?, ?> call ) {
+        call._connection = connection;
+        synchronized ( _lock ) {
+            if ( _closed ) {
+                _open--;
+                connection._socket.close();
+                call._future.completeExceptionally( new IOException( "client closed" ) );
+                return;
+            }
+            _inFlight.add( call );
+        }
+        try {
+            call.start( connection._client );
+        } catch ( TException | RuntimeException e ) {
+            if ( finished( call ) ) {
+                call._future.completeExceptionally( e );
+                discard( connection );
+            }
+        }
+    }
+
+    /**
+     * Hands a connection to the next waiting call or keeps it idle.
+     */
+    private void release( final Connection connection ) {
+        final Call<?, ?> next;
+        synchronized ( _lock ) {
+            if ( _closed ) {
+                _open--;
+                connection._socket.close();
+                return;
+            }
+            next = _waiting.pollFirst();
+            if ( next == null ) {
+                _idle.addFirst( connection );
+                return;
+            }
+        }
+        start( connection, next );
+    }
+
+    /**
+     * Closes a failed connection, the next waiting call gets a new one.
+     */
+    private void discard( final Connection connection ) {
+        connection._socket.close();
+        final Call<?, ?> next;
+        synchronized ( _lock ) {
+            next = _closed ? null : _waiting.pollFirst();
+            if ( next == null ) {
+                _open--;
+            }
+        }
+        if ( next != null ) {
+            connectAndStart( next );
+        }
+    }
+
+    /**
+     * Ends the call's flight, false if {@link #close()} failed it already
+     * (and took its connection).
+     */
+    private boolean finished( final Call<?, ?> call ) {
+        synchronized ( _lock ) {
+            return _inFlight.remove( call );
+        }
+    }
+
+    private static final class Connection {
+        private final TNonblockingSocket _socket;
+        private final AsyncClient _client;
+
+        Connection( final TNonblockingSocket socket, final AsyncClient client ) {
+            _socket = socket;
+            _client = client;
+        }
+    }
+
+    /**
+     * One call: starts the generated async method and extracts its result.
+     */
+    private abstract class Call<R, C> implements AsyncMethodCallback<C> {
+        final CompletableFuture<R> _future = new CompletableFuture<R>();
+        Connection _connection;
+
+        abstract void start( AsyncClient client ) throws TException;
+
+        abstract R result( C call ) throws TException;
+
+        @Override
+        public void onComplete( final C call ) {
+            if ( !finished( this ) ) {
+                return;
+            }
+            // the response is read completely, so the connection can be reused
+            R result = null;
+            TException failure = null;
+            try {
+                result = result( call );
+            } catch ( final TException e ) {
+                failure = e;
+            }
+            release( _connection );
+            if ( failure == null ) {
+                _future.complete( result );
+            } else {
+                _future.completeExceptionally( failure );
+            }
+        }
+
+        @Override
+        public void onError( final Exception e ) {
+            if ( !finished( this ) ) {
+                return;
+            }
+            discard( _connection );
+            _future.completeExceptionally( e );
+        }
+    }
+
+}
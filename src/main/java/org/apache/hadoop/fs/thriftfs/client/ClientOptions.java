@@ -0,0 +1,78 @@
+package org.apache.hadoop.fs.thriftfs.client;
+
+/**
+ * Where and how the clients of this package connect to a server.
+ *
+ * @author Axel Mannhardt
+ */
+public final class ClientOptions {
+
+    private final String _host;
+    private final int _port;
+    private boolean _framed = true;
+    private int _maxConnections = 8;
+    private int _timeoutMillis = 60000;
+
+    public ClientOptions( final String host, final int port ) {
+        _host = host;
+        _port = port;
+    }
+
+    public String host() {
+        return _host;
+    }
+
+    public int port() {
+        return _port;
+    }
+
+    /**
+     * Whether the blocking connections of a {@link ConnectionPool} use framed
+     * transport (the default), which has to match the server. The
+     * {@link AsyncHdfsClient} always uses framed transport.
+     */
+    public boolean framed() {
+        return _framed;
+    }
+
+    public ClientOptions framed( final boolean framed ) {
+        _framed = framed;
+        return this;
+    }
+
+    /**
+     * Connections open at a time, calls beyond wait for a free connection.
+     */
+    public int maxConnections() {
+        return _maxConnections;
+    }
+
+    public ClientOptions maxConnections( final int connections ) {
+        if ( connections <= 0 ) {
+            throw new IllegalArgumentException( "max connections must be positive, was: " + connections );
+        }
+        _maxConnections = connections;
+        return this;
+    }
+
+    /**
+     * Connect and call timeout, 0 waits forever.
+     */
+    public int timeoutMillis() {
+        return _timeoutMillis;
+    }
+
+    public ClientOptions timeoutMillis( final int millis ) {
+        if ( millis < 0 ) {
+            throw new IllegalArgumentException( "timeout must not be negative, was: " + millis );
+        }
+        _timeoutMillis = millis;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return _host + ":" + _port;
+    }
+
+}
@@ -0,0 +1,140 @@
+package org.apache.hadoop.fs.thriftfs.client;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem;
+import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem.Client;
+import org.apache.hadoop.thriftfs.api.ThriftIOException;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * Thread safe pool of blocking connections: a call borrows a connection (the
+ * most recently used idle one, or a new one while fewer than
+ * {@link ClientOptions#maxConnections()} are open, else it waits), and
+ * returns it afterwards. A connection whose call failed with anything but a
+ * {@link ThriftIOException} from the service may be out of sync with the
+ * server and is closed instead.
+ *
+ * <pre>
+ * final List&lt;FileStatus&gt; entries = pool.execute( new ConnectionPool.Call&lt;List&lt;FileStatus&gt;&gt;() {
+ *     public List&lt;FileStatus&gt; call( final Client client ) throws TException {
+ *         return client.listStatus( new Pathname( &quot;/&quot; ) );
+ *     }
+ * } );
+ * </pre>
+ *
+ * @author Axel Mannhardt
+ */
+public final class ConnectionPool implements Closeable {
+
+    /**
+     * Calls on a borrowed client.
+     */
+    public interface Call<T> {
+        T call( Client client ) throws TException;
+    }
+
+    private final ClientOptions _options;
+    private final Semaphore _permits;
+    private final ConcurrentLinkedDeque<Connection> _idle = new ConcurrentLinkedDeque<Connection>();
+    private volatile boolean _closed;
+
+    public ConnectionPool( final ClientOptions options ) {
+        _options = options;
+        _permits = new Semaphore( options.maxConnections(), true );
+    }
+
+    public <T> T execute( final Call<T> call ) throws TException {
+        final Connection connection = borrow();
+        boolean reusable = false;
+        try {
+            final T result = call.call( connection._client );
+            reusable = true;
+            return result;
+        } catch ( final ThriftIOException e ) {
+            reusable = true;
+            throw e;
+        } catch ( final TApplicationException e ) {
+            // the server answered properly, with an error
+            reusable = e.getType() != TApplicationException.BAD_SEQUENCE_ID;
+            throw e;
+        } finally {
+            release( connection, reusable );
+        }
+    }
+
+    private Connection borrow() throws TException {
+        if ( _closed ) {
+            throw new TException( "connection pool closed" );
+        }
+        try {
+            _permits.acquire();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new TException( "interrupted while waiting for a connection", e );
+        }
+        final Connection idle = _idle.pollFirst();
+        if ( idle != null ) {
+            return idle;
+        }
+        try {
+            return connect();
+        } catch ( final TException | RuntimeException e ) {
+            _permits.release();
+            throw e;
+        }
+    }
+
+    private Connection connect() throws TException {
+        final TSocket socket = new TSocket( _options.host(), _options.port(), _options.timeoutMillis() );
+        final TTransport transport = _options.framed() ? new TFramedTransport( socket ) : socket;
+        transport.open();
+        return new Connection( transport, new ThriftHadoopFileSystem.Client( new TBinaryProtocol( transport ) ) );
+    }
+
+    private void release( final Connection connection, final boolean reusable ) {
+        if ( reusable && !_closed ) {
+            _idle.offerFirst( connection );
+        } else {
+            connection._transport.close();
+        }
+        _permits.release();
+        if ( _closed ) {
+            closeIdle();
+        }
+    }
+
+    /**
+     * Closes the idle connections, those in use are closed when returned.
+     */
+    @Override
+    public void close() {
+        _closed = true;
+        closeIdle();
+    }
+
+    private void closeIdle() {
+        Connection connection;
+        while ( ( connection = _idle.pollFirst() ) != null ) {
+            connection._transport.close();
+        }
+    }
+
+    private static final class Connection {
+        private final TTransport _transport;
+        private final Client _client;
+
+        Connection( final TTransport transport, final Client client ) {
+            _transport = transport;
+            _client = client;
+        }
+    }
+
+}
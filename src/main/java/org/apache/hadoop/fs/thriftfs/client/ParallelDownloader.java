@@ -0,0 +1,280 @@
+package org.apache.hadoop.fs.thriftfs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.thriftfs.api.BlockLocation;
+import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem.Client;
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+import org.apache.thrift.TException;
+
+/**
+ * Downloads a large plain file over several connections of a
+ * {@link ConnectionPool} at once, so the transfer is not limited by a single
+ * datanode. All connections read through one handle (handles are not bound to
+ * a connection) with pread calls of <code>chunkSize</code> bytes.
+ *
+ * Into a {@link FileChannel} the file's blocks are read concurrently, one
+ * block per worker at a time, and written at their position. Into an
+ * {@link OutputStream} the chunks are read concurrently in file order and
+ * written in order, at most two chunks per worker are buffered. A chunk size
+ * dividing the hdfs block size keeps every pread on a single datanode.
+ *
+ * @author Axel Mannhardt
+ */
+public final class ParallelDownloader implements Closeable {
+
+    private final ConnectionPool _pool;
+    private final int _parallelism;
+    private final int _chunkSize;
+    private final ExecutorService _workers;
+
+    /**
+     * @param pool should allow at least <code>parallelism</code> connections
+     */
+    public ParallelDownloader( final ConnectionPool pool, final int parallelism, final int chunkSize ) {
+        if ( parallelism <= 0 ) {
+            throw new IllegalArgumentException( "parallelism must be positive, was: " + parallelism );
+        }
+        if ( chunkSize <= 0 || chunkSize > RemoteInputStream.MAX_CHUNK_SIZE ) {
+            throw new IllegalArgumentException( "chunk size must be in 1.." + RemoteInputStream.MAX_CHUNK_SIZE + ", was: "
+                    + chunkSize );
+        }
+        _pool = pool;
+        _parallelism = parallelism;
+        _chunkSize = chunkSize;
+        _workers = Executors.newFixedThreadPool( parallelism, new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread( final Runnable r ) {
+                final Thread thread = new Thread( r, "download-" + _count.getAndIncrement() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /**
+     * @return the bytes downloaded
+     */
+    public long download( final Pathname path, final FileChannel target ) throws IOException {
+        final long length = length( path );
+        final List<long[]> ranges = ranges( path, length );
+        final ThriftHandle handle = open( path );
+        try {
+            final AtomicInteger next = new AtomicInteger();
+            final List<Future<Long>> workers = new ArrayList<Future<Long>>();
+            for ( int i = 0; i < Math.min( _parallelism, ranges.size() ); i++ ) {
+                workers.add( _workers.submit( new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        long total = 0;
+                        for ( int range = next.getAndIncrement(); range < ranges.size(); range = next.getAndIncrement() ) {
+                            total += downloadRange( handle, ranges.get( range ), target );
+                        }
+                        return Long.valueOf( total );
+                    }
+                } ) );
+            }
+            long total = 0;
+            try {
+                for ( final Future<Long> worker : workers ) {
+                    total += await( worker ).longValue();
+                }
+            } finally {
+                // on failure the other ranges are not started
+                next.set( ranges.size() );
+                for ( final Future<Long> worker : workers ) {
+                    worker.cancel( false );
+                }
+            }
+            return total;
+        } finally {
+            closeQuietly( handle );
+        }
+    }
+
+    private long downloadRange( final ThriftHandle handle, final long[] range, final FileChannel target ) throws IOException {
+        long position = range[0];
+        final long end = range[0] + range[1];
+        while ( position < end ) {
+            final ByteBuffer chunk = pread( handle, position, (int) Math.min( _chunkSize, end - position ) );
+            final int read = chunk.remaining();
+            long written = position;
+            while ( chunk.hasRemaining() ) {
+                written += target.write( chunk, written );
+            }
+            position += read;
+            if ( read == 0 ) {
+                // the file shrank since its status was read
+                break;
+            }
+        }
+        return position - range[0];
+    }
+
+    /**
+     * @return the bytes downloaded
+     */
+    public long download( final Pathname path, final OutputStream out ) throws IOException {
+        final ThriftHandle handle = open( path );
+        final Deque<Future<ByteBuffer>> window = new ArrayDeque<Future<ByteBuffer>>();
+        try {
+            long requested = 0;
+            long total = 0;
+            boolean end = false;
+            while ( !end ) {
+                while ( window.size() < 2 * _parallelism ) {
+                    window.addLast( submitChunk( handle, requested ) );
+                    requested += _chunkSize;
+                }
+                final ByteBuffer chunk = await( window.removeFirst() );
+                total += chunk.remaining();
+                end = chunk.remaining() < _chunkSize;
+                out.write( chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining() );
+            }
+            return total;
+        } finally {
+            for ( final Future<ByteBuffer> chunk : window ) {
+                chunk.cancel( false );
+            }
+            closeQuietly( handle );
+        }
+    }
+
+    private Future<ByteBuffer> submitChunk( final ThriftHandle handle, final long offset ) {
+        return _workers.submit( new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+                return pread( handle, offset, _chunkSize );
+            }
+        } );
+    }
+
+    private long length( final Pathname path ) throws IOException {
+        return execute( new ConnectionPool.Call<Long>() {
+            @Override
+            public Long call( final Client client ) throws TException {
+                return Long.valueOf( client.stat( path ).getLength() );
+            }
+        } ).longValue();
+    }
+
+    /**
+     * The block ranges of the file, split further if there are less blocks
+     * than workers.
+     */
+    private List<long[]> ranges( final Pathname path, final long length ) throws IOException {
+        final List<BlockLocation> blocks = execute( new ConnectionPool.Call<List<BlockLocation>>() {
+            @Override
+            public List<BlockLocation> call( final Client client ) throws TException {
+                return client.getFileBlockLocations( path, 0, length );
+            }
+        } );
+        final List<long[]> ranges = new ArrayList<long[]>();
+        if ( blocks == null || blocks.isEmpty() ) {
+            ranges.add( new long[] { 0, length } );
+        } else {
+            for ( final BlockLocation block : blocks ) {
+                ranges.add( new long[] { block.getOffset(), block.getLength() } );
+            }
+        }
+        if ( ranges.size() >= _parallelism ) {
+            return ranges;
+        }
+        final int parts = ( _parallelism + ranges.size() - 1 ) / ranges.size();
+        final List<long[]> split = new ArrayList<long[]>();
+        for ( final long[] range : ranges ) {
+            // parts of whole chunks, so the chunks stay aligned
+            final long chunks = ( range[1] + _chunkSize - 1 ) / _chunkSize;
+            final long partChunks = Math.max( 1, ( chunks + parts - 1 ) / parts );
+            for ( long start = range[0]; start < range[0] + range[1]; start += partChunks * _chunkSize ) {
+                split.add( new long[] { start, Math.min( partChunks * _chunkSize, range[0] + range[1] - start ) } );
+            }
+        }
+        return split;
+    }
+
+    private ThriftHandle open( final Pathname path ) throws IOException {
+        return execute( new ConnectionPool.Call<ThriftHandle>() {
+            @Override
+            public ThriftHandle call( final Client client ) throws TException {
+                return client.open( path );
+            }
+        } );
+    }
+
+    private ByteBuffer pread( final ThriftHandle handle, final long offset, final int size ) throws IOException {
+        return execute( new ConnectionPool.Call<ByteBuffer>() {
+            @Override
+            public ByteBuffer call( final Client client ) throws TException {
+                // the result may wrap the transport's buffer, which the connection's next call overwrites
+                final ByteBuffer result = client.pread( handle, offset, size );
+                final ByteBuffer copy = ByteBuffer.allocate( result.remaining() );
+                copy.put( result ).flip();
+                return copy;
+            }
+        } );
+    }
+
+    private void closeQuietly( final ThriftHandle handle ) {
+        try {
+            execute( new ConnectionPool.Call<Boolean>() {
+                @Override
+                public Boolean call( final Client client ) throws TException {
+                    return Boolean.valueOf( client.closeReadHandle( handle ) );
+                }
+            } );
+        } catch ( final IOException e ) {
+            // the server releases idle handles
+        }
+    }
+
+    private <T> T execute( final ConnectionPool.Call<T> call ) throws IOException {
+        try {
+            return _pool.execute( call );
+        } catch ( final TException e ) {
+            throw new IOException( e.getMessage(), e );
+        }
+    }
+
+    private static <T> T await( final Future<T> future ) throws IOException {
+        try {
+            return future.get();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while downloading" );
+        } catch ( final ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "download failed", e.getCause() );
+        }
+    }
+
+    /**
+     * Stops the workers, the connection pool stays open.
+     */
+    @Override
+    public void close() {
+        _workers.shutdownNow();
+    }
+
+}
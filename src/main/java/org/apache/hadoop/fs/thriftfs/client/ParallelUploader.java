@@ -0,0 +1,198 @@
+package org.apache.hadoop.fs.thriftfs.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.thriftfs.api.FileStatus;
+import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem.Client;
+import org.apache.hadoop.thriftfs.api.hadoopfsConstants;
+import org.apache.thrift.TException;
+
+/**
+ * Uploads a large file over several connections of a {@link ConnectionPool}
+ * at once with the multipart upload rpcs, so the transfer is not limited by a
+ * single datanode pipeline: the input is cut into parts of
+ * <code>partSize</code> bytes, which are sent concurrently (at most two parts
+ * per worker are buffered) and become the file once all arrived. A failed
+ * part is retried once, a failed upload is aborted.
+ *
+ * @author Axel Mannhardt
+ */
+public final class ParallelUploader implements Closeable {
+
+    /** Parts have to fit into one message of the framed transport. */
+    public static final int MAX_PART_SIZE = hadoopfsConstants.MAX_DATA_PER_CALL;
+
+    private final ConnectionPool _pool;
+    private final int _parallelism;
+    private final int _partSize;
+    private final ExecutorService _workers;
+
+    /**
+     * @param pool should allow at least <code>parallelism</code> connections
+     */
+    public ParallelUploader( final ConnectionPool pool, final int parallelism, final int partSize ) {
+        if ( parallelism <= 0 ) {
+            throw new IllegalArgumentException( "parallelism must be positive, was: " + parallelism );
+        }
+        if ( partSize <= 0 || partSize > MAX_PART_SIZE ) {
+            throw new IllegalArgumentException( "part size must be in 1.." + MAX_PART_SIZE + ", was: " + partSize );
+        }
+        _pool = pool;
+        _parallelism = parallelism;
+        _partSize = partSize;
+        _workers = Executors.newFixedThreadPool( parallelism, new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread( final Runnable r ) {
+                final Thread thread = new Thread( r, "upload-" + _count.getAndIncrement() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /**
+     * Uploads the stream's content to the path, replacing an existing file.
+     * The stream is not closed.
+     *
+     * @return the status of the uploaded file
+     */
+    public FileStatus upload( final InputStream in, final Pathname path ) throws IOException {
+        final String uploadId = execute( new ConnectionPool.Call<String>() {
+            @Override
+            public String call( final Client client ) throws TException {
+                return client.initUpload( path );
+            }
+        } );
+        final Deque<Future<Void>> window = new ArrayDeque<Future<Void>>();
+        boolean completed = false;
+        try {
+            int partNumber = 1;
+            while ( true ) {
+                final ByteBuffer part = readPart( in );
+                if ( part == null ) {
+                    break;
+                }
+                if ( window.size() == 2 * _parallelism ) {
+                    await( window.removeFirst() );
+                }
+                window.addLast( submitPart( uploadId, partNumber++, part ) );
+            }
+            while ( !window.isEmpty() ) {
+                await( window.removeFirst() );
+            }
+            final FileStatus status = execute( new ConnectionPool.Call<FileStatus>() {
+                @Override
+                public FileStatus call( final Client client ) throws TException {
+                    return client.completeUpload( uploadId );
+                }
+            } );
+            completed = true;
+            return status;
+        } finally {
+            if ( !completed ) {
+                for ( final Future<Void> part : window ) {
+                    part.cancel( false );
+                }
+                abortQuietly( uploadId );
+            }
+        }
+    }
+
+    /**
+     * The next part, <code>null</code> at the end of the stream.
+     */
+    private ByteBuffer readPart( final InputStream in ) throws IOException {
+        final byte[] part = new byte[_partSize];
+        int length = 0;
+        while ( length < part.length ) {
+            final int read = in.read( part, length, part.length - length );
+            if ( read < 0 ) {
+                break;
+            }
+            length += read;
+        }
+        return length == 0 ? null : ByteBuffer.wrap( part, 0, length );
+    }
+
+    private Future<Void> submitPart( final String uploadId, final int partNumber, final ByteBuffer part ) {
+        return _workers.submit( new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                final ConnectionPool.Call<Void> upload = new ConnectionPool.Call<Void>() {
+                    @Override
+                    public Void call( final Client client ) throws TException {
+                        client.uploadPart( uploadId, partNumber, part.duplicate() );
+                        return null;
+                    }
+                };
+                try {
+                    execute( upload );
+                } catch ( final IOException e ) {
+                    // uploading a part again replaces it
+                    execute( upload );
+                }
+                return null;
+            }
+        } );
+    }
+
+    private void abortQuietly( final String uploadId ) {
+        try {
+            execute( new ConnectionPool.Call<Boolean>() {
+                @Override
+                public Boolean call( final Client client ) throws TException {
+                    return Boolean.valueOf( client.abortUpload( uploadId ) );
+                }
+            } );
+        } catch ( final IOException e ) {
+            // the server expires idle uploads
+        }
+    }
+
+    private <T> T execute( final ConnectionPool.Call<T> call ) throws IOException {
+        try {
+            return _pool.execute( call );
+        } catch ( final TException e ) {
+            throw new IOException( e.getMessage(), e );
+        }
+    }
+
+    private static <T> T await( final Future<T> future ) throws IOException {
+        try {
+            return future.get();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while uploading" );
+        } catch ( final ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "upload failed", e.getCause() );
+        }
+    }
+
+    /**
+     * Stops the workers, the connection pool stays open.
+     */
+    @Override
+    public void close() {
+        _workers.shutdownNow();
+    }
+
+}
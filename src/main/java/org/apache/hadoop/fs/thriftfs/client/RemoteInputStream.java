@@ -0,0 +1,205 @@
+package org.apache.hadoop.fs.thriftfs.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+import org.apache.hadoop.thriftfs.api.hadoopfsConstants;
+
+/**
+ * A remote file read through an {@link AsyncHdfsClient}, as stream or channel.
+ * The file is read in chunks by pread calls, and while the caller consumes one
+ * chunk the next <code>prefetchChunks</code> are already requested, so the
+ * round trips overlap with the caller's work. A chunk shorter than requested
+ * marks the end of the file.
+ *
+ * Several prefetched chunks of a plain file are read concurrently on different
+ * connections. The server serializes the reads of a compressed file, and reads
+ * arriving out of order make it restart decompression, so keep the prefetch
+ * at 1 there (one call in flight at a time). Not thread safe, like any stream.
+ *
+ * @author Axel Mannhardt
+ */
+public final class RemoteInputStream extends InputStream implements ReadableByteChannel {
+
+    /** The server's limit of a single read. */
+    public static final int MAX_CHUNK_SIZE = hadoopfsConstants.MAX_DATA_PER_CALL;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate( 0 );
+
+    private final AsyncHdfsClient _client;
+    private final ThriftHandle _handle;
+    private final int _chunkSize;
+    private final int _prefetchChunks;
+    private final Deque<CompletableFuture<ByteBuffer>> _requested = new ArrayDeque<CompletableFuture<ByteBuffer>>();
+    private ByteBuffer _current = EMPTY;
+    /** File offset of the start of {@link #_current}. */
+    private long _currentOffset;
+    /** File offset of the next chunk to request. */
+    private long _nextOffset;
+    private boolean _endSeen;
+    private boolean _closed;
+
+    RemoteInputStream( final AsyncHdfsClient client, final ThriftHandle handle, final int chunkSize, final int prefetchChunks ) {
+        if ( chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE ) {
+            throw new IllegalArgumentException( "chunk size must be in 1.." + MAX_CHUNK_SIZE + ", was: " + chunkSize );
+        }
+        if ( prefetchChunks < 0 ) {
+            throw new IllegalArgumentException( "prefetch chunks must not be negative, was: " + prefetchChunks );
+        }
+        _client = client;
+        _handle = handle;
+        _chunkSize = chunkSize;
+        _prefetchChunks = prefetchChunks;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ( !fill() ) {
+            return -1;
+        }
+        return _current.get() & 0xff;
+    }
+
+    @Override
+    public int read( final byte[] b, final int off, final int len ) throws IOException {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( !fill() ) {
+            return -1;
+        }
+        final int n = Math.min( len, _current.remaining() );
+        _current.get( b, off, n );
+        return n;
+    }
+
+    @Override
+    public int read( final ByteBuffer dst ) throws IOException {
+        if ( _closed ) {
+            throw new ClosedChannelException();
+        }
+        if ( !dst.hasRemaining() ) {
+            return 0;
+        }
+        if ( !fill() ) {
+            return -1;
+        }
+        final int n = Math.min( dst.remaining(), _current.remaining() );
+        final ByteBuffer slice = _current.duplicate();
+        slice.limit( slice.position() + n );
+        dst.put( slice );
+        _current.position( _current.position() + n );
+        return n;
+    }
+
+    /**
+     * Bytes available without waiting for the server.
+     */
+    @Override
+    public int available() {
+        return _current.remaining();
+    }
+
+    /**
+     * Like {@link java.io.FileInputStream}, may skip beyond the end of the
+     * file.
+     */
+    @Override
+    public long skip( final long n ) throws IOException {
+        if ( n <= 0 ) {
+            return 0;
+        }
+        seek( getPos() + n );
+        return n;
+    }
+
+    public long getPos() {
+        return _currentOffset + _current.position();
+    }
+
+    /**
+     * Continues reading at the offset: within the current chunk without a
+     * call, elsewhere the chunks requested so far are dropped.
+     */
+    public void seek( final long offset ) throws IOException {
+        checkOpen();
+        if ( offset < 0 ) {
+            throw new IOException( "negative offset " + offset );
+        }
+        if ( offset >= _currentOffset && offset <= _currentOffset + _current.limit() ) {
+            _current.position( (int) ( offset - _currentOffset ) );
+            return;
+        }
+        // dropped calls still complete, their connections are reused
+        _requested.clear();
+        _current = EMPTY;
+        _currentOffset = offset;
+        _nextOffset = offset;
+        _endSeen = false;
+    }
+
+    /**
+     * Makes the next chunk current once the current one is consumed.
+     *
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException {
+        checkOpen();
+        if ( _current.hasRemaining() ) {
+            return true;
+        }
+        if ( _endSeen ) {
+            return false;
+        }
+        request( 1 );
+        final ByteBuffer chunk = _client.await( _requested.removeFirst() );
+        _currentOffset += _current.limit();
+        _current = chunk.slice();
+        if ( _current.remaining() < _chunkSize ) {
+            _endSeen = true;
+            _requested.clear();
+        } else {
+            request( _prefetchChunks );
+        }
+        return _current.hasRemaining();
+    }
+
+    /**
+     * Tops up the chunks in flight.
+     */
+    private void request( final int chunks ) {
+        while ( _requested.size() < chunks ) {
+            _requested.addLast( _client.pread( _handle, _nextOffset, _chunkSize ) );
+            _nextOffset += _chunkSize;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if ( _closed ) {
+            throw new IOException( "stream closed" );
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !_closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( _closed ) {
+            return;
+        }
+        _closed = true;
+        _requested.clear();
+        _client.await( _client.closeReadHandle( _handle ) );
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.apache.hadoop.fs.thriftfs.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+
+/**
+ * A remote file written through an {@link AsyncHdfsClient}. Writes are
+ * collected into chunks, and a full chunk is sent by a writeBytes call while
+ * the caller fills the next one (double buffering). At most one call is in
+ * flight, so the chunks arrive in order; a failed call is reported by the next
+ * write, flush or close. Not thread safe, like any stream.
+ *
+ * @author Axel Mannhardt
+ */
+public final class RemoteOutputStream extends OutputStream {
+
+    private final AsyncHdfsClient _client;
+    private final ThriftHandle _handle;
+    private byte[] _buffer;
+    /** The buffer of the call in flight, reused once the call is done. */
+    private byte[] _sending;
+    private int _count;
+    private CompletableFuture<Boolean> _inFlight;
+    private boolean _closed;
+
+    RemoteOutputStream( final AsyncHdfsClient client, final ThriftHandle handle, final int chunkSize ) {
+        if ( chunkSize <= 0 ) {
+            throw new IllegalArgumentException( "chunk size must be positive, was: " + chunkSize );
+        }
+        _client = client;
+        _handle = handle;
+        _buffer = new byte[chunkSize];
+        _sending = new byte[chunkSize];
+    }
+
+    @Override
+    public void write( final int b ) throws IOException {
+        checkOpen();
+        _buffer[_count++] = (byte) b;
+        if ( _count == _buffer.length ) {
+            send();
+        }
+    }
+
+    @Override
+    public void write( final byte[] b, final int off, final int len ) throws IOException {
+        checkOpen();
+        int written = 0;
+        while ( written < len ) {
+            final int n = Math.min( len - written, _buffer.length - _count );
+            System.arraycopy( b, off + written, _buffer, _count, n );
+            _count += n;
+            written += n;
+            if ( _count == _buffer.length ) {
+                send();
+            }
+        }
+    }
+
+    /**
+     * Sends the buffered bytes and waits until the server has them.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if ( _count > 0 ) {
+            send();
+        }
+        awaitInFlight();
+    }
+
+    private void send() throws IOException {
+        awaitInFlight();
+        final byte[] full = _buffer;
+        _inFlight = _client.writeBytes( _handle, ByteBuffer.wrap( full, 0, _count ) );
+        _buffer = _sending;
+        _sending = full;
+        _count = 0;
+    }
+
+    private void awaitInFlight() throws IOException {
+        if ( _inFlight != null ) {
+            final CompletableFuture<Boolean> inFlight = _inFlight;
+            _inFlight = null;
+            if ( !_client.await( inFlight ).booleanValue() ) {
+                throw new IOException( "unknown write handle: " + _handle.getId() );
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if ( _closed ) {
+            throw new IOException( "stream closed" );
+        }
+    }
+
+    /**
+     * Closes the remote file, which reports the failures of writes the
+     * server has queued.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( _closed ) {
+            return;
+        }
+        IOException failure = null;
+        try {
+            flush();
+        } catch ( final IOException e ) {
+            failure = e;
+        }
+        _closed = true;
+        try {
+            if ( !_client.await( _client.closeWriteHandle( _handle ) ).booleanValue() && failure == null ) {
+                failure = new IOException( "unknown write handle: " + _handle.getId() );
+            }
+        } catch ( final IOException e ) {
+            if ( failure == null ) {
+                failure = e;
+            }
+        }
+        if ( failure != null ) {
+            throw failure;
+        }
+    }
+
+}
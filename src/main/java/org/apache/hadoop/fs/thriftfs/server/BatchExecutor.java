@@ -0,0 +1,87 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Runs the calls of a batch rpc concurrently against the file system. A batch
+ * is worked off by the calling thread and up to <code>parallelism - 1</code>
+ * threads of a shared pool, which take the next item as soon as they are done
+ * with one, so slow paths do not hold up others. The pool bounds the calls in
+ * flight over all batches (the namenode is the limit, not the server), a batch
+ * finding the pool busy still progresses on the calling thread.
+ *
+ * @author Axel Mannhardt
+ */
+final class BatchExecutor {
+
+    /**
+     * The call for one item of a batch. Failures of an item are part of its
+     * result, so implementations must not throw.
+     */
+    interface Call<T> {
+        T call( int index );
+    }
+
+    private final ExecutorService _pool;
+    private final int _parallelism;
+
+    BatchExecutor( final int parallelism ) {
+        _parallelism = parallelism;
+        _pool =
+                parallelism > 1 ? Executors.newFixedThreadPool( parallelism - 1, new ThreadFactoryBuilder().setDaemon( true )
+                        .setNameFormat( "batch-%d" ).build() ) : null;
+    }
+
+    /**
+     * @return the results in item order
+     */
+    <T> List<T> run( final int size, final Call<T> call ) {
+        final Object[] results = new Object[size];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch( size );
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                for ( int index = next.getAndIncrement(); index < size; index = next.getAndIncrement() ) {
+                    try {
+                        results[index] = call.call( index );
+                    } catch ( final RuntimeException e ) {
+                        failure.compareAndSet( null, e );
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        if ( _pool != null ) {
+            try {
+                for ( int i = 1; i < Math.min( size, _parallelism ); i++ ) {
+                    _pool.execute( worker );
+                }
+            } catch ( final RejectedExecutionException e ) {
+                // the calling thread does the rest
+            }
+        }
+        worker.run();
+        // helpers started late find nothing left, only items in progress are waited for
+        Uninterruptibles.awaitUninterruptibly( done );
+        if ( failure.get() != null ) {
+            throw failure.get();
+        }
+        @SuppressWarnings( "unchecked" )
+        final List<T> list = (List<T>) Arrays.asList( results );
+        return list;
+    }
+
+}
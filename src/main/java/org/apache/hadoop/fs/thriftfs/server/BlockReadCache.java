@@ -0,0 +1,411 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.thriftfs.api.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Off heap cache of fixed size file chunks, shared by all read handles.
+ *
+ * Chunks are keyed by path, modification time and chunk index, so a rewritten
+ * file never hits stale chunks. They are stored in slots of direct buffers
+ * allocated up front (the byte budget), and evicted with the clock algorithm
+ * (an LRU approximation: a hit sets the slot's reference bit, the clock hand
+ * clears set bits and takes the first slot without one). Readers copy out of a
+ * slot optimistically under the slot's {@link StampedLock} and treat a slot
+ * rewritten meanwhile as a miss; only writers filling a slot take its lock.
+ *
+ * Sequential readers get the following chunks loaded in the background
+ * (read ahead). A chunk is loaded once at a time: readers missing a chunk
+ * that is being loaded (by another reader or read ahead) wait for that load
+ * and copy out of the cache. Chunks are loaded into buffers of the service's
+ * {@link BufferPool}.
+ *
+ * @author Axel Mannhardt
+ */
+final class BlockReadCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger( BlockReadCache.class );
+
+    /** Direct buffers are allocated in slabs of at most this size. */
+    private static final int MAX_SLAB_BYTES = 1 << 30;
+
+    private final int _chunkSize;
+    private final int _slotCount;
+    private final int _slotsPerSlab;
+    private final ByteBuffer[] _slabs;
+    private final StampedLock[] _locks;
+    private final AtomicReferenceArray<ChunkKey> _keys;
+    private final AtomicIntegerArray _lengths;
+    private final AtomicIntegerArray _referenced;
+    private final ConcurrentMap<ChunkKey, Integer> _index = new ConcurrentHashMap<ChunkKey, Integer>();
+    /** The loads in flight, done once the chunk is cached (true) or failed to load or cache (false). */
+    private final ConcurrentMap<ChunkKey, SettableFuture<Boolean>> _loading = new ConcurrentHashMap<ChunkKey, SettableFuture<Boolean>>();
+    private final Object _clockLock = new Object();
+    private int _clockHand;
+    private final int _readAheadChunks;
+    private final ExecutorService _readAhead;
+    private final BufferPool _buffers;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _usedBytes = new AtomicLong();
+
+    BlockReadCache( final long capacityBytes, final int chunkSize, final int readAheadChunks, final int readAheadThreads,
+            final BufferPool buffers ) {
+        if ( chunkSize < 1 || chunkSize > MAX_SLAB_BYTES ) {
+            throw new IllegalArgumentException( "invalid read cache chunk size: " + chunkSize );
+        }
+        final long slots = capacityBytes / chunkSize;
+        if ( slots < 1 || slots > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "read cache of " + capacityBytes + " bytes cannot hold chunks of " + chunkSize );
+        }
+        _chunkSize = chunkSize;
+        _slotCount = (int) slots;
+        _slotsPerSlab = MAX_SLAB_BYTES / chunkSize;
+        _slabs = new ByteBuffer[( _slotCount + _slotsPerSlab - 1 ) / _slotsPerSlab];
+        for ( int i = 0; i < _slabs.length; i++ ) {
+            final int slabSlots = Math.min( _slotsPerSlab, _slotCount - i * _slotsPerSlab );
+            _slabs[i] = ByteBuffer.allocateDirect( slabSlots * chunkSize );
+        }
+        _locks = new StampedLock[_slotCount];
+        for ( int i = 0; i < _slotCount; i++ ) {
+            _locks[i] = new StampedLock();
+        }
+        _keys = new AtomicReferenceArray<ChunkKey>( _slotCount );
+        _lengths = new AtomicIntegerArray( _slotCount );
+        _referenced = new AtomicIntegerArray( _slotCount );
+        _readAheadChunks = readAheadChunks;
+        _readAhead =
+                readAheadChunks > 0 ? Executors.newFixedThreadPool( readAheadThreads,
+                        new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "read-ahead-%d" ).build() ) : null;
+        _buffers = buffers;
+    }
+
+    int chunkSize() {
+        return _chunkSize;
+    }
+
+    /**
+     * Reads up to <code>length</code> bytes at <code>offset</code> of the file
+     * into <code>buffer</code> at <code>bufferOffset</code> through the cache,
+     * loading missing chunks from <code>in</code>. Returns the number of bytes
+     * read, which is less than <code>length</code> only at the end of the
+     * file.
+     */
+    int read( final CachedFile file, final long offset, final byte[] buffer, final int bufferOffset, final int length )
+        throws IOException {
+        int total = 0;
+        while ( total < length ) {
+            final long position = offset + total;
+            if ( position >= file._length ) {
+                break;
+            }
+            final long chunkIndex = position / _chunkSize;
+            final int inChunk = (int) ( position - chunkIndex * _chunkSize );
+            final int wanted = Math.min( length - total, chunkLength( file, chunkIndex ) - inChunk );
+            final ChunkKey key = file.key( chunkIndex );
+            int read = copyOut( key, inChunk, buffer, bufferOffset + total, wanted );
+            if ( read < 0 ) {
+                _misses.incrementAndGet();
+                read = readMissing( file, chunkIndex, key, inChunk, buffer, bufferOffset + total, wanted );
+                if ( read < wanted ) {
+                    // the file is shorter than its status said
+                    total += read;
+                    break;
+                }
+            } else {
+                _hits.incrementAndGet();
+                if ( read == 0 ) {
+                    break;
+                }
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Loads the chunks following <code>end</code> in the background, call
+     * when a reader is detected to read sequentially.
+     */
+    void readAhead( final CachedFile file, final long end ) {
+        if ( _readAhead == null ) {
+            return;
+        }
+        final long firstChunk = ( end + _chunkSize - 1 ) / _chunkSize;
+        for ( long chunkIndex = firstChunk; chunkIndex < firstChunk + _readAheadChunks; chunkIndex++ ) {
+            if ( chunkIndex * _chunkSize >= file._length ) {
+                return;
+            }
+            final ChunkKey key = file.key( chunkIndex );
+            final SettableFuture<Boolean> load = SettableFuture.create();
+            if ( _index.containsKey( key ) || _loading.putIfAbsent( key, load ) != null ) {
+                continue;
+            }
+            final long index = chunkIndex;
+            try {
+                _readAhead.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            load( file, index, key, null, 0, 0, 0, load );
+                        } catch ( final IOException e ) {
+                            // the handle might have been closed meanwhile
+                            LOG.debug( "read ahead failed for " + key, e );
+                        }
+                    }
+                } );
+            } catch ( final RejectedExecutionException e ) {
+                finish( key, load, false );
+            }
+        }
+    }
+
+    CacheStats stats() {
+        return new CacheStats( _hits.get(), _misses.get(), _evictions.get(), _usedBytes.get(), (long) _slotCount * _chunkSize );
+    }
+
+    private int chunkLength( final CachedFile file, final long chunkIndex ) {
+        return (int) Math.min( _chunkSize, file._length - chunkIndex * _chunkSize );
+    }
+
+    /**
+     * Copies <code>wanted</code> bytes at <code>inChunk</code> of a chunk not
+     * in the cache, waiting for its load in flight if there is one, else
+     * loading it. Returns less only at the end of the file.
+     */
+    private int readMissing( final CachedFile file, final long chunkIndex, final ChunkKey key, final int inChunk,
+            final byte[] buffer, final int offset, final int wanted ) throws IOException {
+        final SettableFuture<Boolean> load = SettableFuture.create();
+        final SettableFuture<Boolean> running = _loading.putIfAbsent( key, load );
+        if ( running == null ) {
+            return load( file, chunkIndex, key, buffer, offset, inChunk, wanted, load );
+        }
+        if ( await( running ) ) {
+            final int read = copyOut( key, inChunk, buffer, offset, wanted );
+            if ( read >= 0 ) {
+                return read;
+            }
+        }
+        // the load failed (its handle may be closed), or the chunk was evicted right away: load for this read alone
+        return load( file, chunkIndex, key, buffer, offset, inChunk, wanted, null );
+    }
+
+    private static boolean await( final SettableFuture<Boolean> load ) throws InterruptedIOException {
+        try {
+            return load.get().booleanValue();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while waiting for a chunk" );
+        } catch ( final ExecutionException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the chunk from the file into a pooled buffer, caches it and
+     * copies <code>wanted</code> bytes at <code>inChunk</code> out (none if
+     * <code>buffer</code> is null). Completes <code>load</code>, if given,
+     * once the chunk is cached or failed. Returns the bytes copied.
+     */
+    private int load( final CachedFile file, final long chunkIndex, final ChunkKey key, final byte[] buffer, final int offset,
+            final int inChunk, final int wanted, final SettableFuture<Boolean> load ) throws IOException {
+        final int length = chunkLength( file, chunkIndex );
+        final long start = chunkIndex * _chunkSize;
+        final byte[] chunk = _buffers.acquire( _chunkSize );
+        boolean cached = false;
+        try {
+            int total = 0;
+            while ( total < length ) {
+                final int read = file._in.read( start + total, chunk, total, length - total );
+                if ( read < 0 ) {
+                    break;
+                }
+                total += read;
+            }
+            if ( total == length ) {
+                cached = copyIn( key, chunk, total );
+            }
+            if ( buffer == null ) {
+                return 0;
+            }
+            final int read = Math.max( 0, Math.min( wanted, total - inChunk ) );
+            System.arraycopy( chunk, inChunk, buffer, offset, read );
+            return read;
+        } finally {
+            _buffers.release( chunk );
+            if ( load != null ) {
+                finish( key, load, cached );
+            }
+        }
+    }
+
+    private void finish( final ChunkKey key, final SettableFuture<Boolean> load, final boolean cached ) {
+        _loading.remove( key, load );
+        load.set( Boolean.valueOf( cached ) );
+    }
+
+    /**
+     * Returns the bytes copied, or -1 if the chunk is not cached or shorter
+     * than the bytes wanted: a file still being written keeps its modification
+     * time, so a chunk cached before it grew has the same key.
+     */
+    private int copyOut( final ChunkKey key, final int inChunk, final byte[] buffer, final int offset, final int length ) {
+        final Integer slotObject = _index.get( key );
+        if ( slotObject == null ) {
+            return -1;
+        }
+        final int slot = slotObject.intValue();
+        final StampedLock lock = _locks[slot];
+        final long stamp = lock.tryOptimisticRead();
+        if ( stamp == 0 || !key.equals( _keys.get( slot ) ) ) {
+            return -1;
+        }
+        if ( _lengths.get( slot ) - inChunk < length ) {
+            return -1;
+        }
+        final int read = length;
+        final ByteBuffer view = _slabs[slot / _slotsPerSlab].duplicate();
+        view.position( slotOffset( slot ) + inChunk );
+        view.get( buffer, offset, read );
+        if ( !lock.validate( stamp ) ) {
+            return -1;
+        }
+        _referenced.set( slot, 1 );
+        return read;
+    }
+
+    /**
+     * Whether the chunk is cached afterwards.
+     */
+    private boolean copyIn( final ChunkKey key, final byte[] chunk, final int length ) {
+        if ( _index.containsKey( key ) ) {
+            return true;
+        }
+        final int slot;
+        final long stamp;
+        synchronized ( _clockLock ) {
+            slot = nextVictim();
+            if ( slot < 0 ) {
+                // every slot is being filled right now
+                return false;
+            }
+            stamp = _locks[slot].tryWriteLock();
+            final ChunkKey previous = _keys.getAndSet( slot, key );
+            if ( previous != null ) {
+                _index.remove( previous, Integer.valueOf( slot ) );
+                _usedBytes.addAndGet( -_lengths.get( slot ) );
+                _evictions.incrementAndGet();
+            }
+        }
+        try {
+            final ByteBuffer view = _slabs[slot / _slotsPerSlab].duplicate();
+            view.position( slotOffset( slot ) );
+            view.put( chunk, 0, length );
+            _lengths.set( slot, length );
+            _referenced.set( slot, 0 );
+        } finally {
+            _locks[slot].unlockWrite( stamp );
+        }
+        _usedBytes.addAndGet( length );
+        _index.put( key, Integer.valueOf( slot ) );
+        return true;
+    }
+
+    /**
+     * Clock hand, call with the clock lock held. Skips slots being filled.
+     */
+    private int nextVictim() {
+        for ( int step = 0; step < 2 * _slotCount; step++ ) {
+            final int slot = _clockHand;
+            _clockHand = ( _clockHand + 1 ) % _slotCount;
+            if ( _locks[slot].isWriteLocked() ) {
+                continue;
+            }
+            if ( _keys.get( slot ) != null && _referenced.getAndSet( slot, 0 ) == 1 ) {
+                continue;
+            }
+            return slot;
+        }
+        return -1;
+    }
+
+    private int slotOffset( final int slot ) {
+        return ( slot % _slotsPerSlab ) * _chunkSize;
+    }
+
+    /**
+     * A plain (uncompressed) file read through the cache.
+     */
+    static final class CachedFile {
+        private final PositionedReadable _in;
+        private final String _path;
+        private final long _modificationTime;
+        private final long _length;
+
+        CachedFile( final PositionedReadable in, final String path, final long modificationTime, final long length ) {
+            _in = in;
+            _path = path;
+            _modificationTime = modificationTime;
+            _length = length;
+        }
+
+        ChunkKey key( final long chunkIndex ) {
+            return new ChunkKey( _path, _modificationTime, chunkIndex );
+        }
+    }
+
+    private static final class ChunkKey {
+        private final String _path;
+        private final long _modificationTime;
+        private final long _chunkIndex;
+
+        ChunkKey( final String path, final long modificationTime, final long chunkIndex ) {
+            _path = path;
+            _modificationTime = modificationTime;
+            _chunkIndex = chunkIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = _path.hashCode();
+            result = 31 * result + (int) ( _modificationTime ^ ( _modificationTime >>> 32 ) );
+            result = 31 * result + (int) ( _chunkIndex ^ ( _chunkIndex >>> 32 ) );
+            return result;
+        }
+
+        @Override
+        public boolean equals( final Object obj ) {
+            if ( !( obj instanceof ChunkKey ) ) {
+                return false;
+            }
+            final ChunkKey other = (ChunkKey) obj;
+            return _chunkIndex == other._chunkIndex && _modificationTime == other._modificationTime && _path.equals( other._path );
+        }
+
+        @Override
+        public String toString() {
+            return _path + "@" + _modificationTime + "#" + _chunkIndex;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.thriftfs.api.CacheStats;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocol;
+
+/**
+ * Pool of byte arrays in size classes (powers of two from 4 KiB up to
+ * {@link HdfsService#MAX_READ_SIZE}), so the data path does not allocate a
+ * buffer per call. Free buffers are kept per class on a plain array stack, up
+ * to a total of <code>maxRetainedBytes</code>; beyond that released buffers
+ * are left to the garbage collector.
+ *
+ * Buffers handed to thrift as a call's result must live until the reply is
+ * written: {@link #acquireForCall(int)} returns them to the pool once the
+ * processor wrapped by {@link #releasingAfterCall(TProcessor)} finished the
+ * call. The buffers are heap arrays: thrift 0.9's binary protocol writes
+ * binary fields from their backing array only.
+ *
+ * @author Axel Mannhardt
+ */
+final class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 31 - Integer.numberOfLeadingZeros( HdfsService.MAX_READ_SIZE );
+
+    private final long _maxRetainedBytes;
+    private final AtomicLong _retainedBytes = new AtomicLong();
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+    private final SizeClass[] _classes = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    /** Buffers of the current call, null outside of a call. */
+    private final ThreadLocal<List<byte[]>> _callBuffers = new ThreadLocal<List<byte[]>>();
+
+    BufferPool( final long maxRetainedBytes ) {
+        _maxRetainedBytes = maxRetainedBytes;
+        for ( int i = 0; i < _classes.length; i++ ) {
+            _classes[i] = new SizeClass( 1 << ( MIN_CLASS_SHIFT + i ) );
+        }
+    }
+
+    /**
+     * A buffer of at least <code>length</code> bytes, with undefined content.
+     */
+    byte[] acquire( final int length ) {
+        final SizeClass sizeClass = sizeClass( length );
+        final byte[] buffer = sizeClass == null ? null : sizeClass.pop();
+        if ( buffer == null ) {
+            _misses.increment();
+            return new byte[sizeClass == null ? length : sizeClass._size];
+        }
+        _hits.increment();
+        _retainedBytes.addAndGet( -buffer.length );
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer of {@link #acquire(int)}, which must not be used
+     * afterwards.
+     */
+    void release( final byte[] buffer ) {
+        final SizeClass sizeClass = sizeClass( buffer.length );
+        if ( sizeClass == null || sizeClass._size != buffer.length ) {
+            return;
+        }
+        if ( _retainedBytes.addAndGet( buffer.length ) > _maxRetainedBytes ) {
+            _retainedBytes.addAndGet( -buffer.length );
+            _dropped.increment();
+            return;
+        }
+        sizeClass.push( buffer );
+    }
+
+    /**
+     * As {@link #acquire(int)}, released when the current call is done - or
+     * never, outside of a call of a {@link #releasingAfterCall(TProcessor)}
+     * processor.
+     */
+    byte[] acquireForCall( final int length ) {
+        final byte[] buffer = acquire( length );
+        final List<byte[]> callBuffers = _callBuffers.get();
+        if ( callBuffers != null ) {
+            callBuffers.add( buffer );
+        }
+        return buffer;
+    }
+
+    /**
+     * Wraps the processor so the buffers a call acquired with
+     * {@link #acquireForCall(int)} are released after its reply was written.
+     */
+    TProcessor releasingAfterCall( final TProcessor processor ) {
+        return new TProcessor() {
+            @Override
+            public boolean process( final TProtocol in, final TProtocol out ) throws TException {
+                List<byte[]> callBuffers = _callBuffers.get();
+                if ( callBuffers == null ) {
+                    callBuffers = new ArrayList<byte[]>( 2 );
+                    _callBuffers.set( callBuffers );
+                }
+                try {
+                    return processor.process( in, out );
+                } finally {
+                    for ( int i = 0; i < callBuffers.size(); i++ ) {
+                        release( callBuffers.get( i ) );
+                    }
+                    callBuffers.clear();
+                }
+            }
+        };
+    }
+
+    /**
+     * Hits are buffers reused, misses buffers allocated, evictions buffers
+     * dropped on release; size and capacity are in bytes.
+     */
+    CacheStats stats() {
+        return new CacheStats( _hits.sum(), _misses.sum(), _dropped.sum(), _retainedBytes.get(), _maxRetainedBytes );
+    }
+
+    private SizeClass sizeClass( final int length ) {
+        if ( length > 1 << MAX_CLASS_SHIFT ) {
+            return null;
+        }
+        final int shift = length <= 1 << MIN_CLASS_SHIFT ? MIN_CLASS_SHIFT : 32 - Integer.numberOfLeadingZeros( length - 1 );
+        return _classes[shift - MIN_CLASS_SHIFT];
+    }
+
+    /**
+     * The free buffers of one size, a stack growing by doubling.
+     */
+    private static final class SizeClass {
+        private final int _size;
+        private byte[][] _free = new byte[4][];
+        private int _count;
+
+        SizeClass( final int size ) {
+            _size = size;
+        }
+
+        synchronized byte[] pop() {
+            if ( _count == 0 ) {
+                return null;
+            }
+            final byte[] buffer = _free[--_count];
+            _free[_count] = null;
+            return buffer;
+        }
+
+        synchronized void push( final byte[] buffer ) {
+            if ( _count == _free.length ) {
+                final byte[][] grown = new byte[2 * _count][];
+                System.arraycopy( _free, 0, grown, 0, _count );
+                _free = grown;
+            }
+            _free[_count++] = buffer;
+        }
+    }
+
+}
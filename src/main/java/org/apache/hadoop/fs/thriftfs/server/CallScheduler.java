@@ -0,0 +1,245 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admission control of the rpcs by {@link Lane}: every lane runs at most its
+ * concurrency of calls at a time, so a burst of bulk reads and writes cannot
+ * take the capacity the cheap metadata calls need. Calls beyond the
+ * concurrency wait on the worker thread that read them, in a queue per client;
+ * a freed slot goes to the clients in turn (round robin), so a client issuing
+ * many calls does not delay the others. A full lane sheds load: the newest
+ * call of the client with the most waiting calls is rejected, or the arriving
+ * call if its client has as many.
+ *
+ * Waiting calls hold their worker thread. If the calls of all connections
+ * share a bounded pool of workers (the non blocking engines), a lane may hold
+ * only the workers the other lanes do not need: the others keep their
+ * concurrency (one worker if unlimited), the lane's concurrency and queue are
+ * cut down to the rest, so a saturated lane cannot starve the others.
+ *
+ * @author Axel Mannhardt
+ */
+final class CallScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger( CallScheduler.class );
+
+    /**
+     * The classes of rpcs scheduled independently.
+     */
+    enum Lane {
+        /** Namespace calls: stat, listings, block locations, open, create... */
+        METADATA,
+        /** Calls moving file content. */
+        DATA,
+        /** Monitoring and server control. */
+        ADMIN;
+
+        private static final Set<String> DATA_RPCS = new HashSet<String>( Arrays.asList( "read", "pread", "preadParallel",
+                "write", "writeBytes", "writeBatch", "closeWriteHandle", "scan", "uploadPart", "completeUpload" ) );
+        private static final Set<String> ADMIN_RPCS = new HashSet<String>( Arrays.asList( "getServerStats", "getCacheStats",
+                "setInactivityTimeoutPeriod", "shutdown" ) );
+
+        static Lane of( final String rpc ) {
+            if ( DATA_RPCS.contains( rpc ) ) {
+                return DATA;
+            }
+            if ( ADMIN_RPCS.contains( rpc ) ) {
+                return ADMIN;
+            }
+            return METADATA;
+        }
+
+        String label() {
+            return name().toLowerCase( Locale.ROOT );
+        }
+    }
+
+    private final Map<Lane, LaneQueue> _lanes = new EnumMap<Lane, LaneQueue>( Lane.class );
+
+    /**
+     * Concurrency and queue length as of the options, a concurrency of 0 does
+     * not limit the lane.
+     *
+     * @param sharedWorkers the worker threads the calls of all connections
+     *            share, 0 if every connection has its own thread
+     */
+    CallScheduler( final ServiceOptions options, final int sharedWorkers ) {
+        final Map<Lane, Integer> concurrency = new EnumMap<Lane, Integer>( Lane.class );
+        concurrency.put( Lane.METADATA, Integer.valueOf( options.metadataConcurrency() ) );
+        concurrency.put( Lane.DATA, Integer.valueOf( options.dataConcurrency() ) );
+        concurrency.put( Lane.ADMIN, Integer.valueOf( options.adminConcurrency() ) );
+        for ( final Lane lane : Lane.values() ) {
+            int laneConcurrency = concurrency.get( lane ).intValue();
+            int maxQueued = options.laneQueueLength();
+            if ( laneConcurrency > 0 && sharedWorkers > 0 ) {
+                int reserved = 0;
+                for ( final Lane other : Lane.values() ) {
+                    if ( other != lane ) {
+                        reserved += Math.max( 1, concurrency.get( other ).intValue() );
+                    }
+                }
+                final int workers = Math.max( 1, sharedWorkers - reserved );
+                if ( laneConcurrency + maxQueued > workers ) {
+                    laneConcurrency = Math.min( laneConcurrency, workers );
+                    maxQueued = workers - laneConcurrency;
+                    LOG.warn( lane.label() + " lane limited to " + laneConcurrency + " running and " + maxQueued + " waiting calls, "
+                            + reserved + " of " + sharedWorkers + " workers are kept for the other lanes" );
+                }
+            }
+            _lanes.put( lane, new LaneQueue( laneConcurrency, maxQueued ) );
+        }
+    }
+
+    /**
+     * Waits for a slot of the lane, to be returned by {@link #release(Lane)}.
+     *
+     * @param client identifies the caller, e.g. its connection
+     * @return false if the call was rejected (no slot taken)
+     */
+    boolean acquire( final Lane lane, final Object client ) {
+        return _lanes.get( lane ).acquire( client );
+    }
+
+    void release( final Lane lane ) {
+        _lanes.get( lane ).release();
+    }
+
+    private static final class LaneQueue {
+        private final int _concurrency;
+        private final int _maxQueued;
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Map<Object, ArrayDeque<Waiter>> _waiting = new HashMap<Object, ArrayDeque<Waiter>>();
+        /** Clients with waiting calls, in the order they get the next slot. */
+        private final ArrayDeque<Object> _turns = new ArrayDeque<Object>();
+        private int _running;
+        private int _queued;
+
+        LaneQueue( final int concurrency, final int maxQueued ) {
+            _concurrency = concurrency;
+            _maxQueued = maxQueued;
+        }
+
+        boolean acquire( final Object client ) {
+            if ( _concurrency == 0 ) {
+                return true;
+            }
+            final Waiter waiter;
+            _lock.lock();
+            try {
+                if ( _running < _concurrency && _queued == 0 ) {
+                    _running++;
+                    return true;
+                }
+                ArrayDeque<Waiter> queue = _waiting.get( client );
+                final int ownQueued = queue == null ? 0 : queue.size();
+                if ( _queued >= _maxQueued && !shedLongestQueue( ownQueued + 1 ) ) {
+                    return false;
+                }
+                if ( queue == null ) {
+                    queue = new ArrayDeque<Waiter>();
+                    _waiting.put( client, queue );
+                    _turns.addLast( client );
+                }
+                waiter = new Waiter( _lock.newCondition() );
+                queue.addLast( waiter );
+                _queued++;
+                while ( waiter._state == Waiter.WAITING ) {
+                    waiter._signal.awaitUninterruptibly();
+                }
+            } finally {
+                _lock.unlock();
+            }
+            return waiter._state == Waiter.GRANTED;
+        }
+
+        /**
+         * Rejects the newest call of the client with the longest queue, if
+         * that queue is longer than the given length.
+         */
+        private boolean shedLongestQueue( final int length ) {
+            ArrayDeque<Waiter> longest = null;
+            Object longestClient = null;
+            for ( final Map.Entry<Object, ArrayDeque<Waiter>> entry : _waiting.entrySet() ) {
+                if ( longest == null || entry.getValue().size() > longest.size() ) {
+                    longest = entry.getValue();
+                    longestClient = entry.getKey();
+                }
+            }
+            if ( longest == null || longest.size() <= length ) {
+                return false;
+            }
+            longest.removeLast().finish( Waiter.REJECTED );
+            _queued--;
+            if ( longest.isEmpty() ) {
+                forget( longestClient );
+            }
+            return true;
+        }
+
+        void release() {
+            if ( _concurrency == 0 ) {
+                return;
+            }
+            _lock.lock();
+            try {
+                final Object client = _turns.pollFirst();
+                if ( client == null ) {
+                    _running--;
+                    return;
+                }
+                // the slot passes to the next client's oldest call
+                final ArrayDeque<Waiter> queue = _waiting.get( client );
+                queue.removeFirst().finish( Waiter.GRANTED );
+                _queued--;
+                if ( queue.isEmpty() ) {
+                    _waiting.remove( client );
+                } else {
+                    _turns.addLast( client );
+                }
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        private void forget( final Object client ) {
+            _waiting.remove( client );
+            _turns.removeAll( Collections.singleton( client ) );
+        }
+    }
+
+    /**
+     * A waiting call, finished under the lane's lock.
+     */
+    private static final class Waiter {
+        static final int WAITING = 0;
+        static final int GRANTED = 1;
+        static final int REJECTED = 2;
+
+        private final Condition _signal;
+        private int _state = WAITING;
+
+        Waiter( final Condition signal ) {
+            _signal = signal;
+        }
+
+        void finish( final int state ) {
+            _state = state;
+            _signal.signal();
+        }
+    }
+
+}
@@ -0,0 +1,722 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+
+/**
+ * Points in a compressed file where decompression can start: pairs of a
+ * compressed and an uncompressed offset, ascending. The first checkpoint is
+ * always the start of the file.
+ *
+ * Decompression restarts without carrying decoder state at bzip2 block
+ * boundaries and at gzip member boundaries. Within a gzip member the index
+ * keeps checkpoints at deflate block boundaries as zlib's zran example does:
+ * the bit the block starts at and the 32 KiB of output before it, which back
+ * references of the following blocks may reach; a raw inflater primed with
+ * that window as dictionary continues there (see
+ * {@link GzipResumeInputStream}). Windows are stored deflated. Checkpoints
+ * closer than the minimum interval are dropped to keep the index small.
+ *
+ * @author Axel Mannhardt
+ */
+final class CheckpointIndex {
+
+    /** Decompression from the start only, for any codec. */
+    static final CheckpointIndex START = new CheckpointIndex( new long[] { 0 }, new long[] { 0 }, 1 );
+
+    /** Version 1 had member and block boundaries only, no windows. */
+    private static final int FORMAT_VERSION = 2;
+    /** Back references of deflate reach this far. */
+    static final int WINDOW_BYTES = 32 * 1024;
+    private static final long BZIP2_BLOCK_MAGIC = 0x314159265359L;
+    /** How far before the position hadoop reports for a bzip2 block its marker is searched. */
+    private static final int BZIP2_MARKER_SEARCH_BYTES = 64;
+
+    private final long[] _compressed;
+    private final long[] _uncompressed;
+    /** Per checkpoint, the first bit of the block in the byte at its compressed offset. */
+    private final byte[] _bits;
+    /** Per checkpoint, the deflated window of a checkpoint within a gzip member, else <code>null</code>. */
+    private final byte[][] _windows;
+    /** Per checkpoint with a window, the offset of the next gzip member. */
+    private final long[] _memberEnds;
+    private final int _size;
+
+    private CheckpointIndex( final long[] compressed, final long[] uncompressed, final int size ) {
+        this( compressed, uncompressed, new byte[size], new byte[size][], new long[size], size );
+    }
+
+    private CheckpointIndex( final long[] compressed, final long[] uncompressed, final byte[] bits, final byte[][] windows,
+            final long[] memberEnds, final int size ) {
+        _compressed = compressed;
+        _uncompressed = uncompressed;
+        _bits = bits;
+        _windows = windows;
+        _memberEnds = memberEnds;
+        _size = size;
+    }
+
+    /**
+     * Whether an index with more than the start can be built for the codec.
+     */
+    static boolean supports( final CompressionCodec codec ) {
+        return codec instanceof GzipCodec || codec instanceof BZip2Codec;
+    }
+
+    int size() {
+        return _size;
+    }
+
+    long compressedOffset( final int checkpoint ) {
+        return _compressed[checkpoint];
+    }
+
+    long uncompressedOffset( final int checkpoint ) {
+        return _uncompressed[checkpoint];
+    }
+
+    /**
+     * Whether the checkpoint is within a gzip member, to be resumed with its
+     * window rather than decompressed from there by the codec.
+     */
+    boolean hasWindow( final int checkpoint ) {
+        return _windows[checkpoint] != null;
+    }
+
+    /**
+     * The bit (0 to 7, least significant first as deflate counts) of the byte
+     * at the compressed offset the checkpoint's block starts at.
+     */
+    int bitOffset( final int checkpoint ) {
+        return _bits[checkpoint];
+    }
+
+    /**
+     * The up to 32 KiB of uncompressed data before a checkpoint with a
+     * window.
+     */
+    byte[] window( final int checkpoint ) throws IOException {
+        final Inflater inflater = new Inflater( true );
+        try {
+            inflater.setInput( _windows[checkpoint] );
+            final byte[] window = new byte[WINDOW_BYTES];
+            int length = 0;
+            while ( !inflater.finished() && length < window.length ) {
+                final int n = inflater.inflate( window, length, window.length - length );
+                if ( n == 0 && inflater.needsInput() ) {
+                    throw new IOException( "truncated checkpoint window" );
+                }
+                length += n;
+            }
+            return Arrays.copyOf( window, length );
+        } catch ( final DataFormatException e ) {
+            throw new IOException( "corrupt checkpoint window: " + e.getMessage(), e );
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * The compressed offset of the gzip member following the one of a
+     * checkpoint with a window.
+     */
+    long memberEnd( final int checkpoint ) {
+        return _memberEnds[checkpoint];
+    }
+
+    /**
+     * The last checkpoint at or before the uncompressed offset.
+     */
+    int floor( final long uncompressedOffset ) {
+        final int found = Arrays.binarySearch( _uncompressed, 0, _size, uncompressedOffset );
+        return found >= 0 ? found : -found - 2;
+    }
+
+    void writeTo( final DataOutput out ) throws IOException {
+        out.writeInt( FORMAT_VERSION );
+        out.writeInt( _size );
+        for ( int i = 0; i < _size; i++ ) {
+            out.writeLong( _compressed[i] );
+            out.writeLong( _uncompressed[i] );
+            if ( _windows[i] == null ) {
+                out.writeInt( -1 );
+            } else {
+                out.writeInt( _windows[i].length );
+                out.write( _windows[i] );
+                out.writeByte( _bits[i] );
+                out.writeLong( _memberEnds[i] );
+            }
+        }
+    }
+
+    static CheckpointIndex readFrom( final DataInput in ) throws IOException {
+        final int version = in.readInt();
+        if ( version != FORMAT_VERSION && version != 1 ) {
+            throw new IOException( "unknown checkpoint index version " + version );
+        }
+        final int size = in.readInt();
+        final long[] compressed = new long[size];
+        final long[] uncompressed = new long[size];
+        final byte[] bits = new byte[size];
+        final byte[][] windows = new byte[size][];
+        final long[] memberEnds = new long[size];
+        for ( int i = 0; i < size; i++ ) {
+            compressed[i] = in.readLong();
+            uncompressed[i] = in.readLong();
+            final int windowLength = version == 1 ? -1 : in.readInt();
+            if ( windowLength >= 0 ) {
+                windows[i] = new byte[windowLength];
+                in.readFully( windows[i] );
+                bits[i] = in.readByte();
+                memberEnds[i] = in.readLong();
+            }
+        }
+        return new CheckpointIndex( compressed, uncompressed, bits, windows, memberEnds, size );
+    }
+
+    /**
+     * Scans a whole gzip file (<code>in</code> at its start) for member and
+     * deflate block boundaries. The members are inflated by
+     * {@link BlockInflater}, as <code>java.util.zip</code> does not tell where
+     * blocks start.
+     */
+    static CheckpointIndex buildGzip( final InputStream in, final long minInterval ) throws IOException {
+        final Builder builder = new Builder( minInterval );
+        final ByteSource source = new ByteSource( in );
+        final BlockInflater inflater = new BlockInflater( source );
+        long uncompressed = 0;
+        while ( source.hasMore() ) {
+            builder.add( source.position(), uncompressed );
+            source.skipGzipHeader();
+            uncompressed = inflater.inflateMember( uncompressed, builder );
+            source.skip( 8 );
+            builder.endMember( source.position() );
+        }
+        return builder.build();
+    }
+
+    /**
+     * Decompresses a whole bzip2 file block by block and records where each
+     * block starts.
+     */
+    static CheckpointIndex buildBzip2( final SplitCompressionInputStream blocks, final FSDataInputStream raw,
+            final long minInterval ) throws IOException {
+        final Builder builder = new Builder( minInterval );
+        builder.add( 0, 0 );
+        final byte[] discard = new byte[64 * 1024];
+        long uncompressed = 0;
+        long reported = blocks.getPos();
+        int n;
+        while ( ( n = blocks.read( discard, 0, discard.length ) ) >= 0 ) {
+            final long position = blocks.getPos();
+            if ( position != reported && n > 0 ) {
+                // hadoop reports a new position with the first byte of the next block
+                builder.add( bzip2MarkerBefore( raw, position ), uncompressed );
+                reported = position;
+            }
+            uncompressed += n;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Byte offset of the last bzip2 block marker starting before
+     * <code>position</code>. Hadoop's splittable reader started there finds
+     * that very block.
+     */
+    private static long bzip2MarkerBefore( final FSDataInputStream raw, final long position ) throws IOException {
+        final long from = Math.max( 0, position - BZIP2_MARKER_SEARCH_BYTES );
+        final byte[] window = new byte[(int) ( position - from )];
+        raw.readFully( from, window );
+        for ( long bit = 8L * window.length - 48; bit >= 0; bit-- ) {
+            if ( readBits( window, bit, 48 ) == BZIP2_BLOCK_MAGIC ) {
+                return from + ( bit >>> 3 );
+            }
+        }
+        throw new IOException( "no bzip2 block marker before offset " + position );
+    }
+
+    private static long readBits( final byte[] source, final long position, final int bits ) {
+        long value = 0;
+        final int first = (int) ( position >>> 3 );
+        final int last = (int) ( ( position + bits - 1 ) >>> 3 );
+        for ( int i = first; i <= last; i++ ) {
+            value = ( value << 8 ) | ( source[i] & 0xff );
+        }
+        final int trailing = (int) ( 8L * ( last + 1 ) - ( position + bits ) );
+        return ( value >>> trailing ) & ( ( 1L << bits ) - 1 );
+    }
+
+    /**
+     * @return the stream for {@link #buildBzip2}, reading from the start
+     */
+    static SplitCompressionInputStream bzip2Blocks( final SplittableCompressionCodec codec, final FSDataInputStream raw,
+            final long length ) throws IOException {
+        return codec.createInputStream( raw, codec.createDecompressor(), 0, length, SplittableCompressionCodec.READ_MODE.BYBLOCK );
+    }
+
+    private static final class Builder {
+        private final long _minInterval;
+        private long[] _compressed = new long[16];
+        private long[] _uncompressed = new long[16];
+        private byte[] _bits = new byte[16];
+        private byte[][] _windows = new byte[16][];
+        private long[] _memberEnds = new long[16];
+        private int _size;
+        /** The first checkpoint with a window in the current gzip member. */
+        private int _memberStart;
+
+        Builder( final long minInterval ) {
+            _minInterval = minInterval;
+        }
+
+        boolean wants( final long uncompressed ) {
+            return _size == 0 || uncompressed - _uncompressed[_size - 1] >= _minInterval;
+        }
+
+        void add( final long compressed, final long uncompressed ) {
+            if ( wants( uncompressed ) ) {
+                append( compressed, uncompressed );
+            }
+        }
+
+        /**
+         * Adds a checkpoint within a gzip member, if it is far enough from the
+         * last one.
+         */
+        void addWithWindow( final long compressed, final int bit, final long uncompressed, final byte[] window, final int length ) {
+            if ( wants( uncompressed ) ) {
+                append( compressed, uncompressed );
+                _bits[_size - 1] = (byte) bit;
+                _windows[_size - 1] = deflate( window, length );
+            }
+        }
+
+        /**
+         * Ends the gzip member the last checkpoints with a window are in.
+         */
+        void endMember( final long nextMember ) {
+            for ( int i = _memberStart; i < _size; i++ ) {
+                _memberEnds[i] = nextMember;
+            }
+            _memberStart = _size;
+        }
+
+        private void append( final long compressed, final long uncompressed ) {
+            if ( _size == _compressed.length ) {
+                _compressed = Arrays.copyOf( _compressed, 2 * _size );
+                _uncompressed = Arrays.copyOf( _uncompressed, 2 * _size );
+                _bits = Arrays.copyOf( _bits, 2 * _size );
+                _windows = Arrays.copyOf( _windows, 2 * _size );
+                _memberEnds = Arrays.copyOf( _memberEnds, 2 * _size );
+            }
+            _compressed[_size] = compressed;
+            _uncompressed[_size] = uncompressed;
+            _size++;
+        }
+
+        private static byte[] deflate( final byte[] window, final int length ) {
+            final Deflater deflater = new Deflater( Deflater.BEST_SPEED, true );
+            try {
+                deflater.setInput( window, 0, length );
+                deflater.finish();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream( length / 2 );
+                final byte[] buffer = new byte[8 * 1024];
+                while ( !deflater.finished() ) {
+                    out.write( buffer, 0, deflater.deflate( buffer ) );
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        CheckpointIndex build() {
+            if ( _size == 0 ) {
+                return START;
+            }
+            return new CheckpointIndex( _compressed, _uncompressed, _bits, _windows, _memberEnds, _size );
+        }
+    }
+
+    /**
+     * Inflates deflate data of a gzip member read from a {@link ByteSource},
+     * tracking the bit every block starts at and the last 32 KiB of output
+     * (RFC 1951, decoding as zlib's puff does, with a lookup table for the
+     * short codes). Only used to build indexes, the output is discarded.
+     */
+    private static final class BlockInflater {
+        private static final int MAX_BITS = 15;
+        private static final int FAST_BITS = 9;
+        private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67,
+                83, 99, 115, 131, 163, 195, 227, 258 };
+        private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5,
+                5, 5, 0 };
+        private static final int[] DISTANCE_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513,
+                769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+        private static final int[] DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10,
+                11, 11, 12, 12, 13, 13 };
+        /** Order of the code length code lengths in a dynamic block header. */
+        private static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+        private static final Huffman FIXED_LITERALS;
+        private static final Huffman FIXED_DISTANCES;
+
+        static {
+            final int[] lengths = new int[288];
+            Arrays.fill( lengths, 0, 144, 8 );
+            Arrays.fill( lengths, 144, 256, 9 );
+            Arrays.fill( lengths, 256, 280, 7 );
+            Arrays.fill( lengths, 280, 288, 8 );
+            FIXED_LITERALS = new Huffman( lengths, 288 );
+            Arrays.fill( lengths, 0, 30, 5 );
+            FIXED_DISTANCES = new Huffman( lengths, 30 );
+        }
+
+        private final ByteSource _source;
+        private final byte[] _window = new byte[WINDOW_BYTES];
+        private final byte[] _linearWindow = new byte[WINDOW_BYTES];
+        /** Bytes inflated in the current member, the window holds the last of them. */
+        private long _output;
+        private long _bits;
+        private int _bitCount;
+
+        BlockInflater( final ByteSource source ) {
+            _source = source;
+        }
+
+        /**
+         * Inflates the member at the source's position, adds a checkpoint
+         * with window at the blocks but the first, leaves the source after
+         * the deflate data.
+         *
+         * @return the uncompressed offset after the member
+         */
+        long inflateMember( final long uncompressedStart, final Builder builder ) throws IOException {
+            _output = 0;
+            _bits = 0;
+            _bitCount = 0;
+            boolean last;
+            do {
+                if ( _output > 0 && builder.wants( uncompressedStart + _output ) ) {
+                    final long bit = 8 * _source.position() - _bitCount;
+                    builder.addWithWindow( bit >>> 3, (int) ( bit & 7 ), uncompressedStart + _output, linearWindow(),
+                            (int) Math.min( _output, WINDOW_BYTES ) );
+                }
+                last = bits( 1 ) == 1;
+                final int type = bits( 2 );
+                if ( type == 0 ) {
+                    stored();
+                } else if ( type == 1 ) {
+                    codes( FIXED_LITERALS, FIXED_DISTANCES );
+                } else if ( type == 2 ) {
+                    dynamic();
+                } else {
+                    throw corrupt( "invalid block type" );
+                }
+            } while ( !last );
+            // the rest of the last byte is padding, whole bytes read ahead belong to the trailer
+            _source.giveBack( _bitCount >>> 3 );
+            _bits = 0;
+            _bitCount = 0;
+            return uncompressedStart + _output;
+        }
+
+        private byte[] linearWindow() {
+            final int length = (int) Math.min( _output, WINDOW_BYTES );
+            final int end = (int) ( _output & ( WINDOW_BYTES - 1 ) );
+            if ( length <= end ) {
+                System.arraycopy( _window, end - length, _linearWindow, 0, length );
+            } else {
+                final int wrapped = length - end;
+                System.arraycopy( _window, WINDOW_BYTES - wrapped, _linearWindow, 0, wrapped );
+                System.arraycopy( _window, 0, _linearWindow, wrapped, end );
+            }
+            return _linearWindow;
+        }
+
+        private void stored() throws IOException {
+            _bits >>>= _bitCount & 7;
+            _bitCount -= _bitCount & 7;
+            final int length = bits( 16 );
+            if ( ( length ^ 0xffff ) != bits( 16 ) ) {
+                throw corrupt( "stored block length does not match its complement" );
+            }
+            for ( int i = 0; i < length; i++ ) {
+                output( (byte) bits( 8 ) );
+            }
+        }
+
+        private void dynamic() throws IOException {
+            final int literalCodes = bits( 5 ) + 257;
+            final int distanceCodes = bits( 5 ) + 1;
+            final int codeLengthCodes = bits( 4 ) + 4;
+            if ( literalCodes > 286 || distanceCodes > 30 ) {
+                throw corrupt( "too many length or distance codes" );
+            }
+            final int[] lengths = new int[286 + 30];
+            for ( int i = 0; i < codeLengthCodes; i++ ) {
+                lengths[CODE_LENGTH_ORDER[i]] = bits( 3 );
+            }
+            final Huffman codeLengths = new Huffman( lengths, 19 );
+            Arrays.fill( lengths, 0, 19, 0 );
+            int index = 0;
+            while ( index < literalCodes + distanceCodes ) {
+                final int symbol = decode( codeLengths );
+                if ( symbol < 16 ) {
+                    lengths[index++] = symbol;
+                    continue;
+                }
+                int repeated = 0;
+                final int times;
+                if ( symbol == 16 ) {
+                    if ( index == 0 ) {
+                        throw corrupt( "repeated code length without a previous one" );
+                    }
+                    repeated = lengths[index - 1];
+                    times = 3 + bits( 2 );
+                } else if ( symbol == 17 ) {
+                    times = 3 + bits( 3 );
+                } else {
+                    times = 11 + bits( 7 );
+                }
+                if ( index + times > literalCodes + distanceCodes ) {
+                    throw corrupt( "too many code lengths" );
+                }
+                Arrays.fill( lengths, index, index + times, repeated );
+                index += times;
+            }
+            if ( lengths[256] == 0 ) {
+                throw corrupt( "no end of block code" );
+            }
+            final Huffman literals = new Huffman( lengths, literalCodes );
+            final Huffman distances = new Huffman( Arrays.copyOfRange( lengths, literalCodes, literalCodes + distanceCodes ),
+                    distanceCodes );
+            codes( literals, distances );
+        }
+
+        private void codes( final Huffman literals, final Huffman distances ) throws IOException {
+            while ( true ) {
+                int symbol = decode( literals );
+                if ( symbol < 256 ) {
+                    output( (byte) symbol );
+                } else if ( symbol == 256 ) {
+                    return;
+                } else {
+                    symbol -= 257;
+                    if ( symbol >= LENGTH_BASE.length ) {
+                        throw corrupt( "invalid length code" );
+                    }
+                    final int length = LENGTH_BASE[symbol] + bits( LENGTH_EXTRA[symbol] );
+                    final int distanceSymbol = decode( distances );
+                    if ( distanceSymbol >= DISTANCE_BASE.length ) {
+                        throw corrupt( "invalid distance code" );
+                    }
+                    final int distance = DISTANCE_BASE[distanceSymbol] + bits( DISTANCE_EXTRA[distanceSymbol] );
+                    if ( distance > _output ) {
+                        throw corrupt( "distance too far back" );
+                    }
+                    for ( int i = 0; i < length; i++ ) {
+                        output( _window[(int) ( ( _output - distance ) & ( WINDOW_BYTES - 1 ) )] );
+                    }
+                }
+            }
+        }
+
+        private void output( final byte b ) {
+            _window[(int) ( _output & ( WINDOW_BYTES - 1 ) )] = b;
+            _output++;
+        }
+
+        private int decode( final Huffman huffman ) throws IOException {
+            while ( _bitCount < FAST_BITS && _source.hasMore() ) {
+                _bits |= (long) _source.next() << _bitCount;
+                _bitCount += 8;
+            }
+            final int entry = huffman._fast[(int) ( _bits & ( ( 1 << FAST_BITS ) - 1 ) )];
+            if ( entry != 0 && ( entry & 0xf ) <= _bitCount ) {
+                _bits >>>= entry & 0xf;
+                _bitCount -= entry & 0xf;
+                return entry >>> 4;
+            }
+            // a code longer than the table, bit by bit (huffman codes are stored most significant bit first)
+            int code = 0;
+            int first = 0;
+            int index = 0;
+            for ( int length = 1; length <= MAX_BITS; length++ ) {
+                code |= bits( 1 );
+                final int count = huffman._counts[length];
+                if ( code - count < first ) {
+                    return huffman._symbols[index + ( code - first )];
+                }
+                index += count;
+                first += count;
+                first <<= 1;
+                code <<= 1;
+            }
+            throw corrupt( "invalid huffman code" );
+        }
+
+        private int bits( final int count ) throws IOException {
+            while ( _bitCount < count ) {
+                _bits |= (long) _source.next() << _bitCount;
+                _bitCount += 8;
+            }
+            final int value = (int) ( _bits & ( ( 1L << count ) - 1 ) );
+            _bits >>>= count;
+            _bitCount -= count;
+            return value;
+        }
+
+        private IOException corrupt( final String what ) {
+            return new IOException( "corrupt gzip data at offset " + _source.position() + ": " + what );
+        }
+    }
+
+    /**
+     * A canonical huffman code: code counts per length and the symbols
+     * ordered by code, plus a table of the codes up to
+     * {@link BlockInflater#FAST_BITS} bits, indexed by their bits as read
+     * (reversed), holding symbol and length.
+     */
+    private static final class Huffman {
+        private final int[] _counts = new int[BlockInflater.MAX_BITS + 1];
+        private final int[] _symbols;
+        private final int[] _fast = new int[1 << BlockInflater.FAST_BITS];
+
+        Huffman( final int[] lengths, final int symbols ) {
+            _symbols = new int[symbols];
+            for ( int symbol = 0; symbol < symbols; symbol++ ) {
+                _counts[lengths[symbol]]++;
+            }
+            _counts[0] = 0;
+            final int[] offsets = new int[BlockInflater.MAX_BITS + 2];
+            for ( int length = 1; length <= BlockInflater.MAX_BITS; length++ ) {
+                offsets[length + 1] = offsets[length] + _counts[length];
+            }
+            for ( int symbol = 0; symbol < symbols; symbol++ ) {
+                if ( lengths[symbol] != 0 ) {
+                    _symbols[offsets[lengths[symbol]]++] = symbol;
+                }
+            }
+            int code = 0;
+            int index = 0;
+            for ( int length = 1; length <= BlockInflater.FAST_BITS; length++ ) {
+                for ( int i = 0; i < _counts[length]; i++ ) {
+                    final int reversed = Integer.reverse( code + i ) >>> ( 32 - length );
+                    for ( int fill = reversed; fill < _fast.length; fill += 1 << length ) {
+                        _fast[fill] = _symbols[index + i] << 4 | length;
+                    }
+                }
+                index += _counts[length];
+                code = ( code + _counts[length] ) << 1;
+            }
+        }
+    }
+
+    /**
+     * Buffered reading of the compressed bytes with exact position tracking,
+     * as the inflater reads a few bytes past the end of a member.
+     */
+    private static final class ByteSource {
+        private static final int FLAG_HCRC = 2;
+        private static final int FLAG_EXTRA = 4;
+        private static final int FLAG_NAME = 8;
+        private static final int FLAG_COMMENT = 16;
+
+        /** Bytes kept in the buffer when it is refilled, for {@link #giveBack}. */
+        private static final int KEEP = 8;
+
+        private final InputStream _in;
+        private final byte[] _buffer = new byte[64 * 1024];
+        private long _bufferStart;
+        private int _position;
+        private int _limit;
+
+        ByteSource( final InputStream in ) {
+            _in = in;
+        }
+
+        long position() {
+            return _bufferStart + _position;
+        }
+
+        boolean hasMore() throws IOException {
+            return _position < _limit || fill();
+        }
+
+        /**
+         * Steps back over up to {@link #KEEP} bytes read last.
+         */
+        void giveBack( final int bytes ) {
+            _position -= bytes;
+        }
+
+        void skip( final int bytes ) throws IOException {
+            for ( int i = 0; i < bytes; i++ ) {
+                next();
+            }
+        }
+
+        void skipGzipHeader() throws IOException {
+            if ( next() != 0x1f || next() != 0x8b ) {
+                throw new IOException( "not a gzip member at offset " + ( position() - 2 ) );
+            }
+            next(); // method
+            final int flags = next();
+            skip( 6 ); // time, extra flags, os
+            if ( ( flags & FLAG_EXTRA ) != 0 ) {
+                skip( next() | ( next() << 8 ) );
+            }
+            if ( ( flags & FLAG_NAME ) != 0 ) {
+                while ( next() != 0 ) {
+                    // skip the zero terminated name
+                }
+            }
+            if ( ( flags & FLAG_COMMENT ) != 0 ) {
+                while ( next() != 0 ) {
+                    // skip the zero terminated comment
+                }
+            }
+            if ( ( flags & FLAG_HCRC ) != 0 ) {
+                skip( 2 );
+            }
+        }
+
+        int next() throws IOException {
+            if ( !hasMore() ) {
+                throw new EOFException( "truncated gzip member" );
+            }
+            return _buffer[_position++] & 0xff;
+        }
+
+        private boolean fill() throws IOException {
+            final int keep = Math.min( _limit, KEEP );
+            System.arraycopy( _buffer, _limit - keep, _buffer, 0, keep );
+            _bufferStart += _limit - keep;
+            _position = keep;
+            _limit = keep;
+            final int read = _in.read( _buffer, keep, _buffer.length - keep );
+            if ( read <= 0 ) {
+                return false;
+            }
+            _limit += read;
+            return true;
+        }
+    }
+
+}
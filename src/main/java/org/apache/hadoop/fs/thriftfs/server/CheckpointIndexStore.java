@@ -0,0 +1,196 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Builds and caches the {@link CheckpointIndex} of compressed files, keyed by
+ * path, modification time and length, so a rewritten file gets a new index.
+ * An index is built on the first read that needs it (a backward seek or a
+ * long forward skip), concurrent readers of the same file wait for one build.
+ *
+ * With sidecar files enabled an index is also stored next to its file as
+ * <code>.&lt;name&gt;.ckpt</code> and survives restarts; a sidecar not
+ * matching the file's length and modification time is rebuilt. Failing to
+ * write a sidecar (e.g. a read only directory) is logged only.
+ *
+ * @author Axel Mannhardt
+ */
+final class CheckpointIndexStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger( CheckpointIndexStore.class );
+
+    private static final int SIDECAR_MAGIC = 0x434b5054; // "CKPT"
+
+    private final HdfsContext _context;
+    private final Cache<String, CheckpointIndex> _cache;
+    private final long _minInterval;
+    private final boolean _sidecars;
+
+    CheckpointIndexStore( final HdfsContext context, final long maxEntries, final long minInterval, final boolean sidecars ) {
+        _context = context;
+        _cache = CacheBuilder.newBuilder().maximumSize( maxEntries ).build();
+        _minInterval = minInterval;
+        _sidecars = sidecars;
+    }
+
+    /**
+     * The checkpoints of a compressed file, the index is looked up on first
+     * use and kept for the handle's lifetime.
+     */
+    ReadHandle.Checkpoints checkpoints( final FileSystem fs, final Path path, final CompressionCodec codec ) {
+        return new ReadHandle.Checkpoints() {
+            private FileStatus _status;
+            private CheckpointIndex _index;
+
+            @Override
+            public synchronized CheckpointIndex index() throws IOException {
+                if ( _index == null ) {
+                    _status = fs.getFileStatus( path );
+                    _index = get( fs, _status, codec );
+                }
+                return _index;
+            }
+
+            @Override
+            public InputStream open( final CheckpointIndex index, final int checkpoint ) throws IOException {
+                final FSDataInputStream raw = fs.open( path );
+                try {
+                    final long offset = index.compressedOffset( checkpoint );
+                    if ( index.hasWindow( checkpoint ) ) {
+                        return new GzipResumeInputStream( raw, index, checkpoint, _status.getLen(), _context, codec );
+                    }
+                    if ( offset > 0 && codec instanceof SplittableCompressionCodec ) {
+                        return _context.createInputStream( (SplittableCompressionCodec) codec, raw, offset, _status.getLen() );
+                    }
+                    raw.seek( offset );
+                    return _context.createInputStream( codec, raw );
+                } catch ( final IOException | RuntimeException e ) {
+                    IOUtils.closeQuietly( raw );
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private CheckpointIndex get( final FileSystem fs, final FileStatus status, final CompressionCodec codec ) throws IOException {
+        if ( !CheckpointIndex.supports( codec ) ) {
+            return CheckpointIndex.START;
+        }
+        final String key = status.getPath() + "@" + status.getModificationTime() + "@" + status.getLen();
+        try {
+            return _cache.get( key, new Callable<CheckpointIndex>() {
+                @Override
+                public CheckpointIndex call() throws IOException {
+                    return load( fs, status, codec );
+                }
+            } );
+        } catch ( final ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "building the checkpoint index of " + status.getPath() + " failed", e.getCause() );
+        }
+    }
+
+    private CheckpointIndex load( final FileSystem fs, final FileStatus status, final CompressionCodec codec ) throws IOException {
+        final Path sidecar = sidecarOf( status.getPath() );
+        if ( _sidecars ) {
+            final CheckpointIndex stored = readSidecar( fs, sidecar, status );
+            if ( stored != null ) {
+                return stored;
+            }
+        }
+        final long start = System.nanoTime();
+        final CheckpointIndex index = build( fs, status, codec );
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "built checkpoint index of " + status.getPath() + " with " + index.size() + " checkpoints in "
+                    + ( System.nanoTime() - start ) / 1000000 + "ms" );
+        }
+        if ( _sidecars ) {
+            writeSidecar( fs, sidecar, status, index );
+        }
+        return index;
+    }
+
+    private CheckpointIndex build( final FileSystem fs, final FileStatus status, final CompressionCodec codec ) throws IOException {
+        final FSDataInputStream raw = fs.open( status.getPath() );
+        try {
+            if ( codec instanceof GzipCodec ) {
+                return CheckpointIndex.buildGzip( raw, _minInterval );
+            }
+            final FSDataInputStream markers = fs.open( status.getPath() );
+            try {
+                final SplitCompressionInputStream blocks =
+                        CheckpointIndex.bzip2Blocks( (BZip2Codec) codec, raw, status.getLen() );
+                return CheckpointIndex.buildBzip2( blocks, markers, _minInterval );
+            } finally {
+                markers.close();
+            }
+        } finally {
+            raw.close();
+        }
+    }
+
+    private static Path sidecarOf( final Path path ) {
+        return new Path( path.getParent(), "." + path.getName() + ".ckpt" );
+    }
+
+    private static CheckpointIndex readSidecar( final FileSystem fs, final Path sidecar, final FileStatus status ) {
+        try {
+            if ( !fs.exists( sidecar ) ) {
+                return null;
+            }
+            final FSDataInputStream in = fs.open( sidecar );
+            try {
+                if ( in.readInt() != SIDECAR_MAGIC || in.readLong() != status.getLen()
+                        || in.readLong() != status.getModificationTime() ) {
+                    return null;
+                }
+                return CheckpointIndex.readFrom( in );
+            } finally {
+                in.close();
+            }
+        } catch ( final IOException e ) {
+            LOG.warn( "ignoring unreadable checkpoint index " + sidecar + ": " + e.getMessage() );
+            return null;
+        }
+    }
+
+    private static void writeSidecar( final FileSystem fs, final Path sidecar, final FileStatus status,
+            final CheckpointIndex index ) {
+        try {
+            final FSDataOutputStream out = fs.create( sidecar, true );
+            try {
+                out.writeInt( SIDECAR_MAGIC );
+                out.writeLong( status.getLen() );
+                out.writeLong( status.getModificationTime() );
+                index.writeTo( out );
+            } finally {
+                out.close();
+            }
+        } catch ( final IOException e ) {
+            LOG.warn( "could not write checkpoint index " + sidecar + ": " + e.getMessage() );
+        }
+    }
+
+}
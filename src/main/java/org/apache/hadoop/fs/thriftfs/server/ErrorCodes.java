@@ -0,0 +1,77 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.FileNotFoundException;
+
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.PathIsNotEmptyDirectoryException;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.thriftfs.api.ErrorCode;
+import org.apache.hadoop.thriftfs.api.ThriftIOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the {@link ThriftIOException}s of the service: an {@link ErrorCode}
+ * and a short message for the client. Stack traces are not sent, they are
+ * logged at debug level; rendering them for every failure made error storms
+ * expensive.
+ *
+ * @author Axel Mannhardt
+ */
+final class ErrorCodes {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ErrorCodes.class );
+
+    private ErrorCodes() {
+        // no instances for utils
+    }
+
+    static ThriftIOException error( final ErrorCode code, final String message ) {
+        final ThriftIOException error = new ThriftIOException( message );
+        error.setCode( code );
+        return error;
+    }
+
+    /**
+     * The exception's type and message, with the code of its type.
+     */
+    static ThriftIOException wrap( final Exception e ) {
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "call failed", e );
+        }
+        return error( codeOf( e ), describe( e ) );
+    }
+
+    /**
+     * Short form of an exception, for per path errors of a batch.
+     */
+    static String describe( final Exception e ) {
+        return e.getClass().getSimpleName() + ": " + e.getMessage();
+    }
+
+    static ErrorCode codeOf( final Exception e ) {
+        if ( e instanceof FileNotFoundException ) {
+            return ErrorCode.NOT_FOUND;
+        }
+        if ( e instanceof FileAlreadyExistsException ) {
+            return ErrorCode.ALREADY_EXISTS;
+        }
+        if ( e instanceof AccessControlException ) {
+            return ErrorCode.PERMISSION_DENIED;
+        }
+        if ( e instanceof PathIsNotEmptyDirectoryException ) {
+            return ErrorCode.DIRECTORY_NOT_EMPTY;
+        }
+        if ( e instanceof StatelessReadHandles.FileChangedException ) {
+            return ErrorCode.FILE_CHANGED;
+        }
+        if ( e instanceof LineScanner.RegexTooExpensiveException ) {
+            return ErrorCode.LIMIT_EXCEEDED;
+        }
+        if ( e instanceof IllegalArgumentException ) {
+            return ErrorCode.INVALID_ARGUMENT;
+        }
+        return ErrorCode.IO_ERROR;
+    }
+
+}
@@ -0,0 +1,190 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+/**
+ * Decompresses a gzip file from a {@link CheckpointIndex} checkpoint within a
+ * member, as zlib's zran example does: a raw inflater gets the checkpoint's
+ * window as dictionary and the compressed data from the bit the checkpoint's
+ * block starts at. zran skips the bits before it with zlib's inflatePrime,
+ * which <code>java.util.zip</code> lacks: here empty deflate blocks take their
+ * place instead, so the compressed bytes are fed as they are and keep their
+ * alignment (stored blocks are aligned to whole bytes). The rest of the
+ * member is inflated so; the following members are decompressed by the codec.
+ * The trailer of the resumed member is not checked, its checksum covers data
+ * before the checkpoint.
+ *
+ * @author Axel Mannhardt
+ */
+final class GzipResumeInputStream extends InputStream {
+
+    private final FSDataInputStream _raw;
+    private final long _memberEnd;
+    private final long _length;
+    private final HdfsContext _context;
+    private final CompressionCodec _codec;
+    private final Inflater _inflater = new Inflater( true );
+    private final byte[] _input = new byte[64 * 1024];
+    /** Empty blocks ending at the checkpoint's bit, the last byte to be completed by the first compressed byte. */
+    private byte[] _primer;
+    private final int _bit;
+    private InputStream _nextMembers;
+    private boolean _closed;
+
+    /**
+     * @param raw the file, positioned at nothing in particular, closed with
+     *            this stream
+     */
+    GzipResumeInputStream( final FSDataInputStream raw, final CheckpointIndex index, final int checkpoint, final long length,
+            final HdfsContext context, final CompressionCodec codec ) throws IOException {
+        _raw = raw;
+        _memberEnd = index.memberEnd( checkpoint );
+        _length = length;
+        _context = context;
+        _codec = codec;
+        _bit = index.bitOffset( checkpoint );
+        _primer = primer( _bit );
+        try {
+            _inflater.setDictionary( index.window( checkpoint ) );
+            _raw.seek( index.compressedOffset( checkpoint ) );
+        } catch ( final IOException | RuntimeException e ) {
+            _inflater.end();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] one = new byte[1];
+        return read( one, 0, 1 ) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read( final byte[] buffer, final int offset, final int length ) throws IOException {
+        if ( length == 0 ) {
+            return 0;
+        }
+        if ( _nextMembers != null ) {
+            return _nextMembers.read( buffer, offset, length );
+        }
+        try {
+            while ( !_inflater.finished() ) {
+                if ( _inflater.needsInput() ) {
+                    feed();
+                }
+                final int n = _inflater.inflate( buffer, offset, length );
+                if ( n > 0 ) {
+                    return n;
+                }
+            }
+        } catch ( final DataFormatException e ) {
+            throw new IOException( "corrupt gzip data after checkpoint: " + e.getMessage(), e );
+        }
+        if ( _memberEnd >= _length ) {
+            return -1;
+        }
+        _raw.seek( _memberEnd );
+        _nextMembers = _context.createInputStream( _codec, _raw );
+        return _nextMembers.read( buffer, offset, length );
+    }
+
+    private void feed() throws IOException {
+        final int primed = _primer == null ? 0 : _primer.length - 1;
+        final int read = _raw.read( _input, primed, _input.length - primed );
+        if ( read <= 0 ) {
+            throw new EOFException( "truncated gzip member" );
+        }
+        if ( _primer != null ) {
+            // the checkpoint's byte keeps its bits from the checkpoint's bit on, the lower ones are the primer's
+            System.arraycopy( _primer, 0, _input, 0, primed );
+            _input[primed] = (byte) ( _primer[primed] | _input[primed] & ( 0xff << _bit ) );
+            _primer = null;
+        }
+        _inflater.setInput( _input, 0, primed + read );
+    }
+
+    /**
+     * Empty non final deflate blocks of as many bits as are before the given
+     * bit in a byte, modulo 8: fixed ones take 10 bits, a dynamic one 93, so
+     * one dynamic for odd bits and up to three fixed ones reach any bit.
+     *
+     * @return the blocks, with the unused bits of the last byte zero
+     */
+    private static byte[] primer( final int bit ) {
+        final BitWriter out = new BitWriter();
+        if ( ( bit & 1 ) != 0 ) {
+            out.write( 0, 1 );
+            out.write( 2, 2 );
+            // 257 literal/length codes, 1 distance code, 18 code length codes
+            out.write( 0, 5 );
+            out.write( 0, 5 );
+            out.write( 14, 4 );
+            // code length code: 0 gets 1 bit (code 0), 1 and 18 get 2 bits (codes 10 and 11), in the header's order
+            final int[] lengths = { 0, 0, 2, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2 };
+            for ( final int length : lengths ) {
+                out.write( length, 3 );
+            }
+            // lengths: 256 zeros (18 with 138, 18 with 118), 1 for end of block, 0 for the distance
+            out.write( 3, 2 );
+            out.write( 138 - 11, 7 );
+            out.write( 3, 2 );
+            out.write( 118 - 11, 7 );
+            out.write( 1, 2 );
+            out.write( 0, 1 );
+            // end of block, code 0
+            out.write( 0, 1 );
+        }
+        while ( ( out.bits() & 7 ) != bit ) {
+            // fixed block with end of block only, code 0000000
+            out.write( 0, 1 );
+            out.write( 1, 2 );
+            out.write( 0, 7 );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Bits in deflate order, least significant first.
+     */
+    private static final class BitWriter {
+        private final byte[] _bytes = new byte[32];
+        private int _bits;
+
+        void write( final int value, final int count ) {
+            for ( int i = 0; i < count; i++ ) {
+                _bytes[_bits >>> 3] |= ( ( value >>> i ) & 1 ) << ( _bits & 7 );
+                _bits++;
+            }
+        }
+
+        int bits() {
+            return _bits;
+        }
+
+        /** The bytes written to, including the last partial one. */
+        byte[] toByteArray() {
+            return Arrays.copyOf( _bytes, ( _bits >>> 3 ) + 1 );
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( _closed ) {
+            return;
+        }
+        _closed = true;
+        _inflater.end();
+        IOUtils.closeQuietly( _nextMembers );
+        _raw.close();
+    }
+
+}
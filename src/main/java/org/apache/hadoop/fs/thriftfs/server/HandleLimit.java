@@ -0,0 +1,48 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upper bound of the handles open at a time, shared by the handle stores. A
+ * permit is taken before a stream is opened, so a client over the limit fails
+ * without touching hdfs.
+ *
+ * @author Axel Mannhardt
+ */
+final class HandleLimit {
+
+    private final int _max;
+    private final AtomicInteger _open = new AtomicInteger();
+
+    /**
+     * @param max maximum open handles, 0 for no limit
+     */
+    HandleLimit( final int max ) {
+        _max = max;
+    }
+
+    int max() {
+        return _max;
+    }
+
+    int open() {
+        return _open.get();
+    }
+
+    boolean tryAcquire() {
+        while ( true ) {
+            final int open = _open.get();
+            if ( _max > 0 && open >= _max ) {
+                return false;
+            }
+            if ( _open.compareAndSet( open, open + 1 ) ) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        _open.decrementAndGet();
+    }
+
+}
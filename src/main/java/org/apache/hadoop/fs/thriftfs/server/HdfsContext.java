@@ -0,0 +1,192 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.thriftfs.server.HdfsService.HdfsConfig;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+
+/**
+ * Long lived, thread safe state shared by all calls on one {@link HdfsConfig}:
+ * the hadoop {@link Configuration} (parsing its xml resources is expensive),
+ * the {@link FileSystem}, and the compression codecs looked up by file
+ * extension. Compressors and decompressors are borrowed from the
+ * {@link CodecPool} and returned when the stream is closed.
+ *
+ * @author Axel Mannhardt
+ */
+final class HdfsContext {
+
+    private final HdfsConfig _config;
+    private final Configuration _configuration;
+    private final CompressionCodecFactory _codecFactory;
+    /** Extensions of the known codecs only, as the extensions asked for come from clients. */
+    private final ConcurrentMap<String, CompressionCodec> _codecsByExtension = new ConcurrentHashMap<String, CompressionCodec>();
+    private volatile FileSystem _fileSystem;
+
+    HdfsContext( final HdfsConfig config ) {
+        _config = config;
+        _configuration = new Configuration();
+        _configuration.set( FileSystem.FS_DEFAULT_NAME_KEY, config.hdfsPath() );
+        _codecFactory = new CompressionCodecFactory( _configuration );
+    }
+
+    Configuration configuration() {
+        return _configuration;
+    }
+
+    /**
+     * The file system is connected on first use, a failed attempt is repeated
+     * by the next call.
+     */
+    FileSystem fileSystem() throws IOException {
+        FileSystem fs = _fileSystem;
+        if ( fs == null ) {
+            synchronized ( this ) {
+                fs = _fileSystem;
+                if ( fs == null ) {
+                    fs = FileSystem.get( _configuration );
+                    _fileSystem = fs;
+                }
+            }
+        }
+        return fs;
+    }
+
+    /**
+     * Returns the codec for the path's extension, <code>null</code> for
+     * uncompressed files. Extensions without a codec are looked up in the
+     * codec factory every time (a lookup in a sorted map), so the cache holds
+     * at most an extension per codec.
+     */
+    CompressionCodec codecFor( final Path path ) {
+        final String name = path.getName();
+        final int dot = name.lastIndexOf( '.' );
+        if ( dot < 0 ) {
+            return null;
+        }
+        final String extension = name.substring( dot );
+        CompressionCodec codec = _codecsByExtension.get( extension );
+        if ( codec == null ) {
+            codec = _codecFactory.getCodec( path );
+            if ( codec != null ) {
+                _codecsByExtension.putIfAbsent( extension, codec );
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Compresses into <code>out</code> with a pooled compressor.
+     */
+    OutputStream createOutputStream( final CompressionCodec codec, final OutputStream out ) throws IOException {
+        final Compressor compressor = CodecPool.getCompressor( codec, _configuration );
+        try {
+            return new PooledCompressionOutputStream( codec.createOutputStream( out, compressor ), compressor );
+        } catch ( final IOException | RuntimeException e ) {
+            CodecPool.returnCompressor( compressor );
+            throw e;
+        }
+    }
+
+    /**
+     * Decompresses <code>in</code> with a pooled decompressor.
+     */
+    InputStream createInputStream( final CompressionCodec codec, final InputStream in ) throws IOException {
+        final Decompressor decompressor = CodecPool.getDecompressor( codec );
+        try {
+            return new PooledDecompressionInputStream( codec.createInputStream( in, decompressor ), decompressor );
+        } catch ( final IOException | RuntimeException e ) {
+            CodecPool.returnDecompressor( decompressor );
+            throw e;
+        }
+    }
+
+    /**
+     * Decompresses the bzip2 blocks of <code>in</code> starting at the first
+     * block marker at or after <code>start</code>, with a pooled decompressor.
+     */
+    InputStream createInputStream( final SplittableCompressionCodec codec, final FSDataInputStream in, final long start,
+            final long end ) throws IOException {
+        final Decompressor decompressor = CodecPool.getDecompressor( codec );
+        try {
+            return new PooledDecompressionInputStream( codec.createInputStream( in, decompressor, start, end,
+                    SplittableCompressionCodec.READ_MODE.BYBLOCK ), decompressor );
+        } catch ( final IOException | RuntimeException e ) {
+            CodecPool.returnDecompressor( decompressor );
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return _config.toString();
+    }
+
+    private static final class PooledCompressionOutputStream extends FilterOutputStream {
+        private final Compressor _compressor;
+        private boolean _closed;
+
+        PooledCompressionOutputStream( final CompressionOutputStream out, final Compressor compressor ) {
+            super( out );
+            _compressor = compressor;
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            out.write( b, off, len );
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( _closed ) {
+                return;
+            }
+            _closed = true;
+            try {
+                out.close();
+            } finally {
+                CodecPool.returnCompressor( _compressor );
+            }
+        }
+    }
+
+    private static final class PooledDecompressionInputStream extends FilterInputStream {
+        private final Decompressor _decompressor;
+        private boolean _closed;
+
+        PooledDecompressionInputStream( final InputStream in, final Decompressor decompressor ) {
+            super( in );
+            _decompressor = decompressor;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( _closed ) {
+                return;
+            }
+            _closed = true;
+            try {
+                in.close();
+            } finally {
+                CodecPool.returnDecompressor( _decompressor );
+            }
+        }
+    }
+
+}
@@ -1,45 +1,71 @@
 package org.apache.hadoop.fs.thriftfs.server;
 
-import java.io.ByteArrayOutputStream;
-import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumFileSystem;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
-import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.thriftfs.api.BlockLocation;
+import org.apache.hadoop.thriftfs.api.CacheStats;
+import org.apache.hadoop.thriftfs.api.ContentSummary;
+import org.apache.hadoop.thriftfs.api.ErrorCode;
 import org.apache.hadoop.thriftfs.api.FileStatus;
+import org.apache.hadoop.thriftfs.api.FileStatusPage;
+import org.apache.hadoop.thriftfs.api.PathResult;
 import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.ScanPage;
+import org.apache.hadoop.thriftfs.api.ScanRecord;
+import org.apache.hadoop.thriftfs.api.ScanRequest;
+import org.apache.hadoop.thriftfs.api.ServerStats;
+import org.apache.hadoop.thriftfs.api.StatResult;
+import org.apache.hadoop.thriftfs.api.StatusProjection;
 import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem;
 import org.apache.hadoop.thriftfs.api.ThriftHandle;
 import org.apache.hadoop.thriftfs.api.ThriftIOException;
+import org.apache.hadoop.thriftfs.api.hadoopfsConstants;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * A thrift server implementing hdfs bindings.
  *
  * Disclaimer: I still feel this implementation is redundant, but I have not yet
  * found an official variant nor an already used community addition.
  *
- * TODO: At the moment, this assumes it is run as a singleton and is not written
- * with concurrency in mind.
+ * The service is shared by all worker threads of the server: the handle stores
+ * are lock free. Reads of a plain file run concurrently, also on the same
+ * handle; reads of a compressed file and writes are serialized per handle.
+ * Closing or releasing a handle waits for the calls using it, later calls
+ * fail (see {@link ReadHandle} and {@link WriteHandle}).
  *
  * @author Axel Mannhardt
  */
@@ -47,12 +73,122 @@ final class HdfsService implements ThriftHadoopFileSystem.Iface {
 
     private static final Logger LOG = LoggerFactory.getLogger( HdfsService.class );
 
+    /** Upper bound for the bytes returned by a single read or sent with an upload part. */
+    static final int MAX_READ_SIZE = hadoopfsConstants.MAX_DATA_PER_CALL;
+    private static final int DEFAULT_PAGE_ENTRIES = 1000;
+    private static final int MAX_PAGE_ENTRIES = 10000;
+    private static final int DEFAULT_SCAN_PAGE_BYTES = 1024 * 1024;
+    /** Bytes a scan reads per call at most, so a sparse filter cannot hold a worker for long. */
+    private static final long MAX_SCAN_BYTES_PER_PAGE = 64L * 1024 * 1024;
+    private static final int SCAN_CHUNK_BYTES = 1024 * 1024;
+    private static final String HDFS_SCHEME = "hdfs";
+    private static final int MAX_BATCH_PATHS = 100000;
+
+    private static final ThreadLocal<CharsetEncoder> UTF8_ENCODER = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return StandardCharsets.UTF_8.newEncoder().onMalformedInput( CodingErrorAction.REPLACE )
+                    .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        }
+    };
+
     private final HdfsConfig _config;
-    private final ResourceByIdStore<InputStream> _readStreamStore = new ResourceByIdStore<InputStream>();
-    private final ResourceByIdStore<OutputStream> _writeStreamStore = new ResourceByIdStore<OutputStream>();
+    private final HdfsContext _context;
+    private final HandleLimit _handleLimit;
+    private final ResourceByIdStore<ReadHandle> _readStreamStore;
+    private final ResourceByIdStore<WriteHandle> _writeStreamStore;
+    private final ResourceByIdStore<StatusListing> _listingStore;
+    private final ResourceByIdStore<LineScanner> _scanStore;
+    private final ResourceByIdStore<MultipartUpload> _uploadStore;
+    private final ServerLifecycle _lifecycle;
+    private final ServiceOptions _options;
+    private final ExecutorService _asyncWriters;
+    private final MetadataCache _metadataCache;
+    private final BlockReadCache _readCache;
+    private final ServiceMetrics _metrics = new ServiceMetrics();
+    private final ForkJoinPool _compressionPool;
+    private final CheckpointIndexStore _checkpointIndexes;
+    private final BatchExecutor _batchExecutor;
+    private final StatelessReadHandles _statelessReads;
+    private final BufferPool _buffers;
+    private final TreeWalker _treeWalker;
 
     public HdfsService( final HdfsConfig config ) {
+        this( config, new ServiceOptions() );
+    }
+
+    public HdfsService( final HdfsConfig config, final ServiceOptions options ) {
         _config = config;
+        _context = new HdfsContext( config );
+        _options = options;
+        _handleLimit = new HandleLimit( options.maxOpenHandles() );
+        _readStreamStore = new ResourceByIdStore<ReadHandle>( _handleLimit );
+        _writeStreamStore = new ResourceByIdStore<WriteHandle>( _handleLimit );
+        _listingStore = new ResourceByIdStore<StatusListing>( _handleLimit );
+        _scanStore = new ResourceByIdStore<LineScanner>( _handleLimit );
+        // uploads hold no stream between calls, they do not count as handles
+        _uploadStore = new ResourceByIdStore<MultipartUpload>();
+        _lifecycle = new ServerLifecycle( options.handleIdleTimeoutMillis(), new ServerLifecycle.IdleHandleReaper() {
+            @Override
+            public int releaseIdle( final long maxIdleNanos ) {
+                return _readStreamStore.releaseIdle( maxIdleNanos ) + _writeStreamStore.releaseIdle( maxIdleNanos )
+                        + _listingStore.releaseIdle( maxIdleNanos ) + _scanStore.releaseIdle( maxIdleNanos );
+            }
+        } );
+        _lifecycle.releaseIdle( "uploads", options.uploadExpiryMillis(), new ServerLifecycle.IdleHandleReaper() {
+            @Override
+            public int releaseIdle( final long maxIdleNanos ) {
+                return _uploadStore.releaseIdle( maxIdleNanos );
+            }
+        } );
+        _asyncWriters =
+                options.asyncWriteQueueBytes() > 0 ? Executors.newFixedThreadPool( options.asyncWriterThreads(),
+                        new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "async-writer-%d" ).build() ) : null;
+        _metadataCache = new MetadataCache( options.metadataCacheEntries(), options.metadataCacheTtlMillis() );
+        _buffers = new BufferPool( options.bufferPoolBytes() );
+        _readCache =
+                options.readCacheBytes() > 0 ? new BlockReadCache( options.readCacheBytes(), options.readCacheChunkBytes(),
+                        options.readAheadChunks(), options.readAheadThreads(), _buffers ) : null;
+        _compressionPool = options.parallelCompressionBlockBytes() > 0 ? new ForkJoinPool( options.compressionThreads() ) : null;
+        _checkpointIndexes =
+                new CheckpointIndexStore( _context, options.checkpointIndexEntries(), options.checkpointIntervalBytes(),
+                        options.checkpointSidecars() );
+        _batchExecutor = new BatchExecutor( options.batchParallelism() );
+        _treeWalker = new TreeWalker( options.walkParallelism() );
+        _statelessReads =
+                options.statelessReadSecret() != null ? new StatelessReadHandles( options.statelessReadSecret(),
+                        options.statelessReadTtlMillis(), options.statelessReadStreams(), options.statelessReadIdleMillis(),
+                        new StatelessReadHandles.Opener() {
+                            @Override
+                            public ReadHandle open( final Path path, final long modificationTime, final long length )
+                                throws IOException {
+                                final FileSystem fs = _context.fileSystem();
+                                StatelessReadHandles.checkVersion( fs.getFileStatus( path ), modificationTime, length );
+                                return openInputStream( fs, path );
+                            }
+                        } ) : null;
+        if ( _statelessReads != null ) {
+            _lifecycle.releaseIdle( "stateless read streams", options.statelessReadIdleMillis(),
+                    new ServerLifecycle.IdleHandleReaper() {
+                        @Override
+                        public int releaseIdle( final long maxIdleNanos ) {
+                            // the stream cache expires by its own idle time
+                            return _statelessReads.cleanUp();
+                        }
+                    } );
+        }
+    }
+
+    ServerLifecycle lifecycle() {
+        return _lifecycle;
+    }
+
+    ServiceMetrics metrics() {
+        return _metrics;
+    }
+
+    BufferPool buffers() {
+        return _buffers;
     }
 
     @Override
@@ -72,39 +208,183 @@ final class HdfsService implements ThriftHadoopFileSystem.Iface {
 
     @Override
     public boolean closeReadHandle( final ThriftHandle out ) throws ThriftIOException, TException {
-        System.out.println( "releasing handle stream: " + out.getId() );
+        if ( StatelessReadHandles.isStateless( out ) ) {
+            // nothing to release, the pooled streams are closed when idle; a
+            // forged or expired token is no handle of this server
+            return _statelessReads != null && _statelessReads.isValid( out );
+        }
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "releasing read handle: " + out.getId() );
+        }
         return _readStreamStore.release( out.getId() );
     }
 
+    /**
+     * Waits for asynchronously queued writes and reports their failure, as well
+     * as failures while closing the file.
+     */
     @Override
     public boolean closeWriteHandle( final ThriftHandle in ) throws ThriftIOException, TException {
-        System.out.println( "releasing handle stream: " + in.getId() );
-        return _writeStreamStore.release( in.getId() );
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "releasing write handle: " + in.getId() );
+        }
+        final WriteHandle writeHandle = _writeStreamStore.remove( in.getId() );
+        if ( writeHandle == null ) {
+            return false;
+        }
+        try {
+            writeHandle.close();
+        } catch ( final IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        } finally {
+            invalidateMetadata( writeHandle.path() );
+        }
+        return true;
     }
 
     @Override
     public ThriftHandle create( final Pathname pathname ) throws ThriftIOException, TException {
-        final FileSystem fs = Utils.tryToGetFileSystem( _config );
+        final FileSystem fs = fileSystem();
         final Path path = Utils.toPath( pathname );
+        reserveHandle();
+        boolean stored = false;
         try {
-            LOG.info( "creating new write handle on " + _config + " for: " + pathname.getPathname() );
-            final OutputStream stream = openOutputStream( pathname, fs, path );
-            return new ThriftHandle( _writeStreamStore.storeNew( stream ) );
-        } catch ( final IOException e ) {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "creating new write handle on " + _config + " for: " + pathname.getPathname() );
+            }
+            final Path qualifiedPath = fs.makeQualified( path );
+            final OutputStream stream = openOutputStream( pathname, fs, qualifiedPath );
+            invalidateMetadata( qualifiedPath );
+            final ThriftHandle handle =
+                    new ThriftHandle( _writeStreamStore.storeNew( new WriteHandle( stream, qualifiedPath, _asyncWriters,
+                            _options.asyncWriteQueueBytes(), _buffers ) ) );
+            stored = true;
+            return handle;
+        } catch ( IllegalArgumentException | IOException e ) {
             throw Utils.wrapAsThriftException( e );
+        } finally {
+            if ( !stored ) {
+                _handleLimit.release();
+            }
         }
     }
 
     private OutputStream openOutputStream( final Pathname pathname, final FileSystem fs, final Path fullPath ) throws IOException {
         final FSDataOutputStream stream = fs.create( fullPath );
-        final Configuration conf = new Configuration();
-        final CompressionCodecFactory factory = new CompressionCodecFactory( conf );
-        final CompressionCodec codec = factory.getCodec( fullPath );
+        final CompressionCodec codec = _context.codecFor( fullPath );
         if ( codec == null ) {
             return stream;
         }
-        final CompressionOutputStream compressedStream = codec.createOutputStream( stream );
-        return compressedStream;
+        try {
+            if ( _compressionPool != null && ParallelCompressionOutputStream.supports( codec ) ) {
+                return new ParallelCompressionOutputStream( stream, codec, _context, _compressionPool, _buffers,
+                        _options.parallelCompressionBlockBytes(), 2 * _options.compressionThreads() );
+            }
+            return _context.createOutputStream( codec, stream );
+        } catch ( final IOException e ) {
+            IOUtils.closeQuietly( stream );
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a permit of the open handle limit, to be handed over to a store or
+     * released.
+     */
+    private void reserveHandle() throws ThriftIOException {
+        if ( !_handleLimit.tryAcquire() ) {
+            throw ErrorCodes.error( ErrorCode.LIMIT_EXCEEDED, "too many open handles, the limit is " + _handleLimit.max() );
+        }
+    }
+
+    private void invalidateMetadata( final Path qualifiedPath ) {
+        final Path parent = qualifiedPath.getParent();
+        _metadataCache.invalidate( qualifiedPath.toString(), parent == null ? null : parent.toString() );
+    }
+
+    private void invalidateMetadataTree( final Path qualifiedPath ) {
+        final Path parent = qualifiedPath.getParent();
+        _metadataCache.invalidateTree( qualifiedPath.toString(), parent == null ? null : parent.toString() );
+    }
+
+    /**
+     * See thrift definition. Only gzip files are compressed by part, other
+     * codecs cannot be uploaded in parts.
+     */
+    @Override
+    public String initUpload( final Pathname pathname ) throws ThriftIOException, TException {
+        final FileSystem fs = fileSystem();
+        try {
+            final Path target = fs.makeQualified( Utils.toPath( pathname ) );
+            if ( target.getParent() == null ) {
+                throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "cannot upload to the root directory" );
+            }
+            final CompressionCodec codec = _context.codecFor( target );
+            if ( codec != null && !( codec instanceof GzipCodec ) ) {
+                throw ErrorCodes.error( ErrorCode.UNSUPPORTED, "multipart upload of " + codec.getDefaultExtension()
+                        + " files is not supported" );
+            }
+            return Long.toString( _uploadStore.storeNew( new MultipartUpload( fs, _context, target, codec ) ) );
+        } catch ( final IllegalArgumentException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    @Override
+    public void uploadPart( final String uploadId, final int partNumber, final ByteBuffer data ) throws ThriftIOException,
+            TException {
+        if ( partNumber < 1 ) {
+            throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "part numbers start at 1, was: " + partNumber );
+        }
+        final int length = data.remaining();
+        if ( length > MAX_READ_SIZE ) {
+            throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "parts hold at most " + MAX_READ_SIZE + " bytes, was: " + length );
+        }
+        final MultipartUpload upload = _uploadStore.getResource( parseCursor( uploadId ) );
+        try {
+            if ( upload == null || !upload.writePart( partNumber, data ) ) {
+                throw ErrorCodes.error( ErrorCode.UNKNOWN_HANDLE, "unknown, completed or expired upload: " + uploadId );
+            }
+        } catch ( final IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+        _metrics.bytesWritten( length );
+    }
+
+    /**
+     * See thrift definition: waits for parts still being written, a part
+     * uploaded after completion is rejected.
+     */
+    @Override
+    public FileStatus completeUpload( final String uploadId ) throws ThriftIOException, TException {
+        final MultipartUpload upload = _uploadStore.remove( parseCursor( uploadId ) );
+        if ( upload == null ) {
+            throw ErrorCodes.error( ErrorCode.UNKNOWN_HANDLE, "unknown, completed or expired upload: " + uploadId );
+        }
+        final FileSystem fs = fileSystem();
+        try {
+            try {
+                upload.complete();
+            } finally {
+                invalidateMetadata( upload.target() );
+            }
+            return convertFileStatus( fs.getFileStatus( upload.target() ) );
+        } catch ( IllegalArgumentException | IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    @Override
+    public boolean abortUpload( final String uploadId ) throws ThriftIOException, TException {
+        return _uploadStore.release( parseCursor( uploadId ) );
+    }
+
+    private FileSystem fileSystem() throws ThriftIOException {
+        try {
+            return _context.fileSystem();
+        } catch ( final IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
     }
 
     @Override
@@ -113,25 +393,173 @@ final class HdfsService implements ThriftHadoopFileSystem.Iface {
         throw new UnsupportedOperationException( "Not supported by thrift service." );
     }
 
+    /**
+     * Answered from the metadata cache if enabled.
+     */
     @Override
     public boolean exists( final Pathname pathname ) throws ThriftIOException, TException {
-        throw new UnsupportedOperationException( "Not supported by thrift service." );
+        final FileSystem fs = fileSystem();
+        try {
+            cachedStatus( fs, fs.makeQualified( Utils.toPath( pathname ) ) );
+            return true;
+        } catch ( final FileNotFoundException e ) {
+            return false;
+        } catch ( IllegalArgumentException | IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    /**
+     * Answered from the metadata cache if enabled.
+     */
+    @Override
+    public FileStatus stat( final Pathname pathname ) throws ThriftIOException, TException {
+        final FileSystem fs = fileSystem();
+        try {
+            return cachedStatus( fs, fs.makeQualified( Utils.toPath( pathname ) ) );
+        } catch ( IllegalArgumentException | IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    private FileStatus cachedStatus( final FileSystem fs, final Path qualifiedPath ) throws IOException {
+        return _metadataCache.status( qualifiedPath.toString(), new MetadataCache.Loader<FileStatus>() {
+            @Override
+            public FileStatus load() throws IOException {
+                return convertFileStatus( fs.getFileStatus( qualifiedPath ) );
+            }
+        } );
+    }
+
+    /**
+     * See thrift definition, answered from the metadata cache if enabled.
+     */
+    @Override
+    public List<StatResult> statBatch( final List<Pathname> pathnames ) throws ThriftIOException, TException {
+        final FileSystem fs = fileSystem();
+        checkBatch( pathnames );
+        return _batchExecutor.run( pathnames.size(), new BatchExecutor.Call<StatResult>() {
+            @Override
+            public StatResult call( final int index ) {
+                final Pathname pathname = pathnames.get( index );
+                final StatResult result = new StatResult( pathname.getPathname() );
+                try {
+                    result.setStatus( cachedStatus( fs, fs.makeQualified( Utils.toPath( pathname ) ) ) );
+                } catch ( final FileNotFoundException e ) {
+                    // neither status nor error
+                } catch ( IllegalArgumentException | IOException e ) {
+                    result.setError( ErrorCodes.describe( e ) );
+                }
+                return result;
+            }
+        } );
+    }
+
+    /**
+     * See thrift definition, answered from the metadata cache if enabled.
+     */
+    @Override
+    public List<PathResult> existsBatch( final List<Pathname> pathnames ) throws ThriftIOException, TException {
+        final FileSystem fs = fileSystem();
+        return runPathBatch( fs, pathnames, new PathCall() {
+            @Override
+            public boolean call( final Path qualifiedPath ) throws IOException {
+                try {
+                    cachedStatus( fs, qualifiedPath );
+                    return true;
+                } catch ( final FileNotFoundException e ) {
+                    return false;
+                }
+            }
+        } );
+    }
+
+    /**
+     * See thrift definition.
+     */
+    @Override
+    public List<PathResult> mkdirsBatch( final List<Pathname> pathnames ) throws ThriftIOException, TException {
+        final FileSystem fs = fileSystem();
+        return runPathBatch( fs, pathnames, new PathCall() {
+            @Override
+            public boolean call( final Path qualifiedPath ) throws IOException {
+                return mkdirs( fs, qualifiedPath );
+            }
+        } );
     }
 
+    /**
+     * See thrift definition.
+     */
+    @Override
+    public List<PathResult> rmBatch( final List<Pathname> pathnames, final boolean recursive ) throws ThriftIOException,
+        TException {
+        final FileSystem fs = fileSystem();
+        return runPathBatch( fs, pathnames, new PathCall() {
+            @Override
+            public boolean call( final Path qualifiedPath ) throws IOException {
+                return rm( fs, qualifiedPath, recursive );
+            }
+        } );
+    }
+
+    /**
+     * A single path call of a batch.
+     */
+    private interface PathCall {
+        boolean call( Path qualifiedPath ) throws IOException;
+    }
+
+    private List<PathResult> runPathBatch( final FileSystem fs, final List<Pathname> pathnames, final PathCall call )
+        throws ThriftIOException {
+        checkBatch( pathnames );
+        return _batchExecutor.run( pathnames.size(), new BatchExecutor.Call<PathResult>() {
+            @Override
+            public PathResult call( final int index ) {
+                final Pathname pathname = pathnames.get( index );
+                try {
+                    return new PathResult( pathname.getPathname(), call.call( fs.makeQualified( Utils.toPath( pathname ) ) ) );
+                } catch ( IllegalArgumentException | IOException e ) {
+                    final PathResult result = new PathResult( pathname.getPathname(), false );
+                    result.setError( ErrorCodes.describe( e ) );
+                    return result;
+                }
+            }
+        } );
+    }
+
+    private static void checkBatch( final List<Pathname> pathnames ) throws ThriftIOException {
+        if ( pathnames == null ) {
+            throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "no paths given" );
+        }
+        if ( pathnames.size() > MAX_BATCH_PATHS ) {
+            throw ErrorCodes.error( ErrorCode.LIMIT_EXCEEDED, "too many paths in one batch: " + pathnames.size() + ", the limit is "
+                    + MAX_BATCH_PATHS );
+        }
+    }
+
+    /**
+     * Answered from the metadata cache if enabled.
+     */
     @Override
     public List<BlockLocation> getFileBlockLocations( final Pathname pathname, final long start, final long length )
         throws ThriftIOException, TException {
-        final Path path = Utils.toPath( pathname );
-        final FileSystem fs = Utils.tryToGetFileSystem( _config );
-        final List<BlockLocation> result = new ArrayList<BlockLocation>();
+        final FileSystem fs = fileSystem();
         try {
-            for ( final org.apache.hadoop.fs.BlockLocation bl : fs.getFileBlockLocations( path, start, length ) ) {
-                result.add( convertBlockLocation( bl ) );
-            }
-        } catch ( final IOException e ) {
+            final Path path = fs.makeQualified( Utils.toPath( pathname ) );
+            return _metadataCache.blockLocations( path.toString(), start, length, new MetadataCache.Loader<List<BlockLocation>>() {
+                @Override
+                public List<BlockLocation> load() throws IOException {
+                    final List<BlockLocation> result = new ArrayList<BlockLocation>();
+                    for ( final org.apache.hadoop.fs.BlockLocation bl : fs.getFileBlockLocations( path, start, length ) ) {
+                        result.add( convertBlockLocation( bl ) );
+                    }
+                    return result;
+                }
+            } );
+        } catch ( IllegalArgumentException | IOException e ) {
             throw Utils.wrapAsThriftException( e );
         }
-        return result;
     }
 
     private static BlockLocation convertBlockLocation( final org.apache.hadoop.fs.BlockLocation bl ) throws IOException {
@@ -146,33 +574,267 @@ final class HdfsService implements ThriftHadoopFileSystem.Iface {
         return blockLocation;
     }
 
+    /**
+     * Answered from the metadata cache if enabled.
+     */
     @Override
     public List<FileStatus> listStatus( final Pathname pathname ) throws ThriftIOException, TException {
-        final FileSystem fs = Utils.tryToGetFileSystem( _config );
-        final List<FileStatus> result = new ArrayList<FileStatus>();
+        final FileSystem fs = fileSystem();
         try {
-            for ( final org.apache.hadoop.fs.FileStatus f : fs.listStatus( Utils.toPath( pathname ) ) ) {
-                result.add( convertFileStatus( f ) );
-            }
+            final Path path = fs.makeQualified( Utils.toPath( pathname ) );
+            return _metadataCache.listing( path.toString(), new MetadataCache.Loader<List<FileStatus>>() {
+                @Override
+                public List<FileStatus> load() throws IOException {
+                    final List<FileStatus> result = new ArrayList<FileStatus>();
+                    for ( final org.apache.hadoop.fs.FileStatus f : fs.listStatus( path ) ) {
+                        result.add( convertFileStatus( f ) );
+                    }
+                    return result;
+                }
+            } );
         } catch ( final FileNotFoundException e ) {
-            e.printStackTrace();
+            LOG.debug( "listing a missing path", e );
             return null;
         } catch ( IllegalArgumentException | IOException e ) {
             throw Utils.wrapAsThriftException( e );
         }
-        return result;
+    }
+
+    /**
+     * See thrift definition. An empty cursor starts a new listing, which is
+     * released once its last page has been returned.
+     */
+    @Override
+    public FileStatusPage listStatusPaged( final Pathname pathname, final String cursor, final int maxEntries,
+            final StatusProjection projection ) throws ThriftIOException, TException {
+        return listingPage( cursor, maxEntries, new ListingOpener() {
+            @Override
+            public StatusListing open( final FileSystem fs ) throws IOException {
+                return new StatusListing( fs.listStatusIterator( Utils.toPath( pathname ) ),
+                        projection == null ? StatusProjection.FULL : projection, fs instanceof ChecksumFileSystem );
+            }
+        } );
+    }
+
+    /**
+     * See thrift definition: pages of {@link TreeWalker#listRecursive}, whose
+     * directories are listed concurrently while the pages are fetched.
+     */
+    @Override
+    public FileStatusPage listRecursive( final Pathname pathname, final String cursor, final int maxEntries,
+            final StatusProjection projection ) throws ThriftIOException, TException {
+        return listingPage( cursor, maxEntries, new ListingOpener() {
+            @Override
+            public StatusListing open( final FileSystem fs ) throws IOException {
+                return new StatusListing( _treeWalker.listRecursive( fs, Utils.toPath( pathname ) ),
+                        projection == null ? StatusProjection.FULL : projection, false );
+            }
+        } );
+    }
+
+    /**
+     * See thrift definition: the matches of {@link TreeWalker#glob} are found
+     * with the first call and then handed out page by page.
+     */
+    @Override
+    public FileStatusPage globStatus( final Pathname pattern, final String cursor, final int maxEntries,
+            final StatusProjection projection ) throws ThriftIOException, TException {
+        return listingPage( cursor, maxEntries, new ListingOpener() {
+            @Override
+            public StatusListing open( final FileSystem fs ) throws IOException {
+                final Iterator<org.apache.hadoop.fs.FileStatus> matches =
+                        _treeWalker.glob( fs, Utils.toPath( pattern ) ).iterator();
+                return new StatusListing( new RemoteIterator<org.apache.hadoop.fs.FileStatus>() {
+                    @Override
+                    public boolean hasNext() {
+                        return matches.hasNext();
+                    }
+
+                    @Override
+                    public org.apache.hadoop.fs.FileStatus next() {
+                        return matches.next();
+                    }
+                }, projection == null ? StatusProjection.FULL : projection, false );
+            }
+        } );
+    }
+
+    /**
+     * Opens the listing paged by {@link HdfsService#listingPage}.
+     */
+    private interface ListingOpener {
+        StatusListing open( FileSystem fs ) throws IOException;
+    }
+
+    /**
+     * A page of a listing: an empty cursor opens a new listing, which is
+     * released once its last page has been returned.
+     */
+    private FileStatusPage listingPage( final String cursor, final int maxEntries, final ListingOpener opener )
+            throws ThriftIOException {
+        final long listingId;
+        final StatusListing listing;
+        if ( cursor == null || cursor.isEmpty() ) {
+            final FileSystem fs = fileSystem();
+            reserveHandle();
+            try {
+                listing = opener.open( fs );
+            } catch ( IllegalArgumentException | IOException e ) {
+                _handleLimit.release();
+                throw Utils.wrapAsThriftException( e );
+            }
+            listingId = _listingStore.storeNew( listing );
+        } else {
+            listingId = parseCursor( cursor );
+            listing = _listingStore.getResource( listingId );
+            if ( listing == null ) {
+                throw ErrorCodes.error( ErrorCode.UNKNOWN_HANDLE, "unknown or expired listing cursor: " + cursor );
+            }
+        }
+        final int pageSize = maxEntries <= 0 ? DEFAULT_PAGE_ENTRIES : Math.min( maxEntries, MAX_PAGE_ENTRIES );
+        final List<org.apache.hadoop.fs.FileStatus> entries = new ArrayList<org.apache.hadoop.fs.FileStatus>( pageSize );
+        final boolean hasMore;
+        try {
+            hasMore = listing.nextPage( pageSize, entries );
+        } catch ( final IOException e ) {
+            _listingStore.release( listingId );
+            throw Utils.wrapAsThriftException( e );
+        }
+        final List<FileStatus> result = new ArrayList<FileStatus>( entries.size() );
+        for ( final org.apache.hadoop.fs.FileStatus f : entries ) {
+            result.add( convertFileStatus( f, listing.projection() ) );
+        }
+        if ( !hasMore ) {
+            _listingStore.release( listingId );
+        }
+        return new FileStatusPage( result, hasMore ? Long.toString( listingId ) : "", hasMore );
+    }
+
+    @Override
+    public boolean closeListing( final String cursor ) throws ThriftIOException, TException {
+        return _listingStore.release( parseCursor( cursor ) );
+    }
+
+    /**
+     * See thrift definition. hdfs sums up a tree in one namenode call, other
+     * file systems are walked by the {@link TreeWalker}.
+     */
+    @Override
+    public ContentSummary contentSummary( final Pathname pathname ) throws ThriftIOException, TException {
+        final FileSystem fs = fileSystem();
+        try {
+            final Path path = Utils.toPath( pathname );
+            if ( HDFS_SCHEME.equals( fs.getScheme() ) ) {
+                final org.apache.hadoop.fs.ContentSummary summary = fs.getContentSummary( path );
+                return new ContentSummary( summary.getLength(), summary.getFileCount(), summary.getDirectoryCount(),
+                        summary.getSpaceConsumed() );
+            }
+            return _treeWalker.summarize( fs, path );
+        } catch ( IllegalArgumentException | IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    /**
+     * See thrift definition. An empty cursor starts a new scan, which is
+     * released once its last page has been returned. A page ends after
+     * <code>maxBytes</code> of lines (at most {@link #MAX_READ_SIZE}, plus
+     * the last line of up to {@link LineScanner#MAX_LINE_BYTES}, which keeps
+     * a page below the framed transport's message limit) or
+     * {@link #MAX_SCAN_BYTES_PER_PAGE} scanned bytes, so it may be empty with
+     * more to come.
+     */
+    @Override
+    public ScanPage scan( final ScanRequest request, final String cursor, final int maxBytes ) throws ThriftIOException,
+            TException {
+        final long scanId;
+        final LineScanner scanner;
+        if ( cursor == null || cursor.isEmpty() ) {
+            scanner = openScan( request );
+            scanId = _scanStore.storeNew( scanner );
+        } else {
+            scanId = parseCursor( cursor );
+            scanner = _scanStore.getResource( scanId );
+            if ( scanner == null ) {
+                throw ErrorCodes.error( ErrorCode.UNKNOWN_HANDLE, "unknown or expired scan cursor: " + cursor );
+            }
+        }
+        final int pageBytes = maxBytes <= 0 ? DEFAULT_SCAN_PAGE_BYTES : Math.min( maxBytes, MAX_READ_SIZE );
+        final List<ScanRecord> records = new ArrayList<ScanRecord>();
+        final boolean hasMore;
+        try {
+            hasMore = scanner.nextPage( pageBytes, MAX_SCAN_BYTES_PER_PAGE, records );
+        } catch ( final IOException e ) {
+            _scanStore.release( scanId );
+            throw Utils.wrapAsThriftException( e );
+        }
+        long bytes = 0;
+        for ( final ScanRecord record : records ) {
+            bytes += record.bufferForLine().remaining();
+        }
+        _metrics.bytesRead( bytes );
+        if ( !hasMore ) {
+            _scanStore.release( scanId );
+        }
+        return new ScanPage( records, hasMore ? Long.toString( scanId ) : "", hasMore );
+    }
+
+    private LineScanner openScan( final ScanRequest request ) throws ThriftIOException {
+        if ( request == null || request.getPath() == null ) {
+            throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "scan request without path" );
+        }
+        final Pattern regex;
+        try {
+            regex = request.isSetRegex() ? Pattern.compile( request.getRegex() ) : null;
+        } catch ( final PatternSyntaxException e ) {
+            throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "invalid regex: " + e.getDescription() );
+        }
+        final FileSystem fs = fileSystem();
+        reserveHandle();
+        ReadHandle file = null;
+        try {
+            file = openInputStream( fs, fs.resolvePath( Utils.toPath( request.getPath() ) ) );
+            return new LineScanner( file, _buffers, SCAN_CHUNK_BYTES, request.isSetStartOffset() ? request.getStartOffset() : 0,
+                    request.isSetEndOffset() ? request.getEndOffset() : Long.MAX_VALUE,
+                    request.isSetFirstLine() ? request.getFirstLine() : 0,
+                    request.isSetLastLine() ? request.getLastLine() : Long.MAX_VALUE,
+                    request.isSetContains() ? request.getContains().getBytes( StandardCharsets.UTF_8 ) : null, regex,
+                    request.isSetLimit() ? request.getLimit() : Long.MAX_VALUE );
+        } catch ( IllegalArgumentException | IOException e ) {
+            IOUtils.closeQuietly( file );
+            _handleLimit.release();
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    @Override
+    public boolean closeScan( final String cursor ) throws ThriftIOException, TException {
+        return _scanStore.release( parseCursor( cursor ) );
+    }
+
+    private static long parseCursor( final String cursor ) throws ThriftIOException {
+        try {
+            return Long.parseLong( cursor );
+        } catch ( final NumberFormatException e ) {
+            throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "invalid cursor: " + cursor );
+        }
     }
 
     private static FileStatus convertFileStatus( final org.apache.hadoop.fs.FileStatus f ) {
+        return convertFileStatus( f, StatusProjection.FULL );
+    }
+
+    private static FileStatus convertFileStatus( final org.apache.hadoop.fs.FileStatus f, final StatusProjection projection ) {
         final String path = f.getPath().toString();
         final long length = f.getLen();
         final boolean isdir = f.isDirectory();
         final short block_replication = f.getReplication();
         final long blocksize = f.getBlockSize();
         final long modification_time = f.getModificationTime();
-        final String permission = f.getPermission().toString();
-        final String owner = f.getOwner();
-        final String group = f.getGroup();
+        final boolean full = projection != StatusProjection.BRIEF;
+        final String permission = full ? f.getPermission().toString() : null;
+        final String owner = full ? f.getOwner() : null;
+        final String group = full ? f.getGroup() : null;
         final FileStatus fileStatus =
                 new FileStatus( path, length, isdir, block_replication, blocksize, modification_time, permission, owner, group );
         return fileStatus;
@@ -180,72 +842,274 @@ final class HdfsService implements ThriftHadoopFileSystem.Iface {
 
     @Override
     public boolean mkdirs( final Pathname pathname ) throws ThriftIOException, TException {
-        throw new UnsupportedOperationException( "Not supported by thrift service." );
+        final FileSystem fs = fileSystem();
+        try {
+            return mkdirs( fs, fs.makeQualified( Utils.toPath( pathname ) ) );
+        } catch ( IllegalArgumentException | IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    private boolean mkdirs( final FileSystem fs, final Path qualifiedPath ) throws IOException {
+        try {
+            return fs.mkdirs( qualifiedPath );
+        } finally {
+            // parents may have been created too, their listings are dropped with the ttl
+            invalidateMetadata( qualifiedPath );
+        }
     }
 
     /**
-     * See thrift definition: open for reading only.
+     * See thrift definition: open for reading only. With a stateless read
+     * secret the file is not opened, the handle's token describes it.
      */
     @Override
     public ThriftHandle open( final Pathname pathname ) throws ThriftIOException, TException {
-        final FileSystem fs = Utils.tryToGetFileSystem( _config );
+        final FileSystem fs = fileSystem();
         final Path path = Utils.toPath( pathname );
+        if ( _statelessReads != null ) {
+            try {
+                final org.apache.hadoop.fs.FileStatus status = fs.getFileStatus( fs.resolvePath( path ) );
+                if ( status.isDirectory() ) {
+                    throw new FileNotFoundException( status.getPath() + " is a directory" );
+                }
+                return _statelessReads.issue( status );
+            } catch ( final IOException e ) {
+                throw Utils.wrapAsThriftException( e );
+            }
+        }
+        reserveHandle();
+        boolean stored = false;
         try {
             final Path fullPath = fs.resolvePath( path ); //  optional: check early (before doing it implicit while opening) that the path exists
-            LOG.info( "creating new read handle on " + _config + " for: " + pathname.getPathname() );
-            final InputStream stream = openInputStream( pathname, fs, fullPath );
-            return new ThriftHandle( _readStreamStore.storeNew( stream ) );
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "creating new read handle on " + _config + " for: " + pathname.getPathname() );
+            }
+            final ReadHandle readHandle = openInputStream( fs, fullPath );
+            final ThriftHandle handle = new ThriftHandle( _readStreamStore.storeNew( readHandle ) );
+            stored = true;
+            return handle;
         } catch ( final IOException e ) {
             throw Utils.wrapAsThriftException( e );
+        } finally {
+            if ( !stored ) {
+                _handleLimit.release();
+            }
         }
     }
 
-    private static InputStream openInputStream( final Pathname pathname, final FileSystem fs, final Path fullPath )
-        throws IOException {
+    private ReadHandle openInputStream( final FileSystem fs, final Path fullPath ) throws IOException {
         final FSDataInputStream stream = fs.open( fullPath );
-        final Configuration conf = new Configuration();
-        final CompressionCodecFactory factory = new CompressionCodecFactory( conf );
-        final CompressionCodec codec = factory.getCodec( fullPath );
+        final CompressionCodec codec = _context.codecFor( fullPath );
         if ( codec == null ) {
-            return stream;
+            if ( _readCache == null ) {
+                return new ReadHandle( stream );
+            }
+            try {
+                // uncached status: the modification time keys the cached chunks, it must not be stale
+                final org.apache.hadoop.fs.FileStatus status = fs.getFileStatus( fullPath );
+                return new ReadHandle( stream, _readCache, new BlockReadCache.CachedFile( stream, fullPath.toString(),
+                        status.getModificationTime(), status.getLen() ) );
+            } catch ( final IOException e ) {
+                IOUtils.closeQuietly( stream );
+                throw e;
+            }
+        }
+        try {
+            final InputStream uncompressedStream = _context.createInputStream( codec, stream );
+            return new ReadHandle( stream, uncompressedStream, _checkpointIndexes.checkpoints( fs, fullPath, codec ) );
+        } catch ( final IOException e ) {
+            IOUtils.closeQuietly( stream );
+            throw e;
         }
-        final InputStream uncompressedStream = codec.createInputStream( stream );
-        return uncompressedStream;
     }
 
-    // FIXME: API: shouldn't this be of some binary return type (string encoding)???
+    /**
+     * Text variant of {@link #pread(ThriftHandle, long, int)}, the bytes read
+     * are decoded as UTF-8 - use pread for binary content.
+     */
     @Override
     public String read( final ThriftHandle handle, final long offset, final int size ) throws ThriftIOException, TException {
-        final InputStream stream = _readStreamStore.getResource( handle.getId() );
-        if ( stream == null ) {
-            throw new ThriftIOException( "unknown read handle: " + handle.getId() );
+        final ByteBuffer bytes = pread( handle, offset, size );
+        return new String( bytes.array(), bytes.position(), bytes.remaining(), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * See thrift definition: reads at most <code>size</code> (capped at
+     * {@link #MAX_READ_SIZE}) bytes at <code>offset</code>. The returned buffer
+     * wraps a pooled array taken with {@link BufferPool#acquireForCall(int)},
+     * which goes back to the pool once thrift has written the reply (see
+     * {@link BufferPool#releasingAfterCall(org.apache.thrift.TProcessor)}).
+     */
+    @Override
+    public ByteBuffer pread( final ThriftHandle handle, final long offset, final int size ) throws ThriftIOException, TException {
+        checkRead( offset, size );
+        if ( StatelessReadHandles.isStateless( handle ) ) {
+            final StatelessReadHandles.Lease lease = lease( handle );
+            try {
+                return pread( lease.readHandle(), offset, size );
+            } finally {
+                lease.release();
+            }
+        }
+        return pread( readHandle( handle ), offset, size );
+    }
+
+    private ByteBuffer pread( final ReadHandle readHandle, final long offset, final int size ) throws ThriftIOException {
+        final int length = Math.min( size, MAX_READ_SIZE );
+        final byte[] buffer = readBuffer( length );
+        try {
+            final int read = readHandle.read( offset, buffer, length );
+            _metrics.bytesRead( read );
+            return ByteBuffer.wrap( buffer, 0, read );
+        } catch ( final IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    /**
+     * See thrift definition: as {@link #pread(ThriftHandle, long, int)}, but
+     * the pieces of the range are read concurrently on the batch executor.
+     * Pieces start at multiples of the piece size, which divides the usual
+     * hdfs block sizes, so every piece is read from a single datanode.
+     * Compressed files and reads of at most one piece are read as by pread.
+     */
+    @Override
+    public ByteBuffer preadParallel( final ThriftHandle handle, final long offset, final int size ) throws ThriftIOException,
+        TException {
+        checkRead( offset, size );
+        if ( StatelessReadHandles.isStateless( handle ) ) {
+            final StatelessReadHandles.Lease lease = lease( handle );
+            try {
+                return preadParallel( lease.readHandle(), offset, size );
+            } finally {
+                lease.release();
+            }
+        }
+        return preadParallel( readHandle( handle ), offset, size );
+    }
+
+    private ByteBuffer preadParallel( final ReadHandle readHandle, final long offset, final int size ) throws ThriftIOException {
+        final int length = Math.min( size, MAX_READ_SIZE );
+        final long pieceSize = _options.parallelReadPieceBytes();
+        final long firstEnd = ( offset / pieceSize + 1 ) * pieceSize;
+        if ( readHandle.isCompressed() || offset + length <= firstEnd ) {
+            return pread( readHandle, offset, size );
+        }
+        final int pieces = 1 + (int) ( ( offset + length - firstEnd + pieceSize - 1 ) / pieceSize );
+        final long[] bounds = new long[pieces + 1];
+        bounds[0] = offset;
+        for ( int i = 1; i < pieces; i++ ) {
+            bounds[i] = firstEnd + ( i - 1 ) * pieceSize;
         }
-        if ( offset > Integer.MAX_VALUE ) {
-            throw new IllegalArgumentException( "long offset not supported yet by thrift service" );
+        bounds[pieces] = offset + length;
+        final byte[] buffer = readBuffer( length );
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final List<Integer> reads = _batchExecutor.run( pieces, new BatchExecutor.Call<Integer>() {
+            @Override
+            public Integer call( final int index ) {
+                final long start = bounds[index];
+                try {
+                    return Integer.valueOf( readHandle.read( start, buffer, (int) ( start - offset ),
+                            (int) ( bounds[index + 1] - start ) ) );
+                } catch ( final IOException e ) {
+                    failure.compareAndSet( null, e );
+                    return Integer.valueOf( 0 );
+                }
+            }
+        } );
+        if ( failure.get() != null ) {
+            throw Utils.wrapAsThriftException( failure.get() );
+        }
+        // the content ends with the first short piece
+        int read = 0;
+        for ( int index = 0; index < pieces; index++ ) {
+            read += reads.get( index ).intValue();
+            if ( reads.get( index ).intValue() < bounds[index + 1] - bounds[index] ) {
+                break;
+            }
+        }
+        _metrics.bytesRead( read );
+        return ByteBuffer.wrap( buffer, 0, read );
+    }
+
+    private ReadHandle readHandle( final ThriftHandle handle ) throws ThriftIOException {
+        final ReadHandle readHandle = _readStreamStore.getResource( handle.getId() );
+        if ( readHandle == null ) {
+            throw ErrorCodes.error( ErrorCode.UNKNOWN_HANDLE, "unknown read handle: " + handle.getId() );
+        }
+        return readHandle;
+    }
+
+    private StatelessReadHandles.Lease lease( final ThriftHandle handle ) throws ThriftIOException {
+        if ( _statelessReads == null ) {
+            throw ErrorCodes.error( ErrorCode.UNSUPPORTED, "stateless read handles are not enabled on this server" );
         }
-        byte[] res;
         try {
-            res = IOUtils.toByteArray( stream );
+            return _statelessReads.lease( handle );
         } catch ( final IOException e ) {
             throw Utils.wrapAsThriftException( e );
         }
-        final byte[] result = Arrays.copyOf( res, res.length );
-        return new String( result );
     }
 
+    private static void checkRead( final long offset, final int size ) throws ThriftIOException {
+        if ( offset < 0 || size < 0 ) {
+            throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "invalid read of " + size + " bytes at offset " + offset );
+        }
+    }
+
+    /**
+     * A pooled buffer for a read's result, reused once thrift wrote the reply.
+     */
+    private byte[] readBuffer( final int length ) {
+        return _buffers.acquireForCall( length );
+    }
+
+    /**
+     * Returns false if the rename failed without an exception (e.g. a missing
+     * source or existing destination on hdfs).
+     */
     @Override
     public boolean rename( final Pathname pathname, final Pathname dest ) throws ThriftIOException, TException {
-        throw new UnsupportedOperationException( "Not supported by thrift service." );
+        final FileSystem fs = fileSystem();
+        try {
+            final Path source = fs.makeQualified( Utils.toPath( pathname ) );
+            final Path destination = fs.makeQualified( Utils.toPath( dest ) );
+            try {
+                return fs.rename( source, destination );
+            } finally {
+                invalidateMetadataTree( source );
+                invalidateMetadataTree( destination );
+            }
+        } catch ( IllegalArgumentException | IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
     }
 
+    /**
+     * Returns false if the path did not exist.
+     */
     @Override
     public boolean rm( final Pathname pathname, final boolean recursive ) throws ThriftIOException, TException {
-        throw new UnsupportedOperationException( "Not supported by thrift service." );
+        final FileSystem fs = fileSystem();
+        try {
+            return rm( fs, fs.makeQualified( Utils.toPath( pathname ) ), recursive );
+        } catch ( IllegalArgumentException | IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+    }
+
+    private boolean rm( final FileSystem fs, final Path qualifiedPath, final boolean recursive ) throws IOException {
+        try {
+            return fs.delete( qualifiedPath, recursive );
+        } finally {
+            invalidateMetadataTree( qualifiedPath );
+        }
     }
 
     @Override
     public void setInactivityTimeoutPeriod( final long periodInSeconds ) throws TException {
-        throw new UnsupportedOperationException( "Not supported by thrift service." );
+        _lifecycle.setInactivityTimeout( periodInSeconds );
     }
 
     @Override
@@ -255,12 +1119,32 @@ final class HdfsService implements ThriftHadoopFileSystem.Iface {
 
     @Override
     public void shutdown( final int status ) throws TException {
-        throw new UnsupportedOperationException( "Not supported by thrift service." );
+        _lifecycle.shutdown( status );
     }
 
     @Override
-    public FileStatus stat( final Pathname pathname ) throws ThriftIOException, TException {
-        throw new UnsupportedOperationException( "Not supported by thrift service." );
+    public CacheStats getCacheStats( final String cache ) throws ThriftIOException, TException {
+        if ( "metadata".equals( cache ) ) {
+            return _metadataCache.stats();
+        }
+        if ( "read".equals( cache ) ) {
+            return _readCache == null ? new CacheStats( 0, 0, 0, 0, 0 ) : _readCache.stats();
+        }
+        if ( "buffers".equals( cache ) ) {
+            return _buffers.stats();
+        }
+        throw ErrorCodes.error( ErrorCode.INVALID_ARGUMENT, "unknown cache: " + cache );
+    }
+
+    @Override
+    public ServerStats getServerStats() throws ThriftIOException, TException {
+        final Map<String, CacheStats> caches = new HashMap<String, CacheStats>();
+        caches.put( "metadata", getCacheStats( "metadata" ) );
+        caches.put( "read", getCacheStats( "read" ) );
+        caches.put( "buffers", getCacheStats( "buffers" ) );
+        return new ServerStats( _metrics.uptimeMillis(), _metrics.latencies(), _metrics.bytesRead(), _metrics.bytesWritten(),
+                _readStreamStore.size(), _writeStreamStore.size(), _listingStore.size(), _metrics.errors(), caches, _scanStore.size(),
+                _uploadStore.size() );
     }
 
     /**
@@ -270,34 +1154,91 @@ final class HdfsService implements ThriftHadoopFileSystem.Iface {
      */
     @Override
     public boolean write( final ThriftHandle handle, final String data ) throws ThriftIOException, TException {
-        final OutputStream stream = _writeStreamStore.getResource( handle.getId() );
-        if ( stream == null ) {
+        // thrift decoded the string from UTF-8, so this restores the bytes sent
+        final byte[] buffer = _buffers.acquire( 3 * data.length() );
+        try {
+            final ByteBuffer encoded = ByteBuffer.wrap( buffer );
+            final CharsetEncoder encoder = UTF8_ENCODER.get().reset();
+            encoder.encode( CharBuffer.wrap( data ), encoded, true );
+            encoder.flush( encoded );
+            encoded.flip();
+            return writeBytes( handle, encoded );
+        } finally {
+            // written or copied to the write queue by now
+            _buffers.release( buffer );
+        }
+    }
+
+    /**
+     * Same return semantics as {@link #write(ThriftHandle, String)}. In
+     * asynchronous mode, returns once the data is queued.
+     */
+    @Override
+    public boolean writeBytes( final ThriftHandle handle, final ByteBuffer data ) throws ThriftIOException, TException {
+        final WriteHandle writeHandle = _writeStreamStore.getResource( handle.getId() );
+        if ( writeHandle == null ) {
             return false;
         }
+        final int length = data.remaining();
         try {
-            stream.write( data.getBytes() );
+            writeHandle.write( data );
         } catch ( final IOException e ) {
             throw Utils.wrapAsThriftException( e );
         }
+        _metrics.bytesWritten( length );
+        return true;
+    }
+
+    /**
+     * Writes all chunks in order, see {@link #writeBytes(ThriftHandle, ByteBuffer)}.
+     */
+    @Override
+    public boolean writeBatch( final ThriftHandle handle, final List<ByteBuffer> chunks ) throws ThriftIOException, TException {
+        final WriteHandle writeHandle = _writeStreamStore.getResource( handle.getId() );
+        if ( writeHandle == null ) {
+            return false;
+        }
+        long length = 0;
+        for ( final ByteBuffer chunk : chunks ) {
+            length += chunk.remaining();
+        }
+        try {
+            writeHandle.writeBatch( chunks );
+        } catch ( final IOException e ) {
+            throw Utils.wrapAsThriftException( e );
+        }
+        _metrics.bytesWritten( length );
         return true;
     }
 
     static class HdfsConfig {
-        private final String _host;
-        private final int _port;
+        private final String _uri;
+        private final String _name;
 
         public HdfsConfig( final String host, final int port ) {
-            _host = host;
-            _port = port;
+            this( "hdfs://" + host + ":" + port, host + ":" + port );
+        }
+
+        private HdfsConfig( final String uri, final String name ) {
+            _uri = uri;
+            _name = name;
+        }
+
+        /**
+         * Serves any hadoop file system, e.g. <code>file:///</code> for the
+         * local one.
+         */
+        static HdfsConfig forUri( final String uri ) {
+            return new HdfsConfig( uri, uri );
         }
 
         String hdfsPath() {
-            return "hdfs://" + _host + ":" + _port;
+            return _uri;
         }
 
         @Override
         public String toString() {
-            return _host + ":" + _port;
+            return _name;
         }
 
     }
@@ -311,118 +1252,9 @@ final class HdfsService implements ThriftHadoopFileSystem.Iface {
             return new Path( pathname.getPathname() );
         }
 
-        static FileSystem tryToGetFileSystem( final HdfsConfig config ) throws ThriftIOException {
-            FileSystem fs;
-            final Configuration configuration = new Configuration();
-            configuration.set( FileSystem.FS_DEFAULT_NAME_KEY, config.hdfsPath() );
-            try {
-                fs = FileSystem.get( configuration );
-            } catch ( final IOException e ) {
-                throw new ThriftIOException( printStacktraceToString( e ) );
-            }
-            return fs;
-        }
-
         static ThriftIOException wrapAsThriftException( final Exception e ) {
-            return new ThriftIOException( Utils.printStacktraceToString( e ) );
+            return ErrorCodes.wrap( e );
         }
-
-        private static String printStacktraceToString( final Exception e ) {
-            PrintStream printStream = null;
-            try {
-                final ByteArrayOutputStream out = new ByteArrayOutputStream();
-                printStream = new PrintStream( out, true );
-                e.printStackTrace( printStream );
-                printStream.flush();
-                final String msg = out.toString();
-                return msg;
-            } finally {
-                IOUtils.closeQuietly( printStream );
-            }
-        }
-    }
-
-    /**
-     * Simple resource store - not thread safe.
-     *
-     * @author Axel Mannhardt
-     */
-    private static final class ResourceByIdStore<RESOURCE_TYPE extends Closeable> {
-
-        private static final long FIRST_ID = 1;
-
-        private final Map<Long, RESOURCE_TYPE> _store = new HashMap<Long, RESOURCE_TYPE>();
-        private long _lastAssignedId = FIRST_ID - 1;
-
-        ResourceByIdStore() {
-            Runtime.getRuntime().addShutdownHook( new Thread() {
-                @Override
-                public void run() {
-                    cleanup();
-                }
-            } );
-        }
-
-        long storeNew( final RESOURCE_TYPE res ) {
-            final long nextId = nextId();
-            final Long nextKey = keyOf( nextId );
-            if ( _store.containsKey( nextKey ) ) {
-                throw new IllegalStateException( "tried to overwrite resource" );
-            }
-            final RESOURCE_TYPE previous = _store.put( nextKey, res );
-            if ( previous != null ) {
-                System.err.println( "destroyed other resource while creating new!" );
-            }
-            System.out.println( "Allocated resources: " + _store.size() );
-            return nextId;
-        }
-
-        RESOURCE_TYPE getResource( final long id ) {
-            return _store.get( keyOf( id ) );
-        }
-
-        boolean release( final long id ) {
-            final RESOURCE_TYPE res = _store.get( keyOf( id ) );
-            if ( res == null ) {
-                System.out.println( "Cannot close unknown resource: " + id );
-                return false;
-            }
-            IOUtils.closeQuietly( res );
-            _store.remove( keyOf( id ) );
-            System.out.println( "Remaining resources: " + _store.size() );
-            return true;
-        }
-
-        private long nextId() {
-            long nextId = _lastAssignedId + 1;
-            boolean overflow = false;
-            while ( _store.containsKey( keyOf( nextId ) ) ) {
-                if ( nextId < Long.MAX_VALUE ) {
-                    nextId++;
-                } else {
-                    if ( !overflow ) {
-                        nextId = FIRST_ID;
-                        overflow = true;
-                    } else {
-                        System.err.println( "FATAL: no free ids remaining" );
-                        System.exit( 1 );
-                    }
-                }
-            }
-            _lastAssignedId = nextId;
-            return nextId;
-        }
-
-        private static Long keyOf( final long l ) {
-            return Long.valueOf( l );
-        }
-
-        private void cleanup() {
-            for ( final Long id : _store.keySet() ) {
-                release( id.longValue() );
-            }
-        }
-
     }
 
 }
\ No newline at end of file
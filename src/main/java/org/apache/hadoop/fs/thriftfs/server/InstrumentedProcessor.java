@@ -0,0 +1,102 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.thrift.ProcessFunction;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TBaseProcessor;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+
+/**
+ * Processor recording the service time of every rpc in the
+ * {@link ServiceMetrics}: it wraps the process functions of a generated
+ * processor, so the histograms cover the service method only, not the (de-)
+ * serialization. A call failed if it threw or returned its declared exception
+ * (field 1 of every generated result struct).
+ *
+ * @author Axel Mannhardt
+ */
+final class InstrumentedProcessor<I> extends TBaseProcessor<I> {
+
+    /** Id of the declared exception field in the generated result structs. */
+    private static final short EXCEPTION_FIELD_ID = 1;
+
+    @SuppressWarnings( "rawtypes" )
+    InstrumentedProcessor( final I iface, final Map<String, ProcessFunction<I, ? extends TBase>> functions,
+            final ServiceMetrics metrics ) {
+        super( iface, instrument( functions, metrics ) );
+    }
+
+    @SuppressWarnings( "rawtypes" )
+    private static <I> Map<String, ProcessFunction<I, ? extends TBase>> instrument(
+            final Map<String, ProcessFunction<I, ? extends TBase>> functions, final ServiceMetrics metrics ) {
+        final Map<String, ProcessFunction<I, ? extends TBase>> result = new HashMap<String, ProcessFunction<I, ? extends TBase>>();
+        for ( final Map.Entry<String, ProcessFunction<I, ? extends TBase>> entry : functions.entrySet() ) {
+            result.put( entry.getKey(), timed( entry.getValue(), metrics ) );
+        }
+        return result;
+    }
+
+    @SuppressWarnings( "rawtypes" )
+    private static <I, T extends TBase> ProcessFunction<I, T> timed( final ProcessFunction<I, T> function, final ServiceMetrics metrics ) {
+        return new TimedFunction<I, T>( function, metrics );
+    }
+
+    @SuppressWarnings( "rawtypes" )
+    private static final class TimedFunction<I, T extends TBase> extends ProcessFunction<I, T> {
+
+        private final ProcessFunction<I, T> _delegate;
+        private final ServiceMetrics _metrics;
+        private final LatencyHistogram _latency;
+
+        TimedFunction( final ProcessFunction<I, T> delegate, final ServiceMetrics metrics ) {
+            super( delegate.getMethodName() );
+            _delegate = delegate;
+            _metrics = metrics;
+            _latency = metrics.latency( delegate.getMethodName() );
+        }
+
+        /**
+         * The thrift definition declares no oneway rpcs (and the delegate's
+         * flag is not accessible).
+         */
+        @Override
+        protected boolean isOneway() {
+            return false;
+        }
+
+        @Override
+        public T getEmptyArgsInstance() {
+            return _delegate.getEmptyArgsInstance();
+        }
+
+        @Override
+        public TBase getResult( final I iface, final T args ) throws TException {
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                final TBase result = _delegate.getResult( iface, args );
+                failed = declaredException( result );
+                return result;
+            } catch ( TException | RuntimeException e ) {
+                _metrics.error( e.getClass() );
+                throw e;
+            } finally {
+                _latency.record( ( System.nanoTime() - start ) / 1000, failed );
+            }
+        }
+
+        @SuppressWarnings( "unchecked" )
+        private boolean declaredException( final TBase result ) {
+            final TFieldIdEnum field = result.fieldForId( EXCEPTION_FIELD_ID );
+            if ( field == null || !result.isSet( field ) ) {
+                return false;
+            }
+            _metrics.error( ( (Throwable) result.getFieldValue( field ) ).getClass() );
+            return true;
+        }
+    }
+
+}
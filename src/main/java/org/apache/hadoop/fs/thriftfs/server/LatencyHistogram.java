@@ -0,0 +1,93 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.thriftfs.api.LatencyStats;
+
+/**
+ * Lock free log-linear histogram of latencies in microseconds, in the style of
+ * HdrHistogram: values below 64 are counted exactly, every power of two above
+ * is split into 32 buckets, so a reported percentile is at most about 3% above
+ * the true value. Recording is two atomic increments and no allocation.
+ *
+ * @author Axel Mannhardt
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Values are capped at 2^40 microseconds (about 12 days). */
+    private static final int MAX_EXPONENT = 39;
+    private static final long MAX_VALUE = ( 1L << ( MAX_EXPONENT + 1 ) ) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + ( MAX_EXPONENT - SUB_BITS + 1 ) * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong _failures = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    void record( final long micros, final boolean failed ) {
+        final long value = Math.max( 0, Math.min( micros, MAX_VALUE ) );
+        _counts.incrementAndGet( bucketOf( value ) );
+        _sum.addAndGet( value );
+        if ( failed ) {
+            _failures.incrementAndGet();
+        }
+        long max = _max.get();
+        while ( value > max && !_max.compareAndSet( max, value ) ) {
+            max = _max.get();
+        }
+    }
+
+    /**
+     * Percentiles of the calls recorded so far. Concurrent recording may skew
+     * a snapshot slightly.
+     */
+    LatencyStats snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long calls = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            counts[i] = _counts.get( i );
+            calls += counts[i];
+        }
+        final long max = _max.get();
+        final double mean = calls == 0 ? 0 : (double) _sum.get() / calls;
+        return new LatencyStats( calls, _failures.get(), mean, percentile( counts, calls, 0.5, max ), percentile( counts, calls,
+                0.9, max ), percentile( counts, calls, 0.99, max ), percentile( counts, calls, 0.999, max ), max );
+    }
+
+    private static long percentile( final long[] counts, final long calls, final double fraction, final long max ) {
+        if ( calls == 0 ) {
+            return 0;
+        }
+        final long rank = Math.max( 1, (long) Math.ceil( fraction * calls ) );
+        long seen = 0;
+        for ( int i = 0; i < counts.length; i++ ) {
+            seen += counts[i];
+            if ( seen >= rank ) {
+                return Math.min( highestValueOf( i ), max );
+            }
+        }
+        return max;
+    }
+
+    static int bucketOf( final long value ) {
+        if ( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros( value );
+        final int shift = exponent - SUB_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ( ( value >>> shift ) - SUB_BUCKETS );
+    }
+
+    static long highestValueOf( final int bucket ) {
+        if ( bucket < SUB_BUCKETS ) {
+            return bucket;
+        }
+        final int shift = ( bucket - SUB_BUCKETS ) / SUB_BUCKETS;
+        final long sub = SUB_BUCKETS + ( bucket - SUB_BUCKETS ) % SUB_BUCKETS;
+        return ( ( sub + 1 ) << shift ) - 1;
+    }
+
+}
@@ -0,0 +1,306 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.thriftfs.api.ScanRecord;
+
+/**
+ * A scan of the lines of a file, handed out page by page: the file's
+ * (uncompressed) content is read in chunks through a {@link ReadHandle} and
+ * split at <code>\n</code> (a preceding <code>\r</code> is dropped), and only
+ * the lines passing all filters are returned.
+ *
+ * A byte range scans the lines starting in it - a line crossing the range's
+ * start belongs to the previous range, as with hadoop's line record reader,
+ * so adjacent ranges split a file without loss or overlap. Line numbers count
+ * from 0 at the first line scanned. A substring filter compares bytes (UTF-8),
+ * a regex is matched (find) against the line decoded as UTF-8. Regexes come
+ * from clients, so their matching is bounded: a line may cost
+ * {@link #REGEX_STEPS_PER_CHAR} character reads of the matcher per character
+ * (at least {@link #MIN_REGEX_STEPS}), a pattern backtracking beyond that
+ * fails the scan with a {@link RegexTooExpensiveException}.
+ *
+ * @author Axel Mannhardt
+ */
+final class LineScanner implements Closeable {
+
+    /** Lines are returned up to this length, longer ones truncated. */
+    static final int MAX_LINE_BYTES = 1024 * 1024;
+    /**
+     * Bytes a record takes in a reply besides its line (field headers, line
+     * number, offset and flag of the binary protocol, rounded up), counted
+     * into a page's bytes so that many short lines cannot make a page larger
+     * than a message.
+     */
+    static final int RECORD_OVERHEAD_BYTES = 40;
+    /** Character reads a regex match may take per character of the line. */
+    static final long REGEX_STEPS_PER_CHAR = 256;
+    /** Character reads a regex match may take on any line. */
+    static final long MIN_REGEX_STEPS = 1000000;
+
+    private final ReadHandle _file;
+    private final BufferPool _buffers;
+    private final long _firstLine;
+    private final long _lastLine;
+    private final long _endOffset;
+    private final byte[] _contains;
+    private final Matcher _matcher;
+    private final BudgetedText _regexInput = new BudgetedText();
+    private final long _limit;
+
+    private byte[] _chunk;
+    private int _chunkPosition;
+    private int _chunkLimit;
+    /** File offset of the end of the current chunk. */
+    private long _offset;
+    private boolean _endOfFile;
+    private byte[] _line = new byte[256];
+    private long _lineNumber;
+    private long _matches;
+    private boolean _done;
+
+    /**
+     * @param lastLine inclusive, <code>Long.MAX_VALUE</code> for no limit
+     * @param endOffset lines starting at or after this offset are not
+     *            scanned
+     * @param contains null or the bytes a line must contain
+     * @param regex null or a pattern a line must contain
+     * @param limit matching lines returned at most
+     */
+    LineScanner( final ReadHandle file, final BufferPool buffers, final int chunkSize, final long startOffset,
+            final long endOffset, final long firstLine, final long lastLine, final byte[] contains, final Pattern regex,
+            final long limit ) throws IOException {
+        _file = file;
+        _buffers = buffers;
+        _chunk = buffers.acquire( chunkSize );
+        _endOffset = endOffset;
+        _firstLine = firstLine;
+        _lastLine = lastLine;
+        _contains = contains;
+        _matcher = regex == null ? null : regex.matcher( "" );
+        _limit = limit;
+        if ( startOffset > 0 ) {
+            // the line crossing the start belongs to the previous range, unless it ends right before it
+            _offset = startOffset - 1;
+            int b;
+            while ( ( b = next() ) >= 0 && b != '\n' ) {
+                // skips
+            }
+        }
+    }
+
+    /**
+     * Adds matching lines to <code>page</code> until their bytes (with
+     * {@link #RECORD_OVERHEAD_BYTES} per line) reach <code>maxBytes</code>
+     * (at least one line is added, if any matches) or
+     * <code>maxScanBytes</code> were scanned. The page's bytes exceed
+     * <code>maxBytes</code> by less than the last line's.
+     *
+     * @return whether the scan has more lines
+     */
+    synchronized boolean nextPage( final int maxBytes, final long maxScanBytes, final List<ScanRecord> page ) throws IOException {
+        final long scanStart = position();
+        int pageBytes = 0;
+        while ( !_done && ( page.isEmpty() || pageBytes < maxBytes ) && position() - scanStart < maxScanBytes ) {
+            final long lineStart = position();
+            if ( lineStart >= _endOffset || _lineNumber > _lastLine ) {
+                _done = true;
+                break;
+            }
+            final int length = readLine();
+            if ( length < 0 ) {
+                _done = true;
+                break;
+            }
+            final long lineNumber = _lineNumber++;
+            if ( lineNumber < _firstLine || !matches( length, lineNumber ) ) {
+                continue;
+            }
+            final int returned = Math.min( length, MAX_LINE_BYTES );
+            final ScanRecord record = new ScanRecord( lineNumber, lineStart, ByteBuffer.wrap( Arrays.copyOf( _line, returned ) ) );
+            if ( returned < length ) {
+                record.setTruncated( true );
+            }
+            page.add( record );
+            pageBytes += returned + RECORD_OVERHEAD_BYTES;
+            if ( ++_matches >= _limit ) {
+                _done = true;
+            }
+        }
+        return !_done;
+    }
+
+    /**
+     * Offset of the next byte to scan.
+     */
+    private long position() {
+        return _offset - ( _chunkLimit - _chunkPosition );
+    }
+
+    /**
+     * Reads the next line into {@link #_line}, keeping at most one byte more
+     * than {@link #MAX_LINE_BYTES}.
+     *
+     * @return the line's length (without the line break), -1 at the end of
+     *         the file
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        boolean any = false;
+        int b;
+        while ( ( b = next() ) >= 0 ) {
+            any = true;
+            if ( b == '\n' ) {
+                break;
+            }
+            if ( length < MAX_LINE_BYTES + 1 ) {
+                if ( length == _line.length ) {
+                    _line = Arrays.copyOf( _line, Math.min( 2 * length, MAX_LINE_BYTES + 1 ) );
+                }
+                _line[length] = (byte) b;
+            }
+            length++;
+        }
+        if ( !any ) {
+            return -1;
+        }
+        if ( length > 0 && length <= MAX_LINE_BYTES && _line[length - 1] == '\r' ) {
+            length--;
+        }
+        return length;
+    }
+
+    private boolean matches( final int length, final long lineNumber ) throws RegexTooExpensiveException {
+        final int kept = Math.min( length, MAX_LINE_BYTES );
+        if ( _contains != null && indexOf( _line, kept, _contains ) < 0 ) {
+            return false;
+        }
+        if ( _matcher == null ) {
+            return true;
+        }
+        final String line = new String( _line, 0, kept, StandardCharsets.UTF_8 );
+        final long budget = Math.max( MIN_REGEX_STEPS, REGEX_STEPS_PER_CHAR * line.length() );
+        try {
+            return _matcher.reset( _regexInput.reset( line, budget ) ).find();
+        } catch ( final BudgetExceeded e ) {
+            throw new RegexTooExpensiveException( "regex " + _matcher.pattern() + " took more than " + budget
+                    + " steps on line " + lineNumber );
+        } finally {
+            _matcher.reset( "" );
+        }
+    }
+
+    private static int indexOf( final byte[] data, final int length, final byte[] pattern ) {
+        final int last = length - pattern.length;
+        outer: for ( int i = 0; i <= last; i++ ) {
+            for ( int j = 0; j < pattern.length; j++ ) {
+                if ( data[i + j] != pattern[j] ) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int next() throws IOException {
+        if ( _chunkPosition == _chunkLimit ) {
+            if ( _endOfFile ) {
+                return -1;
+            }
+            final int read = _file.read( _offset, _chunk, _chunk.length );
+            _chunkPosition = 0;
+            _chunkLimit = Math.max( read, 0 );
+            _offset += _chunkLimit;
+            if ( _chunkLimit < _chunk.length ) {
+                _endOfFile = true;
+            }
+            if ( _chunkLimit == 0 ) {
+                return -1;
+            }
+        }
+        return _chunk[_chunkPosition++] & 0xff;
+    }
+
+    /**
+     * A client's regex backtracked beyond the budget of a line.
+     */
+    static final class RegexTooExpensiveException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RegexTooExpensiveException( final String message ) {
+            super( message );
+        }
+    }
+
+    /**
+     * Thrown out of the matcher when the budget is used up, without a stack
+     * trace.
+     */
+    private static final class BudgetExceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceeded() {
+            super( null, null, false, false );
+        }
+    }
+
+    /**
+     * The line handed to the matcher, counting the character reads against a
+     * budget: the regex engine reads the input through {@link #charAt(int)}
+     * on every step, also when backtracking.
+     */
+    private static final class BudgetedText implements CharSequence {
+        private String _text = "";
+        private long _remaining;
+
+        BudgetedText reset( final String text, final long budget ) {
+            _text = text;
+            _remaining = budget;
+            return this;
+        }
+
+        @Override
+        public char charAt( final int index ) {
+            if ( --_remaining < 0 ) {
+                throw new BudgetExceeded();
+            }
+            return _text.charAt( index );
+        }
+
+        @Override
+        public int length() {
+            return _text.length();
+        }
+
+        @Override
+        public CharSequence subSequence( final int start, final int end ) {
+            return _text.subSequence( start, end );
+        }
+
+        @Override
+        public String toString() {
+            return _text;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if ( _chunk != null ) {
+            _buffers.release( _chunk );
+            _chunk = null;
+            _chunkPosition = _chunkLimit = 0;
+            _endOfFile = true;
+            _done = true;
+            _file.close();
+        }
+    }
+
+}
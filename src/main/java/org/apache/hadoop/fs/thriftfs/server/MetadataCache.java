@@ -0,0 +1,225 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.thriftfs.api.BlockLocation;
+import org.apache.hadoop.thriftfs.api.CacheStats;
+import org.apache.hadoop.thriftfs.api.FileStatus;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Bounded cache of converted file metadata with a fixed time to live. Entries
+ * are keyed by the fully qualified path string: the status of a path, the
+ * listing of a directory, and the block locations of a file (all requested
+ * ranges of a file share one entry, so they expire and are invalidated
+ * together). The cached objects are shared between calls and must not be
+ * modified.
+ *
+ * A value loaded while its path is invalidated is not cached: invalidation
+ * bumps a generation per key (striped, so unrelated keys share some), and a
+ * load is cached only if the generation is unchanged after the put.
+ *
+ * With a capacity of 0 the cache is disabled and every lookup loads.
+ *
+ * @author Axel Mannhardt
+ */
+final class MetadataCache {
+
+    /**
+     * Loads a value on a cache miss.
+     */
+    interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private static final int MAX_RANGES_PER_FILE = 64;
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final Cache<Key, Object> _cache;
+    private final long _capacity;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    /** Invalidations per key stripe. */
+    private final AtomicLongArray _generations = new AtomicLongArray( GENERATION_STRIPES );
+    /** Tree invalidations, which concern keys not cached yet as well. */
+    private final AtomicLong _treeGeneration = new AtomicLong();
+
+    MetadataCache( final long maxEntries, final long ttlMillis ) {
+        _capacity = maxEntries;
+        if ( maxEntries <= 0 ) {
+            _cache = null;
+            return;
+        }
+        _cache = CacheBuilder.newBuilder().maximumSize( maxEntries ).expireAfterWrite( ttlMillis, TimeUnit.MILLISECONDS )
+                .removalListener( new RemovalListener<Key, Object>() {
+                    @Override
+                    public void onRemoval( final RemovalNotification<Key, Object> notification ) {
+                        if ( notification.getCause() == RemovalCause.SIZE || notification.getCause() == RemovalCause.EXPIRED ) {
+                            _evictions.incrementAndGet();
+                        }
+                    }
+                } ).build();
+    }
+
+    FileStatus status( final String path, final Loader<FileStatus> loader ) throws IOException {
+        return get( new Key( Kind.STATUS, path ), loader );
+    }
+
+    List<FileStatus> listing( final String path, final Loader<List<FileStatus>> loader ) throws IOException {
+        return get( new Key( Kind.LISTING, path ), loader );
+    }
+
+    List<BlockLocation> blockLocations( final String path, final long start, final long length,
+            final Loader<List<BlockLocation>> loader ) throws IOException {
+        if ( _cache == null ) {
+            return loader.load();
+        }
+        final Key key = new Key( Kind.BLOCKS, path );
+        @SuppressWarnings( "unchecked" )
+        ConcurrentMap<String, List<BlockLocation>> ranges = (ConcurrentMap<String, List<BlockLocation>>) _cache.getIfPresent( key );
+        if ( ranges == null ) {
+            ranges = new ConcurrentHashMap<String, List<BlockLocation>>();
+            @SuppressWarnings( "unchecked" )
+            final ConcurrentMap<String, List<BlockLocation>> raced =
+                    (ConcurrentMap<String, List<BlockLocation>>) _cache.asMap().putIfAbsent( key, ranges );
+            if ( raced != null ) {
+                ranges = raced;
+            }
+        }
+        final String range = start + "+" + length;
+        List<BlockLocation> result = ranges.get( range );
+        if ( result != null ) {
+            _hits.incrementAndGet();
+            return result;
+        }
+        _misses.incrementAndGet();
+        result = loader.load();
+        // invalidated meanwhile, the ranges map is no longer cached and this put is dropped with it
+        if ( ranges.size() < MAX_RANGES_PER_FILE ) {
+            ranges.put( range, result );
+        }
+        return result;
+    }
+
+    /**
+     * Drops everything cached for the path, including the listing of its
+     * parent directory.
+     */
+    void invalidate( final String path, final String parent ) {
+        if ( _cache == null ) {
+            return;
+        }
+        invalidate( new Key( Kind.STATUS, path ) );
+        invalidate( new Key( Kind.LISTING, path ) );
+        invalidate( new Key( Kind.BLOCKS, path ) );
+        if ( parent != null ) {
+            invalidate( new Key( Kind.LISTING, parent ) );
+        }
+    }
+
+    /**
+     * Drops everything cached for the path and all paths below it (after a
+     * directory was removed or renamed), including the listing of its parent
+     * directory. Scans the whole cache.
+     */
+    void invalidateTree( final String path, final String parent ) {
+        if ( _cache == null ) {
+            return;
+        }
+        _treeGeneration.incrementAndGet();
+        invalidate( path, parent );
+        final String prefix = path.endsWith( "/" ) ? path : path + "/";
+        for ( final Key key : _cache.asMap().keySet() ) {
+            if ( key._path.startsWith( prefix ) ) {
+                invalidate( key );
+            }
+        }
+    }
+
+    CacheStats stats() {
+        final long size = _cache == null ? 0 : _cache.size();
+        return new CacheStats( _hits.get(), _misses.get(), _evictions.get(), size, _capacity );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private <T> T get( final Key key, final Loader<T> loader ) throws IOException {
+        if ( _cache == null ) {
+            return loader.load();
+        }
+        final T cached = (T) _cache.getIfPresent( key );
+        if ( cached != null ) {
+            _hits.incrementAndGet();
+            return cached;
+        }
+        _misses.incrementAndGet();
+        final long generation = generation( key );
+        final T loaded = loader.load();
+        if ( loaded != null && generation( key ) == generation ) {
+            _cache.put( key, loaded );
+            // an invalidation between the check and the put has bumped the generation before it invalidated
+            if ( generation( key ) != generation ) {
+                _cache.asMap().remove( key, loaded );
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Bumps the key's generation first, so a load in flight does not cache
+     * the value it read before.
+     */
+    private void invalidate( final Key key ) {
+        _generations.incrementAndGet( stripe( key ) );
+        _cache.invalidate( key );
+    }
+
+    private long generation( final Key key ) {
+        return _generations.get( stripe( key ) ) + _treeGeneration.get();
+    }
+
+    private static int stripe( final Key key ) {
+        final int hash = key.hashCode();
+        return ( hash ^ hash >>> 16 ) & ( GENERATION_STRIPES - 1 );
+    }
+
+    private enum Kind {
+        STATUS, LISTING, BLOCKS
+    }
+
+    private static final class Key {
+        private final Kind _kind;
+        private final String _path;
+
+        Key( final Kind kind, final String path ) {
+            _kind = kind;
+            _path = path;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * _kind.hashCode() + _path.hashCode();
+        }
+
+        @Override
+        public boolean equals( final Object obj ) {
+            if ( !( obj instanceof Key ) ) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return _kind == other._kind && _path.equals( other._path );
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file uploaded in parts: every part is written to its own hidden file next
+ * to the target, so parts sent concurrently (from any connection) are written
+ * through as many datanode pipelines. Completing the upload joins the parts in
+ * the order of their numbers - by moving their blocks with
+ * {@link FileSystem#concat(Path, Path[])} where the file system supports it,
+ * else by copying them into one file - and renames the result to the target,
+ * replacing an existing file.
+ *
+ * Uploading a part again replaces it, so a failed part can be retried. With a
+ * codec (gzip only, whose members may be concatenated) every part is
+ * compressed by itself. Closing the upload (abort, expiry) deletes its parts,
+ * parts still being written are deleted once written.
+ *
+ * @author Axel Mannhardt
+ */
+final class MultipartUpload implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger( MultipartUpload.class );
+
+    private static final int MERGE_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    private final FileSystem _fs;
+    private final HdfsContext _context;
+    private final Path _target;
+    private final CompressionCodec _codec;
+    /** The parts' files are named after it: <code>.&lt;name&gt;.upload-&lt;uuid&gt;</code>. */
+    private final String _prefix;
+    /** Written parts by number, empty plain parts are left out. */
+    private final SortedMap<Integer, Path> _parts = new TreeMap<Integer, Path>();
+    private int _attempts;
+    private int _writing;
+    private boolean _closed;
+
+    /**
+     * @param codec <code>null</code>, or a codec whose compressed streams may
+     *            be concatenated
+     */
+    MultipartUpload( final FileSystem fs, final HdfsContext context, final Path target, final CompressionCodec codec ) {
+        _fs = fs;
+        _context = context;
+        _target = target;
+        _codec = codec;
+        _prefix = "." + target.getName() + ".upload-" + UUID.randomUUID();
+    }
+
+    Path target() {
+        return _target;
+    }
+
+    /**
+     * Writes the part, replacing an earlier one of the same number.
+     *
+     * @return false if the upload was completed or closed
+     */
+    boolean writePart( final int partNumber, final ByteBuffer data ) throws IOException {
+        final Path file = beginPart( partNumber );
+        if ( file == null ) {
+            return false;
+        }
+        boolean written = false;
+        try {
+            if ( data.hasRemaining() || _codec != null ) {
+                try ( OutputStream out = openPart( file ) ) {
+                    out.write( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+                }
+            }
+            written = true;
+        } finally {
+            endPart( partNumber, data.hasRemaining() || _codec != null ? file : null, written );
+        }
+        return true;
+    }
+
+    private OutputStream openPart( final Path file ) throws IOException {
+        final OutputStream stream = _fs.create( file, true );
+        if ( _codec == null ) {
+            return stream;
+        }
+        try {
+            return _context.createOutputStream( _codec, stream );
+        } catch ( final IOException e ) {
+            IOUtils.closeQuietly( stream );
+            throw e;
+        }
+    }
+
+    private synchronized Path beginPart( final int partNumber ) {
+        if ( _closed ) {
+            return null;
+        }
+        _writing++;
+        return new Path( _target.getParent(), _prefix + "." + partNumber + "-" + _attempts++ );
+    }
+
+    /**
+     * @param file <code>null</code> for an empty part without a file
+     */
+    private void endPart( final int partNumber, final Path file, final boolean written ) {
+        Path obsolete = file;
+        synchronized ( this ) {
+            if ( written && !_closed ) {
+                obsolete = file == null ? _parts.remove( partNumber ) : _parts.put( partNumber, file );
+            }
+            if ( --_writing == 0 ) {
+                notifyAll();
+            }
+        }
+        delete( obsolete );
+    }
+
+    /**
+     * Joins the parts into the target and ends the upload, the parts are
+     * deleted whether completing succeeds or not.
+     */
+    void complete() throws IOException {
+        final List<Path> parts = finish();
+        final List<Path> leftovers = new ArrayList<Path>( parts );
+        try {
+            final Path joined = join( parts, leftovers );
+            replaceTarget( joined );
+            leftovers.remove( joined );
+        } finally {
+            for ( final Path leftover : leftovers ) {
+                delete( leftover );
+            }
+        }
+    }
+
+    /**
+     * Stops accepting parts and waits for the parts being written.
+     */
+    private synchronized List<Path> finish() throws IOException {
+        _closed = true;
+        while ( _writing > 0 ) {
+            try {
+                wait();
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "interrupted while waiting for the parts of " + _target );
+            }
+        }
+        final List<Path> parts = new ArrayList<Path>( _parts.values() );
+        _parts.clear();
+        return parts;
+    }
+
+    /**
+     * @param leftovers files to delete once the upload ended, the files this
+     *            creates are added
+     */
+    private Path join( final List<Path> parts, final List<Path> leftovers ) throws IOException {
+        if ( parts.isEmpty() ) {
+            final Path empty = new Path( _target.getParent(), _prefix + ".empty" );
+            leftovers.add( empty );
+            openPart( empty ).close();
+            return empty;
+        }
+        final Path first = parts.get( 0 );
+        if ( parts.size() == 1 ) {
+            return first;
+        }
+        final List<Path> rest = parts.subList( 1, parts.size() );
+        try {
+            _fs.concat( first, rest.toArray( new Path[rest.size()] ) );
+            leftovers.removeAll( rest );
+            return first;
+        } catch ( final UnsupportedOperationException e ) {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( _fs.getScheme() + " does not support concat, copying the parts of " + _target );
+            }
+        }
+        final Path merged = new Path( _target.getParent(), _prefix + ".merged" );
+        leftovers.add( merged );
+        final byte[] buffer = new byte[MERGE_BUFFER_BYTES];
+        try ( OutputStream out = _fs.create( merged, true ) ) {
+            for ( final Path part : parts ) {
+                try ( InputStream in = _fs.open( part ) ) {
+                    IOUtils.copyLarge( in, out, buffer );
+                }
+            }
+        }
+        return merged;
+    }
+
+    private void replaceTarget( final Path joined ) throws IOException {
+        if ( _fs instanceof ChecksumFileSystem ) {
+            // local file systems replace files on rename, and move the checksum file along
+            if ( !_fs.rename( joined, _target ) ) {
+                throw new IOException( "cannot rename " + joined + " to " + _target );
+            }
+            return;
+        }
+        FileContext.getFileContext( _fs.getUri(), _context.configuration() ).rename( joined, _target, Options.Rename.OVERWRITE );
+    }
+
+    /**
+     * Aborts the upload and deletes its parts.
+     */
+    @Override
+    public void close() {
+        final List<Path> parts;
+        synchronized ( this ) {
+            _closed = true;
+            parts = new ArrayList<Path>( _parts.values() );
+            _parts.clear();
+        }
+        for ( final Path part : parts ) {
+            delete( part );
+        }
+    }
+
+    private void delete( final Path file ) {
+        if ( file == null ) {
+            return;
+        }
+        try {
+            _fs.delete( file, false );
+        } catch ( final IOException e ) {
+            LOG.warn( "cannot delete upload part " + file, e );
+        }
+    }
+
+}
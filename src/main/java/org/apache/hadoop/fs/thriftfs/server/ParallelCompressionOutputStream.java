@@ -0,0 +1,369 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.bzip2.Bzip2Factory;
+
+/**
+ * Compresses on a fork join pool: the data is cut into blocks, which are
+ * compressed independently and concurrently, and written in order. At most
+ * <code>maxPendingBlocks</code> blocks are in flight, a writer getting ahead
+ * of the pool waits for the oldest one.
+ *
+ * The output is a regular file of the codec: for gzip the blocks are
+ * concatenated gzip members (read by gzip and hadoop alike), for bzip2 the
+ * blocks of the independently compressed streams are spliced (bitwise) into a
+ * single stream with the combined crc, so hadoop's splittable bzip2 reader
+ * finds every block. Not thread safe, like any output stream.
+ *
+ * The blocks to compress are buffers of the {@link BufferPool}, returned once
+ * compressed.
+ *
+ * @author Axel Mannhardt
+ */
+final class ParallelCompressionOutputStream extends OutputStream {
+
+    /**
+     * Upper bound of a bzip2 block's input per 100k of the block size: even
+     * if the run length encoding preceding the block sort expands it (by 5/4
+     * at most), it fits into one block, 700000 bytes for 900k blocks.
+     */
+    private static final int MAX_BZIP2_INPUT_PER_100K = 700000 / 9;
+
+    private final OutputStream _out;
+    private final CompressionCodec _codec;
+    private final HdfsContext _context;
+    private final ForkJoinPool _pool;
+    private final BufferPool _buffers;
+    private final int _blockSize;
+    private final int _maxPendingBlocks;
+    private final Joiner _joiner;
+    private final Deque<ForkJoinTask<byte[]>> _pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+    private byte[] _block;
+    private int _blockLength;
+    private boolean _anyBlock;
+    private boolean _closed;
+
+    ParallelCompressionOutputStream( final OutputStream out, final CompressionCodec codec, final HdfsContext context,
+            final ForkJoinPool pool, final BufferPool buffers, final int blockSize, final int maxPendingBlocks ) {
+        _out = out;
+        _codec = codec;
+        _context = context;
+        _pool = pool;
+        _buffers = buffers;
+        _maxPendingBlocks = maxPendingBlocks;
+        if ( codec instanceof BZip2Codec ) {
+            final int bzip2BlockSize = bzip2BlockSize( codec );
+            _joiner = new Bzip2Joiner( bzip2BlockSize );
+            _blockSize = Math.min( blockSize, bzip2BlockSize * MAX_BZIP2_INPUT_PER_100K );
+        } else {
+            _joiner = new ConcatenatingJoiner();
+            _blockSize = blockSize;
+        }
+        _block = buffers.acquire( _blockSize );
+    }
+
+    /**
+     * The block size (in 100k) the codec's compressor is configured with.
+     * Hadoop's java compressor always takes 900k blocks, the native one the
+     * configured size, so a bound of the input fitting the configured size
+     * fits both.
+     */
+    private static int bzip2BlockSize( final CompressionCodec codec ) {
+        final Configuration conf = codec instanceof Configurable ? ( (Configurable) codec ).getConf() : null;
+        return conf == null ? 9 : Math.max( 1, Math.min( 9, Bzip2Factory.getBlockSize( conf ) ) );
+    }
+
+    /**
+     * Whether the codec's files can be compressed block by block.
+     */
+    static boolean supports( final CompressionCodec codec ) {
+        return codec instanceof GzipCodec || codec instanceof BZip2Codec;
+    }
+
+    @Override
+    public void write( final int b ) throws IOException {
+        write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override
+    public void write( final byte[] b, final int off, final int len ) throws IOException {
+        checkOpen();
+        int written = 0;
+        while ( written < len ) {
+            final int n = Math.min( len - written, _blockSize - _blockLength );
+            System.arraycopy( b, off + written, _block, _blockLength, n );
+            _blockLength += n;
+            written += n;
+            if ( _blockLength == _blockSize ) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the blocks compressed so far, a partial block stays buffered
+     * (compressing it now would cut a block short).
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        while ( !_pending.isEmpty() && _pending.peekFirst().isDone() ) {
+            writeOldest();
+        }
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( _closed ) {
+            return;
+        }
+        try {
+            if ( _blockLength > 0 || !_anyBlock ) {
+                // an empty file still gets the codec's header and trailer
+                submitBlock();
+            }
+            while ( !_pending.isEmpty() ) {
+                writeOldest();
+            }
+            _joiner.finish( _out );
+        } finally {
+            _closed = true;
+            for ( final ForkJoinTask<byte[]> task : _pending ) {
+                task.cancel( false );
+            }
+            if ( _block != null ) {
+                _buffers.release( _block );
+                _block = null;
+            }
+            _out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        while ( _pending.size() >= _maxPendingBlocks ) {
+            writeOldest();
+        }
+        final byte[] block = _block;
+        final int length = _blockLength;
+        _block = null;
+        _pending.addLast( _pool.submit( new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                try {
+                    return compress( block, length );
+                } finally {
+                    _buffers.release( block );
+                }
+            }
+        } ) );
+        _anyBlock = true;
+        _block = _buffers.acquire( _blockSize );
+        _blockLength = 0;
+    }
+
+    private byte[] compress( final byte[] block, final int length ) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream( length / 2 + 64 );
+        final OutputStream stream = _context.createOutputStream( _codec, compressed );
+        try {
+            stream.write( block, 0, length );
+        } finally {
+            stream.close();
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeOldest() throws IOException {
+        final byte[] compressed;
+        try {
+            compressed = _pending.removeFirst().get();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while waiting for compression" );
+        } catch ( final ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "compression failed", e.getCause() );
+        }
+        _joiner.append( compressed, _out );
+    }
+
+    private void checkOpen() throws IOException {
+        if ( _closed ) {
+            throw new IOException( "stream closed" );
+        }
+    }
+
+    /**
+     * Joins the independently compressed blocks into one file.
+     */
+    private interface Joiner {
+        void append( byte[] compressed, OutputStream out ) throws IOException;
+
+        void finish( OutputStream out ) throws IOException;
+    }
+
+    /**
+     * For formats allowing concatenated streams, like gzip members.
+     */
+    private static final class ConcatenatingJoiner implements Joiner {
+        @Override
+        public void append( final byte[] compressed, final OutputStream out ) throws IOException {
+            out.write( compressed );
+        }
+
+        @Override
+        public void finish( final OutputStream out ) {
+            // every block is complete by itself
+        }
+    }
+
+    /**
+     * Splices single block bzip2 streams into one: keeps the first stream
+     * header, appends the block bits of every stream (blocks are not byte
+     * aligned) and ends with one end of stream marker and the combined crc.
+     * The streams are single block as their input is sized for the block size
+     * the joiner is created with; a stream with smaller blocks is refused.
+     */
+    private static final class Bzip2Joiner implements Joiner {
+        private static final int HEADER_BITS = 32;
+        private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+        private static final int TRAILER_BITS = 48 + 32;
+
+        private final BitWriter _bits = new BitWriter();
+        private final int _blockSize;
+        private boolean _headerWritten;
+        private int _combinedCrc;
+
+        Bzip2Joiner( final int blockSize ) {
+            _blockSize = blockSize;
+        }
+
+        @Override
+        public void append( final byte[] compressed, final OutputStream out ) throws IOException {
+            // "BZh" and the block size in 100k as a digit
+            final int blockSize = compressed.length < 4 ? -1 : compressed[3] - '0';
+            if ( blockSize < _blockSize || blockSize > 9 ) {
+                throw new IOException( "bzip2 stream with block size " + blockSize + " instead of at least " + _blockSize
+                        + ", it may hold several blocks" );
+            }
+            final long endOfBlocks = endOfStreamPosition( compressed );
+            if ( !_headerWritten ) {
+                _bits.copy( compressed, 0, HEADER_BITS );
+                _headerWritten = true;
+            }
+            if ( endOfBlocks > HEADER_BITS ) {
+                // a single block stream: its crc is the block crc
+                final int blockCrc = (int) BitWriter.read( compressed, endOfBlocks + 48, 32 );
+                _combinedCrc = ( ( _combinedCrc << 1 ) | ( _combinedCrc >>> 31 ) ) ^ blockCrc;
+                _bits.copy( compressed, HEADER_BITS, endOfBlocks );
+            }
+            _bits.drainTo( out );
+        }
+
+        @Override
+        public void finish( final OutputStream out ) throws IOException {
+            _bits.write( END_OF_STREAM_MAGIC, 48 );
+            _bits.write( _combinedCrc & 0xffffffffL, 32 );
+            _bits.pad();
+            _bits.drainTo( out );
+        }
+
+        /**
+         * Bit position of the end of stream marker, which is followed by the
+         * stream crc and padding to the next byte only.
+         */
+        private static long endOfStreamPosition( final byte[] compressed ) throws IOException {
+            final long totalBits = 8L * compressed.length;
+            for ( int padding = 0; padding < 8; padding++ ) {
+                final long position = totalBits - padding - TRAILER_BITS;
+                if ( position >= HEADER_BITS && BitWriter.read( compressed, position, 48 ) == END_OF_STREAM_MAGIC ) {
+                    return position;
+                }
+            }
+            throw new IOException( "no end of stream marker found in compressed bzip2 block" );
+        }
+    }
+
+    /**
+     * Collects bits (most significant first) into bytes.
+     */
+    private static final class BitWriter {
+        private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+        private long _buffer;
+        private int _count;
+
+        void write( final long value, final int bits ) {
+            for ( int remaining = bits; remaining > 0; ) {
+                final int n = Math.min( remaining, 8 );
+                remaining -= n;
+                _buffer = ( _buffer << n ) | ( ( value >>> remaining ) & ( ( 1 << n ) - 1 ) );
+                _count += n;
+                if ( _count >= 8 ) {
+                    _count -= 8;
+                    _bytes.write( (int) ( _buffer >>> _count ) );
+                }
+            }
+        }
+
+        /**
+         * Appends the bits <code>[from, to)</code> of <code>source</code>.
+         */
+        void copy( final byte[] source, final long from, final long to ) {
+            long position = from;
+            if ( _count == 0 && ( position & 7 ) == 0 ) {
+                final int whole = (int) ( ( to - position ) >>> 3 );
+                _bytes.write( source, (int) ( position >>> 3 ), whole );
+                position += 8L * whole;
+            }
+            for ( ; position + 8 <= to; position += 8 ) {
+                write( read( source, position, 8 ), 8 );
+            }
+            if ( position < to ) {
+                write( read( source, position, (int) ( to - position ) ), (int) ( to - position ) );
+            }
+        }
+
+        void pad() {
+            if ( _count > 0 ) {
+                write( 0, 8 - _count );
+            }
+        }
+
+        void drainTo( final OutputStream out ) throws IOException {
+            _bytes.writeTo( out );
+            _bytes.reset();
+        }
+
+        /**
+         * Reads up to 56 bits at a bit position.
+         */
+        static long read( final byte[] source, final long position, final int bits ) {
+            long value = 0;
+            final int first = (int) ( position >>> 3 );
+            final int last = (int) ( ( position + bits - 1 ) >>> 3 );
+            for ( int i = first; i <= last; i++ ) {
+                value = ( value << 8 ) | ( source[i] & 0xff );
+            }
+            final int trailing = (int) ( 8L * ( last + 1 ) - ( position + bits ) );
+            return ( value >>> trailing ) & ( ( 1L << bits ) - 1 );
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+
+/**
+ * Input transport factory of the blocking server engines, which hand it the
+ * accepted socket: the transports it creates remember the socket's peer
+ * address, so the {@link ScheduledProcessor} can tell clients apart by host
+ * rather than by connection - a client opening many connections is still one
+ * client. Everything else is delegated to the transport of the wrapped
+ * factory (plain or framed).
+ *
+ * @author Axel Mannhardt
+ */
+final class PeerTransportFactory extends TTransportFactory {
+
+    private final TTransportFactory _delegate;
+
+    PeerTransportFactory( final TTransportFactory delegate ) {
+        _delegate = delegate;
+    }
+
+    @Override
+    public TTransport getTransport( final TTransport trans ) {
+        final Object peer = trans instanceof TSocket && ( (TSocket) trans ).getSocket().getInetAddress() != null
+                ? ( (TSocket) trans ).getSocket().getInetAddress() : trans;
+        return new PeerTransport( _delegate.getTransport( trans ), peer );
+    }
+
+    /**
+     * The client of the call read from the protocol: the peer address of its
+     * connection if the transport was created by this factory, else the
+     * transport, which the nonblocking engines create per call - all their
+     * calls are then taken for one client's.
+     */
+    static Object clientOf( final TTransport transport ) {
+        return transport instanceof PeerTransport ? ( (PeerTransport) transport )._peer : PeerTransportFactory.class;
+    }
+
+    /**
+     * A transport delegating to another, including the buffer access the
+     * protocols use to read without copying.
+     */
+    private static final class PeerTransport extends TTransport {
+        private final TTransport _transport;
+        private final Object _peer;
+
+        PeerTransport( final TTransport transport, final Object peer ) {
+            _transport = transport;
+            _peer = peer;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _transport.isOpen();
+        }
+
+        @Override
+        public boolean peek() {
+            return _transport.peek();
+        }
+
+        @Override
+        public void open() throws TTransportException {
+            _transport.open();
+        }
+
+        @Override
+        public void close() {
+            _transport.close();
+        }
+
+        @Override
+        public int read( final byte[] buf, final int off, final int len ) throws TTransportException {
+            return _transport.read( buf, off, len );
+        }
+
+        @Override
+        public int readAll( final byte[] buf, final int off, final int len ) throws TTransportException {
+            return _transport.readAll( buf, off, len );
+        }
+
+        @Override
+        public void write( final byte[] buf, final int off, final int len ) throws TTransportException {
+            _transport.write( buf, off, len );
+        }
+
+        @Override
+        public void flush() throws TTransportException {
+            _transport.flush();
+        }
+
+        @Override
+        public byte[] getBuffer() {
+            return _transport.getBuffer();
+        }
+
+        @Override
+        public int getBufferPosition() {
+            return _transport.getBufferPosition();
+        }
+
+        @Override
+        public int getBytesRemainingInBuffer() {
+            return _transport.getBytesRemainingInBuffer();
+        }
+
+        @Override
+        public void consumeBuffer( final int len ) {
+            _transport.consumeBuffer( len );
+        }
+    }
+
+}
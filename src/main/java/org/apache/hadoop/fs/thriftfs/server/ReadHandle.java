@@ -0,0 +1,198 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * A file opened for reading.
+ *
+ * Plain files are read with positional reads (pread) on the hdfs stream, which
+ * neither need nor change a stream position, so any offset can be read and
+ * concurrent reads on the same handle do not block each other. Compressed files
+ * can only be decompressed front to back: a read before the current position,
+ * or far after it, restarts decompression at the nearest preceding checkpoint
+ * of the file's {@link CheckpointIndex} and skips from there.
+ *
+ * Plain files may be read through the shared {@link BlockReadCache}; a read
+ * continuing where the previous one ended triggers read ahead.
+ *
+ * Reads share a read lock, {@link #close()} takes the write lock: a handle
+ * released by another thread (closeReadHandle, the idle reaper) is closed
+ * once the reads in flight are done, later reads fail.
+ *
+ * @author Axel Mannhardt
+ */
+final class ReadHandle implements Closeable {
+
+    /**
+     * Restarts decompression of a compressed file.
+     */
+    interface Checkpoints {
+        CheckpointIndex index() throws IOException;
+
+        /**
+         * @return the uncompressed content from the checkpoint on
+         */
+        InputStream open( CheckpointIndex index, int checkpoint ) throws IOException;
+    }
+
+    /** Forward skips up to this far decompress and discard, without looking up checkpoints. */
+    private static final long MAX_SKIP_WITHOUT_INDEX = 4 * 1024 * 1024;
+
+    private final FSDataInputStream _raw;
+    private final Checkpoints _checkpoints;
+    private final BlockReadCache _cache;
+    private final BlockReadCache.CachedFile _cachedFile;
+    /** Held by reads, taken exclusively by close. */
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    /** Guarded by the write lock. */
+    private boolean _closed;
+    /** Serializes the reads of a compressed file. */
+    private final Object _decompressLock = new Object();
+    /** The decompressed stream and the position in it, guarded by the decompress lock. */
+    private InputStream _decompressed;
+    private long _position;
+    /** End of the last cached read, to detect sequential reading. */
+    private volatile long _lastEnd = -1;
+
+    ReadHandle( final FSDataInputStream raw ) {
+        this( raw, null, null, null, null );
+    }
+
+    /**
+     * @param decompressed the compressed file's content, from the start
+     * @param checkpoints to restart decompression at other offsets
+     */
+    ReadHandle( final FSDataInputStream raw, final InputStream decompressed, final Checkpoints checkpoints ) {
+        this( raw, decompressed, checkpoints, null, null );
+    }
+
+    /**
+     * @param cache read cache for a plain file, <code>null</code> to read
+     *            uncached
+     * @param cachedFile identifies the plain file in the cache
+     */
+    ReadHandle( final FSDataInputStream raw, final BlockReadCache cache, final BlockReadCache.CachedFile cachedFile ) {
+        this( raw, null, null, cache, cachedFile );
+    }
+
+    private ReadHandle( final FSDataInputStream raw, final InputStream decompressed, final Checkpoints checkpoints,
+            final BlockReadCache cache, final BlockReadCache.CachedFile cachedFile ) {
+        _raw = raw;
+        _decompressed = decompressed;
+        _checkpoints = checkpoints;
+        _cache = cache;
+        _cachedFile = cachedFile;
+    }
+
+    boolean isCompressed() {
+        return _checkpoints != null;
+    }
+
+    /**
+     * Reads up to <code>length</code> bytes of the (uncompressed) file content
+     * starting at <code>offset</code> into the start of <code>buffer</code>.
+     * Returns the number of bytes read, which is less than <code>length</code>
+     * only at the end of the file.
+     */
+    int read( final long offset, final byte[] buffer, final int length ) throws IOException {
+        return read( offset, buffer, 0, length );
+    }
+
+    /**
+     * As {@link #read(long, byte[], int)}, into <code>buffer</code> at
+     * <code>bufferOffset</code>.
+     */
+    int read( final long offset, final byte[] buffer, final int bufferOffset, final int length ) throws IOException {
+        _lock.readLock().lock();
+        try {
+            if ( _closed ) {
+                throw new IOException( "read handle is closed" );
+            }
+            if ( _cache != null ) {
+                return readCached( offset, buffer, bufferOffset, length );
+            }
+            if ( _checkpoints == null ) {
+                return pread( offset, buffer, bufferOffset, length );
+            }
+            synchronized ( _decompressLock ) {
+                return readDecompressed( offset, buffer, bufferOffset, length );
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    private int readCached( final long offset, final byte[] buffer, final int bufferOffset, final int length ) throws IOException {
+        final int read = _cache.read( _cachedFile, offset, buffer, bufferOffset, length );
+        final long end = offset + read;
+        if ( offset == _lastEnd && read > 0 ) {
+            _cache.readAhead( _cachedFile, end );
+        }
+        _lastEnd = end;
+        return read;
+    }
+
+    private int pread( final long offset, final byte[] buffer, final int bufferOffset, final int length ) throws IOException {
+        int total = 0;
+        while ( total < length ) {
+            final int read = _raw.read( offset + total, buffer, bufferOffset + total, length - total );
+            if ( read < 0 ) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private int readDecompressed( final long offset, final byte[] buffer, final int bufferOffset, final int length )
+        throws IOException {
+        if ( offset < _position || offset - _position > MAX_SKIP_WITHOUT_INDEX ) {
+            final CheckpointIndex index = _checkpoints.index();
+            final int checkpoint = index.floor( offset );
+            final long checkpointOffset = index.uncompressedOffset( checkpoint );
+            if ( offset < _position || checkpointOffset > _position ) {
+                final InputStream reopened = _checkpoints.open( index, checkpoint );
+                IOUtils.closeQuietly( _decompressed );
+                _decompressed = reopened;
+                _position = checkpointOffset;
+            }
+        }
+        try {
+            IOUtils.skipFully( _decompressed, offset - _position );
+        } catch ( final EOFException e ) {
+            // offset beyond the end of the file
+            _position = offset;
+            return 0;
+        }
+        final int read = IOUtils.read( _decompressed, buffer, bufferOffset, length );
+        _position = offset + read;
+        return read;
+    }
+
+    /**
+     * Waits for the reads in flight, then closes the streams. Closing again
+     * does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        _lock.writeLock().lock();
+        try {
+            if ( _closed ) {
+                return;
+            }
+            _closed = true;
+            IOUtils.closeQuietly( _decompressed );
+            _raw.close();
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+}
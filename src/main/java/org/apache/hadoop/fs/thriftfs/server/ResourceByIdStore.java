@@ -0,0 +1,295 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lock free resource store handing out <code>long</code> handles.
+ *
+ * Resources live in slots, which are allocated in chunks and never move, so a
+ * lookup is a plain array access without boxing or allocation. A handle
+ * combines the slot index (lower 32 bits, offset by one) with the slot's
+ * generation (upper bits). The generation is incremented whenever a slot is
+ * released, so a stale handle never reaches a resource stored later in the
+ * same slot. Released slots are kept on a lock free stack (tagged against ABA)
+ * and reused before new slots are allocated.
+ *
+ * Every lookup marks the resource as accessed - without reading the clock,
+ * and writing only if it is not marked yet - and {@link #releaseIdle(long)}
+ * takes the time of the marked resources as their last access (clearing the
+ * mark), so resources left behind by dead clients can be released once idle,
+ * up to one reaper period late. An
+ * optional {@link HandleLimit} bounds the resources of all stores sharing it.
+ *
+ * @author Axel Mannhardt
+ */
+final class ResourceByIdStore<RESOURCE_TYPE extends Closeable> {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ResourceByIdStore.class );
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_CHUNKS = 1 << 14;
+    private static final int MAX_SLOTS = MAX_CHUNKS * CHUNK_SIZE;
+    private static final int GENERATION_MASK = Integer.MAX_VALUE;
+    private static final long SLOT_MASK = 0xffffffffL;
+    /** Free list head: stack top (slot + 1, 0 for empty) in the lower, ABA tag in the upper 32 bits. */
+    private static final long EMPTY = 0;
+
+    private final AtomicReferenceArray<Chunk<RESOURCE_TYPE>> _chunks = new AtomicReferenceArray<Chunk<RESOURCE_TYPE>>( MAX_CHUNKS );
+    private final AtomicInteger _allocatedSlots = new AtomicInteger();
+    private final AtomicLong _freeHead = new AtomicLong( EMPTY );
+    private final AtomicInteger _size = new AtomicInteger();
+    private final HandleLimit _limit;
+
+    ResourceByIdStore() {
+        this( null );
+    }
+
+    /**
+     * @param limit shared limit released by {@link #remove(long)}, may be
+     *            <code>null</code>
+     */
+    ResourceByIdStore( final HandleLimit limit ) {
+        _limit = limit;
+        Runtime.getRuntime().addShutdownHook( new Thread() {
+            @Override
+            public void run() {
+                cleanup();
+            }
+        } );
+    }
+
+    /**
+     * Stores the resource. With a {@link HandleLimit}, the caller has to
+     * acquire a permit first, which is released when the resource is removed.
+     */
+    long storeNew( final RESOURCE_TYPE res ) {
+        int slot = popFreeSlot();
+        if ( slot < 0 ) {
+            slot = allocateSlot();
+        }
+        final Chunk<RESOURCE_TYPE> chunk = _chunks.get( slot >>> CHUNK_BITS );
+        final int index = slot & CHUNK_MASK;
+        final int generation = chunk._generations.get( index );
+        chunk._entries.set( index, new Entry<RESOURCE_TYPE>( generation, res ) );
+        final int size = _size.incrementAndGet();
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "Allocated resources: " + size );
+        }
+        return idOf( generation, slot );
+    }
+
+    RESOURCE_TYPE getResource( final long id ) {
+        final Entry<RESOURCE_TYPE> entry = entryOf( id );
+        if ( entry == null ) {
+            return null;
+        }
+        if ( !entry._accessed ) {
+            entry._accessed = true;
+        }
+        return entry._resource;
+    }
+
+    /**
+     * Removes and closes the resource, close failures are only logged.
+     */
+    boolean release( final long id ) {
+        final RESOURCE_TYPE resource = remove( id );
+        if ( resource == null ) {
+            return false;
+        }
+        // closing may block on hdfs, and waits for a concurrent user of the stream
+        synchronized ( resource ) {
+            IOUtils.closeQuietly( resource );
+        }
+        return true;
+    }
+
+    /**
+     * Removes the resource without closing it, returns <code>null</code> if the
+     * id is unknown.
+     */
+    RESOURCE_TYPE remove( final long id ) {
+        final Entry<RESOURCE_TYPE> entry = entryOf( id );
+        if ( entry == null ) {
+            LOG.debug( "Cannot remove unknown resource: {}", Long.valueOf( id ) );
+            return null;
+        }
+        return remove( slotOf( id ), entry ) ? entry._resource : null;
+    }
+
+    /**
+     * Releases all resources not accessed for more than
+     * <code>maxIdleNanos</code>, returns how many. A resource accessed since
+     * the previous call counts as accessed now.
+     */
+    int releaseIdle( final long maxIdleNanos ) {
+        int released = 0;
+        final long now = System.nanoTime();
+        final int allocated = Math.min( _allocatedSlots.get(), MAX_SLOTS );
+        for ( int slot = 0; slot < allocated; slot++ ) {
+            final Chunk<RESOURCE_TYPE> chunk = _chunks.get( slot >>> CHUNK_BITS );
+            final Entry<RESOURCE_TYPE> entry = chunk == null ? null : chunk._entries.get( slot & CHUNK_MASK );
+            if ( entry == null ) {
+                continue;
+            }
+            if ( entry._accessed ) {
+                entry._accessed = false;
+                entry._lastAccess = now;
+            } else if ( now - entry._lastAccess > maxIdleNanos && remove( slot, entry ) ) {
+                synchronized ( entry._resource ) {
+                    IOUtils.closeQuietly( entry._resource );
+                }
+                released++;
+            }
+        }
+        return released;
+    }
+
+    private boolean remove( final int slot, final Entry<RESOURCE_TYPE> entry ) {
+        final Chunk<RESOURCE_TYPE> chunk = _chunks.get( slot >>> CHUNK_BITS );
+        final int index = slot & CHUNK_MASK;
+        if ( !chunk._entries.compareAndSet( index, entry, null ) ) {
+            // removed concurrently
+            return false;
+        }
+        chunk._generations.set( index, ( entry._generation + 1 ) & GENERATION_MASK );
+        pushFreeSlot( slot );
+        if ( _limit != null ) {
+            _limit.release();
+        }
+        final int size = _size.decrementAndGet();
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug( "Remaining resources: " + size );
+        }
+        return true;
+    }
+
+    int size() {
+        return _size.get();
+    }
+
+    /**
+     * Snapshot of the currently stored handles.
+     */
+    List<Long> ids() {
+        final List<Long> result = new ArrayList<Long>( _size.get() );
+        final int allocated = Math.min( _allocatedSlots.get(), MAX_SLOTS );
+        for ( int slot = 0; slot < allocated; slot++ ) {
+            final Chunk<RESOURCE_TYPE> chunk = _chunks.get( slot >>> CHUNK_BITS );
+            final Entry<RESOURCE_TYPE> entry = chunk == null ? null : chunk._entries.get( slot & CHUNK_MASK );
+            if ( entry != null ) {
+                result.add( Long.valueOf( idOf( entry._generation, slot ) ) );
+            }
+        }
+        return result;
+    }
+
+    private Entry<RESOURCE_TYPE> entryOf( final long id ) {
+        final int slot = slotOf( id );
+        if ( slot < 0 || slot >= MAX_SLOTS ) {
+            return null;
+        }
+        final Chunk<RESOURCE_TYPE> chunk = _chunks.get( slot >>> CHUNK_BITS );
+        if ( chunk == null ) {
+            return null;
+        }
+        final Entry<RESOURCE_TYPE> entry = chunk._entries.get( slot & CHUNK_MASK );
+        if ( entry == null || entry._generation != generationOf( id ) ) {
+            return null;
+        }
+        return entry;
+    }
+
+    private int allocateSlot() {
+        final int slot = _allocatedSlots.getAndIncrement();
+        if ( slot >= MAX_SLOTS ) {
+            _allocatedSlots.decrementAndGet();
+            throw new IllegalStateException( "no free ids remaining, " + MAX_SLOTS + " resources allocated" );
+        }
+        final int chunkIndex = slot >>> CHUNK_BITS;
+        if ( _chunks.get( chunkIndex ) == null ) {
+            _chunks.compareAndSet( chunkIndex, null, new Chunk<RESOURCE_TYPE>() );
+        }
+        return slot;
+    }
+
+    private int popFreeSlot() {
+        while ( true ) {
+            final long head = _freeHead.get();
+            final int top = (int) ( head & SLOT_MASK );
+            if ( top == 0 ) {
+                return -1;
+            }
+            final int slot = top - 1;
+            final int next = _chunks.get( slot >>> CHUNK_BITS )._nextFree.get( slot & CHUNK_MASK );
+            if ( _freeHead.compareAndSet( head, nextTag( head ) | ( next & SLOT_MASK ) ) ) {
+                return slot;
+            }
+        }
+    }
+
+    private void pushFreeSlot( final int slot ) {
+        final AtomicIntegerArray nextFree = _chunks.get( slot >>> CHUNK_BITS )._nextFree;
+        while ( true ) {
+            final long head = _freeHead.get();
+            nextFree.set( slot & CHUNK_MASK, (int) ( head & SLOT_MASK ) );
+            if ( _freeHead.compareAndSet( head, nextTag( head ) | ( slot + 1 ) ) ) {
+                return;
+            }
+        }
+    }
+
+    private static long nextTag( final long head ) {
+        return ( ( head >>> 32 ) + 1 ) << 32;
+    }
+
+    private static long idOf( final int generation, final int slot ) {
+        return ( (long) generation << 32 ) | ( slot + 1 );
+    }
+
+    private static int slotOf( final long id ) {
+        return (int) ( id & SLOT_MASK ) - 1;
+    }
+
+    private static int generationOf( final long id ) {
+        return (int) ( id >>> 32 );
+    }
+
+    private void cleanup() {
+        for ( final Long id : ids() ) {
+            release( id.longValue() );
+        }
+    }
+
+    private static final class Chunk<RESOURCE_TYPE> {
+        private final AtomicReferenceArray<Entry<RESOURCE_TYPE>> _entries = new AtomicReferenceArray<Entry<RESOURCE_TYPE>>( CHUNK_SIZE );
+        private final AtomicIntegerArray _generations = new AtomicIntegerArray( CHUNK_SIZE );
+        private final AtomicIntegerArray _nextFree = new AtomicIntegerArray( CHUNK_SIZE );
+    }
+
+    private static final class Entry<RESOURCE_TYPE> {
+        private final int _generation;
+        private final RESOURCE_TYPE _resource;
+        private volatile long _lastAccess;
+        /** Set on access, a new resource counts as accessed. */
+        private volatile boolean _accessed = true;
+
+        Entry( final int generation, final RESOURCE_TYPE resource ) {
+            _generation = generation;
+            _resource = resource;
+        }
+    }
+
+}
@@ -0,0 +1,445 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.thriftfs.server.HdfsService.HdfsConfig;
+import org.apache.hadoop.fs.thriftfs.server.RunHdfsServer.ServerMode;
+import org.apache.hadoop.thriftfs.api.LatencyStats;
+import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem;
+import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem.Client;
+import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem.Iface;
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Throughput and latency benchmark of the service, without a cluster: the
+ * server runs in process on the local file system (<code>file:///</code>),
+ * clients connect through real sockets, so the numbers include the thrift
+ * stack. Every operation is measured for every payload size and client
+ * concurrency level given.
+ *
+ * Results can be written as csv (<code>--csv</code>) and compared with an
+ * earlier run (<code>--baseline</code>): the benchmark exits with status 2 if
+ * the throughput of any measurement dropped by more than
+ * <code>--max-regression</code> percent, to catch regressions in a build.
+ *
+ * @author Axel Mannhardt
+ */
+public class RunBenchmark {
+
+    private static final String USAGE = RunBenchmark.class.getSimpleName() + " [options]";
+    private static final String CSV_HEADER = "operation,size,threads,ops_per_s,mb_per_s,p50_us,p99_us,p999_us,max_us,alloc_per_op";
+    private static final int READ_FILE_SIZE = 64 * 1024 * 1024;
+    private static final long WRITE_FILE_ROTATION = 64 * 1024 * 1024;
+    private static final int LISTED_FILES = 1000;
+
+    public static void main( final String[] args ) throws Exception {
+        final Options options = createOptions();
+        final CommandLine commandLine;
+        try {
+            commandLine = new GnuParser().parse( options, args );
+        } catch ( final ParseException e ) {
+            System.out.println( e.getMessage() );
+            new HelpFormatter().printHelp( USAGE, options );
+            System.exit( 1 );
+            return;
+        }
+        final ServerMode mode = ServerMode.parse( commandLine.getOptionValue( "mode", ServerMode.THREADPOOL.name() ) );
+        final int port = Integer.parseInt( commandLine.getOptionValue( "port", "55556" ) );
+        final List<Operation> operations = new ArrayList<Operation>();
+        for ( final String name : commandLine.getOptionValue( "operations", "open,read,write,list" ).split( "," ) ) {
+            operations.add( Operation.parse( name ) );
+        }
+        final int[] sizes = intList( commandLine.getOptionValue( "sizes", "4096,65536,1048576" ) );
+        final int[] threadCounts = intList( commandLine.getOptionValue( "threads", "1,4,16" ) );
+        final long warmupMillis = 1000 * Long.parseLong( commandLine.getOptionValue( "warmup", "2" ) );
+        final long measureMillis = 1000 * Long.parseLong( commandLine.getOptionValue( "seconds", "5" ) );
+        final double maxRegression = Double.parseDouble( commandLine.getOptionValue( "max-regression", "10" ) );
+        int maxThreads = 1;
+        for ( final int threads : threadCounts ) {
+            maxThreads = Math.max( maxThreads, threads );
+        }
+
+        final File directory =
+                commandLine.hasOption( "dir" ) ? new File( commandLine.getOptionValue( "dir" ) ) : Files.createTempDirectory(
+                        "thriftfs-benchmark" ).toFile();
+        final HdfsService service = new HdfsService( HdfsConfig.forUri( "file:///" ) );
+        final TServer server =
+                mode.createServer( service.buffers().releasingAfterCall( new InstrumentedProcessor<Iface>( service,
+                        new ThriftHadoopFileSystem.Processor<Iface>( service ).getProcessMapView(), service.metrics() ) ), port,
+                        maxThreads + 1, 2, true );
+        final Thread serverThread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                server.serve();
+            }
+        }, "benchmark-server" );
+        serverThread.setDaemon( true );
+        serverThread.start();
+        while ( !server.isServing() ) {
+            Thread.sleep( 10 );
+        }
+
+        final List<Result> results = new ArrayList<Result>();
+        try {
+            final Benchmark benchmark = new Benchmark( port, directory.getAbsolutePath() );
+            benchmark.prepare();
+            System.out.println( CSV_HEADER );
+            for ( final Operation operation : operations ) {
+                for ( final int size : operation.usesSize() ? sizes : new int[] { 0 } ) {
+                    for ( final int threads : threadCounts ) {
+                        benchmark.run( operation, size, threads, warmupMillis );
+                        final Result result = benchmark.run( operation, size, threads, measureMillis );
+                        System.out.println( result.toCsv() );
+                        results.add( result );
+                    }
+                }
+            }
+        } finally {
+            server.stop();
+            if ( !commandLine.hasOption( "dir" ) ) {
+                FileUtils.deleteQuietly( directory );
+            }
+        }
+
+        if ( commandLine.hasOption( "csv" ) ) {
+            writeCsv( new File( commandLine.getOptionValue( "csv" ) ), results );
+        }
+        if ( commandLine.hasOption( "baseline" ) ) {
+            final boolean regressed = compare( readCsv( new File( commandLine.getOptionValue( "baseline" ) ) ), results, maxRegression );
+            System.exit( regressed ? 2 : 0 );
+        }
+        System.exit( 0 );
+    }
+
+    private static Options createOptions() {
+        final Options options = new Options();
+        options.addOption( new Option( "m", "mode", true, "server engine, see " + RunHdfsServer.class.getSimpleName()
+                + " (default: threadpool), always framed" ) );
+        options.addOption( new Option( "p", "port", true, "local port of the benchmarked server (default: 55556)" ) );
+        options.addOption( new Option( "o", "operations", true, "comma separated: open, read, write, list (default: all)" ) );
+        options.addOption( new Option( null, "sizes", true, "comma separated read and write payload bytes (default: 4096,65536,1048576)" ) );
+        options.addOption( new Option( "t", "threads", true, "comma separated client concurrency levels (default: 1,4,16)" ) );
+        options.addOption( new Option( null, "warmup", true, "warmup seconds per measurement (default: 2)" ) );
+        options.addOption( new Option( null, "seconds", true, "seconds per measurement (default: 5)" ) );
+        options.addOption( new Option( null, "dir", true, "local directory for the benchmark files (default: a temporary one)" ) );
+        options.addOption( new Option( null, "csv", true, "writes the results to this csv file" ) );
+        options.addOption( new Option( null, "baseline", true, "compares with the results of an earlier --csv" ) );
+        options.addOption( new Option( null, "max-regression", true, "throughput drop in percent failing the comparison (default: 10)" ) );
+        return options;
+    }
+
+    private static int[] intList( final String value ) {
+        final String[] parts = value.split( "," );
+        final int[] result = new int[parts.length];
+        for ( int i = 0; i < parts.length; i++ ) {
+            result[i] = Integer.parseInt( parts[i].trim() );
+            if ( result[i] < 1 ) {
+                throw new IllegalArgumentException( "has to be positive: " + parts[i] );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The benchmarked operations, each one call (open/close count as one).
+     */
+    enum Operation {
+        OPEN( false ), READ( true ), WRITE( true ), LIST( false );
+
+        private final boolean _usesSize;
+
+        private Operation( final boolean usesSize ) {
+            _usesSize = usesSize;
+        }
+
+        boolean usesSize() {
+            return _usesSize;
+        }
+
+        static Operation parse( final String value ) {
+            try {
+                return valueOf( value.trim().toUpperCase( Locale.ROOT ) );
+            } catch ( final IllegalArgumentException e ) {
+                throw new IllegalArgumentException( "unknown operation: " + value, e );
+            }
+        }
+    }
+
+    private static final class Benchmark {
+        private final int _port;
+        private final String _directory;
+
+        Benchmark( final int port, final String directory ) {
+            _port = port;
+            _directory = directory;
+        }
+
+        private String readFile() {
+            return _directory + "/read.bin";
+        }
+
+        private String listedDirectory() {
+            return _directory + "/listed";
+        }
+
+        /**
+         * Writes the file to read and the directory to list, through the
+         * service.
+         */
+        void prepare() throws TException {
+            final TTransport transport = connect();
+            try {
+                final Client client = client( transport );
+                final byte[] chunk = new byte[1024 * 1024];
+                new Random( 0 ).nextBytes( chunk );
+                final ThriftHandle handle = client.create( new Pathname( readFile() ) );
+                for ( int written = 0; written < READ_FILE_SIZE; written += chunk.length ) {
+                    client.writeBytes( handle, ByteBuffer.wrap( chunk ) );
+                }
+                client.closeWriteHandle( handle );
+                for ( int i = 0; i < LISTED_FILES; i++ ) {
+                    client.closeWriteHandle( client.create( new Pathname( listedDirectory() + "/file-" + i ) ) );
+                }
+            } finally {
+                transport.close();
+            }
+        }
+
+        Result run( final Operation operation, final int size, final int threads, final long millis ) throws Exception {
+            final LatencyHistogram latencies = new LatencyHistogram();
+            final AtomicLong calls = new AtomicLong();
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            final CountDownLatch ready = new CountDownLatch( threads );
+            final CountDownLatch start = new CountDownLatch( 1 );
+            final List<Thread> clients = new ArrayList<Thread>();
+            for ( int i = 0; i < threads; i++ ) {
+                final int clientIndex = i;
+                final Thread client = new Thread( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runClient( operation, size, clientIndex, latencies, calls, ready, start, millis );
+                        } catch ( final Exception e ) {
+                            failure.compareAndSet( null, e );
+                        }
+                    }
+                }, "benchmark-client-" + i );
+                client.start();
+                clients.add( client );
+            }
+            ready.await();
+            final long allocatedBefore = allocatedBytes();
+            final long startNanos = System.nanoTime();
+            start.countDown();
+            for ( final Thread client : clients ) {
+                client.join();
+            }
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            final long allocated = allocatedBytes() - allocatedBefore;
+            if ( failure.get() != null ) {
+                throw failure.get();
+            }
+            return new Result( operation, size, threads, calls.get(), elapsedNanos, latencies.snapshot(), allocated );
+        }
+
+        private void runClient( final Operation operation, final int size, final int clientIndex, final LatencyHistogram latencies,
+                final AtomicLong calls, final CountDownLatch ready, final CountDownLatch start, final long millis ) throws Exception {
+            final TTransport transport = connect();
+            try {
+                final Client client = client( transport );
+                final Random random = new Random( clientIndex );
+                final Pathname readPath = new Pathname( readFile() );
+                final Pathname writePath = new Pathname( _directory + "/write-" + clientIndex + ".bin" );
+                final Pathname listPath = new Pathname( listedDirectory() );
+                final ThriftHandle readHandle = operation == Operation.READ ? client.open( readPath ) : null;
+                ThriftHandle writeHandle = operation == Operation.WRITE ? client.create( writePath ) : null;
+                final byte[] payload = new byte[size];
+                random.nextBytes( payload );
+                final int readOffsets = Math.max( 1, READ_FILE_SIZE / Math.max( size, 1 ) );
+                long writtenToFile = 0;
+                ready.countDown();
+                start.await();
+                final long end = System.nanoTime() + millis * 1000000;
+                long now = System.nanoTime();
+                while ( now < end ) {
+                    switch ( operation ) {
+                    case OPEN:
+                        client.closeReadHandle( client.open( readPath ) );
+                        break;
+                    case READ:
+                        client.pread( readHandle, (long) random.nextInt( readOffsets ) * size, size );
+                        break;
+                    case WRITE:
+                        client.writeBytes( writeHandle, ByteBuffer.wrap( payload ) );
+                        writtenToFile += size;
+                        if ( writtenToFile >= WRITE_FILE_ROTATION ) {
+                            // bounds the disk space used
+                            client.closeWriteHandle( writeHandle );
+                            writeHandle = client.create( writePath );
+                            writtenToFile = 0;
+                        }
+                        break;
+                    case LIST:
+                        client.listStatus( listPath );
+                        break;
+                    default:
+                        throw new IllegalStateException( "unknown operation " + operation );
+                    }
+                    final long done = System.nanoTime();
+                    latencies.record( ( done - now ) / 1000, false );
+                    calls.incrementAndGet();
+                    now = done;
+                }
+                if ( readHandle != null ) {
+                    client.closeReadHandle( readHandle );
+                }
+                if ( writeHandle != null ) {
+                    client.closeWriteHandle( writeHandle );
+                }
+            } finally {
+                transport.close();
+            }
+        }
+
+        private TTransport connect() throws TTransportException {
+            final TTransport transport = new TFramedTransport( new TSocket( "localhost", _port ) );
+            transport.open();
+            return transport;
+        }
+
+        private static Client client( final TTransport transport ) {
+            return new ThriftHadoopFileSystem.Client( new TBinaryProtocol( transport ) );
+        }
+    }
+
+    /**
+     * Bytes allocated by all threads of this jvm (clients and server), -1 if
+     * the jvm does not tell.
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if ( !( threads instanceof com.sun.management.ThreadMXBean ) ) {
+            return -1;
+        }
+        long total = 0;
+        for ( final long allocated : ( (com.sun.management.ThreadMXBean) threads ).getThreadAllocatedBytes( threads.getAllThreadIds() ) ) {
+            if ( allocated > 0 ) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static final class Result {
+        private final String _key;
+        private final double _opsPerSecond;
+        private final double _mbPerSecond;
+        private final LatencyStats _latencies;
+        private final long _allocatedPerOp;
+
+        Result( final Operation operation, final int size, final int threads, final long calls, final long elapsedNanos,
+                final LatencyStats latencies, final long allocated ) {
+            _key = operation.name().toLowerCase( Locale.ROOT ) + "," + size + "," + threads;
+            _opsPerSecond = calls * 1e9 / elapsedNanos;
+            _mbPerSecond = operation.usesSize() ? _opsPerSecond * size / ( 1024 * 1024 ) : 0;
+            _latencies = latencies;
+            _allocatedPerOp = allocated < 0 || calls == 0 ? -1 : allocated / calls;
+        }
+
+        String toCsv() {
+            return String.format( Locale.ROOT, "%s,%.1f,%.1f,%d,%d,%d,%d,%d", _key, Double.valueOf( _opsPerSecond ),
+                    Double.valueOf( _mbPerSecond ), Long.valueOf( _latencies.getP50() ), Long.valueOf( _latencies.getP99() ),
+                    Long.valueOf( _latencies.getP999() ), Long.valueOf( _latencies.getMax() ), Long.valueOf( _allocatedPerOp ) );
+        }
+    }
+
+    private static void writeCsv( final File file, final List<Result> results ) throws IOException {
+        final PrintWriter out = new PrintWriter( new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ) );
+        try {
+            out.println( CSV_HEADER );
+            for ( final Result result : results ) {
+                out.println( result.toCsv() );
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Operations per second by measurement key (operation, size, threads).
+     */
+    private static Map<String, Double> readCsv( final File file ) throws IOException {
+        final Map<String, Double> result = new HashMap<String, Double>();
+        final BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), StandardCharsets.UTF_8 ) );
+        try {
+            String line;
+            while ( ( line = in.readLine() ) != null ) {
+                final String[] columns = line.split( "," );
+                if ( columns.length < 4 || line.equals( CSV_HEADER ) ) {
+                    continue;
+                }
+                result.put( columns[0] + "," + columns[1] + "," + columns[2], Double.valueOf( columns[3] ) );
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * Prints the throughput changes, returns whether any dropped by more than
+     * <code>maxRegression</code> percent.
+     */
+    private static boolean compare( final Map<String, Double> baseline, final List<Result> results, final double maxRegression ) {
+        boolean regressed = false;
+        for ( final Result result : results ) {
+            final Double before = baseline.get( result._key );
+            if ( before == null || before.doubleValue() <= 0 ) {
+                continue;
+            }
+            final double change = 100 * ( result._opsPerSecond - before.doubleValue() ) / before.doubleValue();
+            final boolean regression = change < -maxRegression;
+            regressed |= regression;
+            System.out.println( String.format( Locale.ROOT, "%-24s %+7.1f%%%s", result._key, Double.valueOf( change ),
+                    regression ? "  REGRESSION" : "" ) );
+        }
+        return regressed;
+    }
+
+}
@@ -1,60 +1,407 @@
 package org.apache.hadoop.fs.thriftfs.server;
 
 import java.io.IOError;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import javax.management.JMException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.fs.thriftfs.server.HdfsService.HdfsConfig;
 import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem;
 import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem.Iface;
-import org.apache.hadoop.thriftfs.api.ThriftHadoopFileSystem.Processor;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.server.THsHaServer;
 import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TServer.AbstractServerArgs;
 import org.apache.thrift.server.TServer.Args;
 import org.apache.thrift.server.TSimpleServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
 import org.apache.thrift.transport.TServerSocket;
-import org.apache.thrift.transport.TServerTransport;
 import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Runs the service (on port 55555).
  *
+ * The server engine is selected with <code>--mode</code>, see {@link ServerMode}.
+ * The non blocking modes (hsha, selector) always use framed transport, the
+ * blocking ones only if <code>--framed</code> is given - clients have to
+ * match.
+ *
  * @author Axel Mannhardt
  */
 public class RunHdfsServer {
 
+    private static final Logger LOG = LoggerFactory.getLogger( RunHdfsServer.class );
+
+    private static final String USAGE = RunHdfsServer.class.getSimpleName() + " [options] <service-port> <hdfs-host> <hdfs-port>";
+
     public static void main( final String[] args ) {
 
-        if ( args.length != 3 ) {
-            System.out.println( "Usage: " + RunHdfsServer.class.getSimpleName() + " <service-port> <hdfs-host> <hdfs-port>" );
+        final Options options = createOptions();
+        final CommandLine commandLine;
+        try {
+            commandLine = new GnuParser().parse( options, args );
+        } catch ( final ParseException e ) {
+            System.out.println( e.getMessage() );
+            new HelpFormatter().printHelp( USAGE, options );
             System.exit( 1 );
+            return;
         }
+        final String[] positional = commandLine.getArgs();
+        if ( positional.length != 3 ) {
+            new HelpFormatter().printHelp( USAGE, options );
+            System.exit( 1 );
+        }
+
+        final int servicePort = Integer.parseInt( positional[0] );
+        final String hdfsHost = positional[1];
+        final int hdfsPort = Integer.parseInt( positional[2] );
+
+        final ServerMode mode = ServerMode.parse( commandLine.getOptionValue( "mode", ServerMode.THREADPOOL.name() ) );
+        final int workers = intOption( commandLine, "workers", 4 * Runtime.getRuntime().availableProcessors() );
+        final int selectors = intOption( commandLine, "selectors", 2 );
+        final boolean framed = commandLine.hasOption( "framed" );
 
-        final int servicePort = Integer.parseInt( args[0] );
-        final String hdfsHost = args[1];
-        final int hdfsPort = Integer.parseInt( args[2] );
+        final ServiceOptions serviceOptions = new ServiceOptions();
+        if ( commandLine.hasOption( "async-write-queue" ) ) {
+            serviceOptions.asyncWriteQueueBytes( Integer.parseInt( commandLine.getOptionValue( "async-write-queue" ) ) );
+        }
+        if ( commandLine.hasOption( "async-writers" ) ) {
+            serviceOptions.asyncWriterThreads( Integer.parseInt( commandLine.getOptionValue( "async-writers" ) ) );
+        }
+        if ( commandLine.hasOption( "metadata-cache-entries" ) ) {
+            serviceOptions.metadataCacheEntries( Integer.parseInt( commandLine.getOptionValue( "metadata-cache-entries" ) ) );
+        }
+        if ( commandLine.hasOption( "metadata-cache-ttl" ) ) {
+            serviceOptions.metadataCacheTtlMillis( 1000 * Long.parseLong( commandLine.getOptionValue( "metadata-cache-ttl" ) ) );
+        }
+        if ( commandLine.hasOption( "read-cache-bytes" ) ) {
+            serviceOptions.readCacheBytes( Long.parseLong( commandLine.getOptionValue( "read-cache-bytes" ) ) );
+        }
+        if ( commandLine.hasOption( "read-cache-chunk" ) ) {
+            serviceOptions.readCacheChunkBytes( Integer.parseInt( commandLine.getOptionValue( "read-cache-chunk" ) ) );
+        }
+        if ( commandLine.hasOption( "read-ahead-chunks" ) ) {
+            serviceOptions.readAheadChunks( Integer.parseInt( commandLine.getOptionValue( "read-ahead-chunks" ) ) );
+        }
+        if ( commandLine.hasOption( "read-ahead-threads" ) ) {
+            serviceOptions.readAheadThreads( Integer.parseInt( commandLine.getOptionValue( "read-ahead-threads" ) ) );
+        }
+        if ( commandLine.hasOption( "handle-idle-timeout" ) ) {
+            serviceOptions.handleIdleTimeoutMillis( 1000 * Long.parseLong( commandLine.getOptionValue( "handle-idle-timeout" ) ) );
+        }
+        if ( commandLine.hasOption( "max-open-handles" ) ) {
+            serviceOptions.maxOpenHandles( Integer.parseInt( commandLine.getOptionValue( "max-open-handles" ) ) );
+        }
+        if ( commandLine.hasOption( "parallel-compression-block" ) ) {
+            serviceOptions.parallelCompressionBlockBytes( Integer.parseInt( commandLine.getOptionValue( "parallel-compression-block" ) ) );
+        }
+        if ( commandLine.hasOption( "compression-threads" ) ) {
+            serviceOptions.compressionThreads( Integer.parseInt( commandLine.getOptionValue( "compression-threads" ) ) );
+        }
+        if ( commandLine.hasOption( "checkpoint-index-entries" ) ) {
+            serviceOptions.checkpointIndexEntries( Integer.parseInt( commandLine.getOptionValue( "checkpoint-index-entries" ) ) );
+        }
+        if ( commandLine.hasOption( "checkpoint-interval" ) ) {
+            serviceOptions.checkpointIntervalBytes( Long.parseLong( commandLine.getOptionValue( "checkpoint-interval" ) ) );
+        }
+        if ( commandLine.hasOption( "checkpoint-sidecar" ) ) {
+            serviceOptions.checkpointSidecars( true );
+        }
+        if ( commandLine.hasOption( "batch-parallelism" ) ) {
+            serviceOptions.batchParallelism( Integer.parseInt( commandLine.getOptionValue( "batch-parallelism" ) ) );
+        }
+        if ( commandLine.hasOption( "parallel-read-piece" ) ) {
+            serviceOptions.parallelReadPieceBytes( Integer.parseInt( commandLine.getOptionValue( "parallel-read-piece" ) ) );
+        }
+        if ( commandLine.hasOption( "stateless-read-secret" ) ) {
+            serviceOptions.statelessReadSecret( readSecret( commandLine.getOptionValue( "stateless-read-secret" ) ) );
+        }
+        if ( commandLine.hasOption( "stateless-read-ttl" ) ) {
+            serviceOptions.statelessReadTtlMillis( 1000 * Long.parseLong( commandLine.getOptionValue( "stateless-read-ttl" ) ) );
+        }
+        if ( commandLine.hasOption( "stateless-read-streams" ) ) {
+            serviceOptions.statelessReadStreams( Integer.parseInt( commandLine.getOptionValue( "stateless-read-streams" ) ) );
+        }
+        if ( commandLine.hasOption( "metadata-concurrency" ) ) {
+            serviceOptions.metadataConcurrency( Integer.parseInt( commandLine.getOptionValue( "metadata-concurrency" ) ) );
+        }
+        if ( commandLine.hasOption( "data-concurrency" ) ) {
+            serviceOptions.dataConcurrency( Integer.parseInt( commandLine.getOptionValue( "data-concurrency" ) ) );
+        }
+        if ( commandLine.hasOption( "admin-concurrency" ) ) {
+            serviceOptions.adminConcurrency( Integer.parseInt( commandLine.getOptionValue( "admin-concurrency" ) ) );
+        }
+        if ( commandLine.hasOption( "lane-queue" ) ) {
+            serviceOptions.laneQueueLength( Integer.parseInt( commandLine.getOptionValue( "lane-queue" ) ) );
+        }
+        if ( commandLine.hasOption( "buffer-pool-bytes" ) ) {
+            serviceOptions.bufferPoolBytes( Long.parseLong( commandLine.getOptionValue( "buffer-pool-bytes" ) ) );
+        }
+        if ( commandLine.hasOption( "walk-parallelism" ) ) {
+            serviceOptions.walkParallelism( Integer.parseInt( commandLine.getOptionValue( "walk-parallelism" ) ) );
+        }
+        if ( commandLine.hasOption( "upload-expiry" ) ) {
+            serviceOptions.uploadExpiryMillis( 1000 * Long.parseLong( commandLine.getOptionValue( "upload-expiry" ) ) );
+        }
 
-        final HdfsService service = new HdfsService( new HdfsConfig( hdfsHost, hdfsPort ) );
-        final Processor<Iface> processor = new ThriftHadoopFileSystem.Processor<Iface>( service );
+        final HdfsService service = new HdfsService( new HdfsConfig( hdfsHost, hdfsPort ), serviceOptions );
+        final InstrumentedProcessor<Iface> instrumented =
+                new InstrumentedProcessor<Iface>( service, new ThriftHadoopFileSystem.Processor<Iface>( service ).getProcessMapView(),
+                        service.metrics() );
+        final TProcessor processor =
+                service.buffers().releasingAfterCall(
+                        serviceOptions.scheduling() ? new ScheduledProcessor<Iface>( service, instrumented.getProcessMapView(),
+                                new CallScheduler( serviceOptions, mode.sharedWorkers( workers ) ), service.metrics() ) : instrumented );
+        final ServerLifecycle lifecycle = service.lifecycle();
+        try {
+            ServerStatsBean.register( service );
+        } catch ( final JMException e ) {
+            LOG.warn( "server statistics are not available through jmx", e );
+        }
 
         new Thread( new Runnable() {
             @Override
             public void run() {
-                runServerProcess( processor, servicePort );
+                runServerProcess( lifecycle, lifecycle.tracking( processor ), servicePort, mode, workers, selectors, framed );
             }
         } ).start();
 
     }
 
-    private static void runServerProcess( final Processor<Iface> processor, final int port ) {
+    private static Options createOptions() {
+        final Options options = new Options();
+        options.addOption( new Option( "m", "mode", true, "server engine: simple, threadpool (default), hsha, selector or virtual" ) );
+        options.addOption( new Option( "w", "workers", true,
+                "worker threads (default: 4 per core), threadpool keeps them idle and starts one per connection, ignored by simple and virtual" ) );
+        options.addOption( new Option( "s", "selectors", true, "selector threads of the selector mode (default: 2)" ) );
+        options.addOption( new Option( "f", "framed", false, "use framed transport in the blocking modes" ) );
+        options.addOption( new Option( null, "async-write-queue", true,
+                "bytes queued per write handle for asynchronous writes (default: 0, synchronous writes)" ) );
+        options.addOption( new Option( null, "async-writers", true, "threads flushing asynchronous writes (default: 4)" ) );
+        options.addOption( new Option( null, "metadata-cache-entries", true,
+                "paths kept in the stat/listStatus/getFileBlockLocations cache (default: 0, disabled)" ) );
+        options.addOption( new Option( null, "metadata-cache-ttl", true, "seconds a metadata cache entry is valid (default: 10)" ) );
+        options.addOption( new Option( null, "read-cache-bytes", true,
+                "off heap bytes of the block read cache for plain files (default: 0, disabled), mind -XX:MaxDirectMemorySize" ) );
+        options.addOption( new Option( null, "read-cache-chunk", true, "bytes per read cache chunk (default: 1048576)" ) );
+        options.addOption( new Option( null, "read-ahead-chunks", true, "chunks loaded ahead of sequential readers (default: 4)" ) );
+        options.addOption( new Option( null, "read-ahead-threads", true, "threads loading read ahead chunks (default: 4)" ) );
+        options.addOption( new Option( null, "handle-idle-timeout", true,
+                "seconds after which unused read, write and listing handles are closed (default: 0, never)" ) );
+        options.addOption( new Option( null, "max-open-handles", true, "maximum handles open at a time (default: 0, no limit)" ) );
+        options.addOption( new Option( null, "parallel-compression-block", true,
+                "bytes per block compressed in parallel for .gz and .bz2 files (default: 0, compress on the writing thread)" ) );
+        options.addOption( new Option( null, "compression-threads", true, "threads of the parallel compression (default: 1 per core)" ) );
+        options.addOption( new Option( null, "checkpoint-index-entries", true,
+                "compressed files whose checkpoint index is kept in memory (default: 1000)" ) );
+        options.addOption( new Option( null, "checkpoint-interval", true,
+                "minimum uncompressed bytes between checkpoints of an index (default: 1048576)" ) );
+        options.addOption( new Option( null, "checkpoint-sidecar", false,
+                "store checkpoint indexes as .<name>.ckpt files next to the compressed files" ) );
+        options.addOption( new Option( null, "batch-parallelism", true,
+                "file system calls of the batch rpcs in flight at a time (default: 16)" ) );
+        options.addOption( new Option( null, "parallel-read-piece", true,
+                "bytes per piece read concurrently by preadParallel, should divide the block size (default: 4194304)" ) );
+        options.addOption( new Option( null, "stateless-read-secret", true,
+                "file with the key (16 bytes or more) of stateless read handles, shared by all servers (default: none)" ) );
+        options.addOption( new Option( null, "stateless-read-ttl", true, "seconds a stateless read handle is valid (default: 0, unlimited)" ) );
+        options.addOption( new Option( null, "stateless-read-streams", true,
+                "files kept open for reads of stateless handles (default: 256)" ) );
+        options.addOption( new Option( null, "metadata-concurrency", true,
+                "metadata calls (stat, listings, block locations, open...) running at a time (default: 0, no limit)" ) );
+        options.addOption( new Option( null, "data-concurrency", true,
+                "read and write calls running at a time (default: 0, no limit)" ) );
+        options.addOption( new Option( null, "admin-concurrency", true, "stats and control calls running at a time (default: 0, no limit)" ) );
+        options.addOption( new Option( null, "lane-queue", true,
+                "calls per limited lane waiting for a slot before calls are rejected as overloaded (default: 100)" ) );
+        options.addOption( new Option( null, "buffer-pool-bytes", true,
+                "bytes of free read and write buffers kept for reuse (default: 67108864)" ) );
+        options.addOption( new Option( null, "walk-parallelism", true,
+                "directories listed at a time by contentSummary, globStatus and listRecursive (default: 16)" ) );
+        options.addOption( new Option( null, "upload-expiry", true,
+                "seconds without calls after which a multipart upload is aborted (default: 3600, 0 never)" ) );
+        return options;
+    }
+
+    private static byte[] readSecret( final String file ) {
+        try {
+            return Files.readAllBytes( Paths.get( file ) );
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "cannot read the stateless read secret from " + file, e );
+        }
+    }
+
+    private static int intOption( final CommandLine commandLine, final String name, final int defaultValue ) {
+        final String value = commandLine.getOptionValue( name );
+        if ( value == null ) {
+            return defaultValue;
+        }
+        final int result = Integer.parseInt( value );
+        if ( result < 1 ) {
+            throw new IllegalArgumentException( "--" + name + " has to be positive, was: " + value );
+        }
+        return result;
+    }
 
-        TServerTransport serverTransport;
+    private static void runServerProcess( final ServerLifecycle lifecycle, final TProcessor processor, final int port,
+            final ServerMode mode, final int workers, final int selectors, final boolean framed ) {
+        final TServer server;
         try {
-            serverTransport = new TServerSocket( port );
+            server = mode.createServer( processor, port, workers, selectors, framed );
         } catch ( final TTransportException e ) {
             throw new IOError( e );
         }
-        final TServer server = new TSimpleServer( new Args( serverTransport ).processor( processor ) );
-        // TODO threading
-        // TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(serverTransport).processor(processor));
+        lifecycle.onStop( new Runnable() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        } );
         server.serve();
     }
 
+    /**
+     * The supported thrift server engines.
+     */
+    enum ServerMode {
+
+        /** Single threaded, one request at a time - for debugging only. */
+        SIMPLE {
+            @Override
+            TServer createServer( final TProcessor processor, final int port, final int workers, final int selectors,
+                    final boolean framed ) throws TTransportException {
+                final Args args = new Args( new TServerSocket( port ) ).processor( processor );
+                transports( args, framed );
+                return new TSimpleServer( args );
+            }
+        },
+
+        /**
+         * One pooled thread per connection, <code>workers</code> threads are
+         * kept while idle. The pool is not bounded: a connection holds its
+         * thread while open, so a bound would leave connections beyond it
+         * waiting for another to close.
+         */
+        THREADPOOL {
+            @Override
+            TServer createServer( final TProcessor processor, final int port, final int workers, final int selectors,
+                    final boolean framed ) throws TTransportException {
+                final TThreadPoolServer.Args args =
+                        new TThreadPoolServer.Args( new TServerSocket( port ) ).processor( processor ).minWorkerThreads( workers )
+                                .maxWorkerThreads( Integer.MAX_VALUE );
+                transports( args, framed );
+                return new TThreadPoolServer( args );
+            }
+        },
+
+        /** One selector thread, requests are processed by <code>workers</code> threads. */
+        HSHA {
+            @Override
+            TServer createServer( final TProcessor processor, final int port, final int workers, final int selectors,
+                    final boolean framed ) throws TTransportException {
+                final THsHaServer.Args args =
+                        new THsHaServer.Args( new TNonblockingServerSocket( port ) ).processor( processor ).minWorkerThreads( workers )
+                                .maxWorkerThreads( workers );
+                return new THsHaServer( args );
+            }
+
+            @Override
+            int sharedWorkers( final int workers ) {
+                return workers;
+            }
+        },
+
+        /** <code>selectors</code> selector threads, requests are processed by <code>workers</code> threads. */
+        SELECTOR {
+            @Override
+            TServer createServer( final TProcessor processor, final int port, final int workers, final int selectors,
+                    final boolean framed ) throws TTransportException {
+                final TThreadedSelectorServer.Args args =
+                        new TThreadedSelectorServer.Args( new TNonblockingServerSocket( port ) ).processor( processor )
+                                .selectorThreads( selectors ).workerThreads( workers );
+                return new TThreadedSelectorServer( args );
+            }
+
+            @Override
+            int sharedWorkers( final int workers ) {
+                return workers;
+            }
+        },
+
+        /** One virtual thread per connection, needs a java 21 runtime. */
+        VIRTUAL {
+            @Override
+            TServer createServer( final TProcessor processor, final int port, final int workers, final int selectors,
+                    final boolean framed ) throws TTransportException {
+                final TThreadPoolServer.Args args =
+                        new TThreadPoolServer.Args( new TServerSocket( port ) ).processor( processor )
+                                .executorService( newVirtualThreadPerTaskExecutor() );
+                transports( args, framed );
+                return new TThreadPoolServer( args );
+            }
+        };
+
+        abstract TServer createServer( TProcessor processor, int port, int workers, int selectors, boolean framed )
+            throws TTransportException;
+
+        /**
+         * The worker threads the calls of all connections share, 0 if every
+         * connection has its own thread.
+         */
+        int sharedWorkers( final int workers ) {
+            return 0;
+        }
+
+        /**
+         * Transports of the blocking engines, whose input transports remember
+         * the client's address for the {@link ScheduledProcessor}.
+         */
+        private static void transports( final AbstractServerArgs<?> args, final boolean framed ) {
+            final TTransportFactory factory = framed ? new TFramedTransport.Factory() : new TTransportFactory();
+            args.inputTransportFactory( new PeerTransportFactory( factory ) ).outputTransportFactory( factory );
+        }
+
+        static ServerMode parse( final String value ) {
+            try {
+                return valueOf( value.toUpperCase( Locale.ROOT ) );
+            } catch ( final IllegalArgumentException e ) {
+                throw new IllegalArgumentException( "unknown server mode: " + value, e );
+            }
+        }
+
+        /**
+         * Looked up reflectively, as we still compile against java 8.
+         */
+        private static ExecutorService newVirtualThreadPerTaskExecutor() {
+            try {
+                final Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+                return (ExecutorService) factory.invoke( null );
+            } catch ( final NoSuchMethodException e ) {
+                throw new UnsupportedOperationException( "virtual threads need a java 21 runtime, running on: "
+                        + System.getProperty( "java.version" ), e );
+            } catch ( final IllegalAccessException | InvocationTargetException e ) {
+                throw new IllegalStateException( "cannot create virtual thread executor", e );
+            }
+        }
+    }
+
 }
@@ -0,0 +1,85 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.Map;
+
+import org.apache.thrift.ProcessFunction;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+
+/**
+ * Processor admitting every call through the {@link CallScheduler} before its
+ * process function runs, like {@link org.apache.thrift.TBaseProcessor}
+ * otherwise. Clients are told apart by the address of their host, which the
+ * blocking engines' input transports know (see {@link PeerTransportFactory}),
+ * so a client's connections share its turns. The nonblocking engines read a
+ * call without its connection: their calls are admitted as one client's, in
+ * the order they arrive, and a full lane rejects the arriving call. A
+ * rejected call is answered with a {@link TApplicationException} of type
+ * {@link #OVERLOADED}, the connection stays usable and the call may be
+ * retried later.
+ *
+ * @author Axel Mannhardt
+ */
+final class ScheduledProcessor<I> implements TProcessor {
+
+    /** Type of the {@link TApplicationException} of a rejected call. */
+    static final int OVERLOADED = 100;
+
+    private final I _iface;
+    @SuppressWarnings( "rawtypes" )
+    private final Map<String, ProcessFunction<I, ? extends TBase>> _functions;
+    private final CallScheduler _scheduler;
+    private final ServiceMetrics _metrics;
+
+    @SuppressWarnings( "rawtypes" )
+    ScheduledProcessor( final I iface, final Map<String, ProcessFunction<I, ? extends TBase>> functions,
+            final CallScheduler scheduler, final ServiceMetrics metrics ) {
+        _iface = iface;
+        _functions = functions;
+        _scheduler = scheduler;
+        _metrics = metrics;
+    }
+
+    @SuppressWarnings( "rawtypes" )
+    @Override
+    public boolean process( final TProtocol in, final TProtocol out ) throws TException {
+        final TMessage message = in.readMessageBegin();
+        final ProcessFunction<I, ? extends TBase> function = _functions.get( message.name );
+        if ( function == null ) {
+            reject( in, out, message, new TApplicationException( TApplicationException.UNKNOWN_METHOD, "Invalid method name: '"
+                    + message.name + "'" ) );
+            return true;
+        }
+        final CallScheduler.Lane lane = CallScheduler.Lane.of( message.name );
+        if ( !_scheduler.acquire( lane, PeerTransportFactory.clientOf( in.getTransport() ) ) ) {
+            _metrics.overloaded( lane.label() );
+            reject( in, out, message, new TApplicationException( OVERLOADED, "server overloaded, " + lane.label()
+                    + " calls are shed: " + message.name ) );
+            return true;
+        }
+        try {
+            function.process( message.seqid, in, out, _iface );
+        } finally {
+            _scheduler.release( lane );
+        }
+        return true;
+    }
+
+    private static void reject( final TProtocol in, final TProtocol out, final TMessage message,
+            final TApplicationException error ) throws TException {
+        TProtocolUtil.skip( in, TType.STRUCT );
+        in.readMessageEnd();
+        out.writeMessageBegin( new TMessage( message.name, TMessageType.EXCEPTION, message.seqid ) );
+        error.write( out );
+        out.writeMessageEnd();
+        out.getTransport().flush();
+    }
+
+}
@@ -0,0 +1,155 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Housekeeping of a running service: the periodic release of idle handles,
+ * the shutdown of an inactive server (see setInactivityTimeoutPeriod in the
+ * thrift definition) and the shutdown requested by a client.
+ *
+ * Activity is recorded by the processor returned from
+ * {@link #tracking(TProcessor)}; the server is stopped by the hook set with
+ * {@link #onStop(Runnable)}.
+ *
+ * @author Axel Mannhardt
+ */
+final class ServerLifecycle {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ServerLifecycle.class );
+
+    private static final long MIN_CHECK_MILLIS = 1000;
+    private static final long MAX_CHECK_MILLIS = 60000;
+    /** Lets the reply of the shutdown call go out before the server stops. */
+    private static final long SHUTDOWN_DELAY_MILLIS = 200;
+
+    private final ScheduledExecutorService _scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactoryBuilder()
+            .setDaemon( true ).setNameFormat( "server-lifecycle" ).build() );
+    private volatile long _lastActivity = System.nanoTime();
+    private volatile long _inactivityTimeoutNanos;
+    private volatile Runnable _stopHook;
+
+    /**
+     * @param handleIdleTimeoutMillis idle time after which handles are
+     *            released, 0 to keep them until closed
+     * @param idleHandleReaper releases the handles idle for the nanoseconds
+     *            given
+     */
+    ServerLifecycle( final long handleIdleTimeoutMillis, final IdleHandleReaper idleHandleReaper ) {
+        releaseIdle( "handles", handleIdleTimeoutMillis, idleHandleReaper );
+        _scheduler.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                checkInactivity();
+            }
+        }, MIN_CHECK_MILLIS, MIN_CHECK_MILLIS, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Periodically releases the resources idle for more than
+     * <code>idleTimeoutMillis</code>, 0 keeps them.
+     *
+     * @param what the resources, for the log
+     */
+    void releaseIdle( final String what, final long idleTimeoutMillis, final IdleHandleReaper reaper ) {
+        if ( idleTimeoutMillis <= 0 ) {
+            return;
+        }
+        final long period = checkPeriodMillis( idleTimeoutMillis );
+        final long idleNanos = TimeUnit.MILLISECONDS.toNanos( idleTimeoutMillis );
+        _scheduler.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int released = reaper.releaseIdle( idleNanos );
+                    if ( released > 0 ) {
+                        LOG.info( "released " + released + " " + what + " idle for more than " + idleTimeoutMillis + " ms" );
+                    }
+                } catch ( final RuntimeException e ) {
+                    LOG.warn( "releasing idle " + what + " failed", e );
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Releases idle handles.
+     */
+    interface IdleHandleReaper {
+        int releaseIdle( long maxIdleNanos );
+    }
+
+    /**
+     * Wraps the processor to record every call as activity.
+     */
+    TProcessor tracking( final TProcessor processor ) {
+        return new TProcessor() {
+            @Override
+            public boolean process( final TProtocol in, final TProtocol out ) throws TException {
+                _lastActivity = System.nanoTime();
+                return processor.process( in, out );
+            }
+        };
+    }
+
+    void onStop( final Runnable stopHook ) {
+        _stopHook = stopHook;
+    }
+
+    /**
+     * Sets the time without calls after which the server stops, 0 or less
+     * never stops it.
+     */
+    void setInactivityTimeout( final long seconds ) {
+        _lastActivity = System.nanoTime();
+        _inactivityTimeoutNanos = seconds > 0 ? TimeUnit.SECONDS.toNanos( seconds ) : 0;
+        LOG.info( seconds > 0 ? "server stops after " + seconds + " s without calls" : "server inactivity timeout disabled" );
+    }
+
+    /**
+     * Stops the server and exits the process with the given status, shortly
+     * after returning. Open handles are closed by the stores' shutdown hooks.
+     */
+    void shutdown( final int status ) {
+        LOG.info( "shutdown requested with status " + status );
+        _scheduler.schedule( new Runnable() {
+            @Override
+            public void run() {
+                stopAndExit( status );
+            }
+        }, SHUTDOWN_DELAY_MILLIS, TimeUnit.MILLISECONDS );
+    }
+
+    private void checkInactivity() {
+        final long timeout = _inactivityTimeoutNanos;
+        if ( timeout > 0 && System.nanoTime() - _lastActivity > timeout ) {
+            LOG.info( "no calls for " + TimeUnit.NANOSECONDS.toSeconds( timeout ) + " s, shutting down" );
+            stopAndExit( 0 );
+        }
+    }
+
+    private void stopAndExit( final int status ) {
+        final Runnable stopHook = _stopHook;
+        try {
+            if ( stopHook != null ) {
+                stopHook.run();
+            }
+        } finally {
+            System.exit( status );
+        }
+    }
+
+    private static long checkPeriodMillis( final long timeoutMillis ) {
+        return Math.max( MIN_CHECK_MILLIS, Math.min( MAX_CHECK_MILLIS, timeoutMillis / 4 ) );
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.hadoop.thriftfs.api.LatencyStats;
+import org.apache.hadoop.thriftfs.api.ServerStats;
+import org.apache.thrift.TException;
+
+/**
+ * Exposes the statistics of a {@link HdfsService} through JMX. Every attribute
+ * takes a fresh snapshot.
+ *
+ * @author Axel Mannhardt
+ */
+final class ServerStatsBean implements ServerStatsMXBean {
+
+    static final String OBJECT_NAME = "org.apache.hadoop.fs.thriftfs:type=ServerStats";
+
+    private final HdfsService _service;
+
+    private ServerStatsBean( final HdfsService service ) {
+        _service = service;
+    }
+
+    static void register( final HdfsService service ) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean( new ServerStatsBean( service ), new ObjectName( OBJECT_NAME ) );
+    }
+
+    @Override
+    public long getUptimeMillis() {
+        return stats().getUptimeMillis();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return stats().getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return stats().getBytesWritten();
+    }
+
+    @Override
+    public int getOpenReadHandles() {
+        return stats().getOpenReadHandles();
+    }
+
+    @Override
+    public int getOpenWriteHandles() {
+        return stats().getOpenWriteHandles();
+    }
+
+    @Override
+    public int getOpenListings() {
+        return stats().getOpenListings();
+    }
+
+    @Override
+    public int getOpenScans() {
+        return stats().getOpenScans();
+    }
+
+    @Override
+    public int getOpenUploads() {
+        return stats().getOpenUploads();
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        return stats().getErrors();
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        return latencies( Field.CALLS );
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        return latencies( Field.FAILURES );
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50() {
+        return latencies( Field.P50 );
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99() {
+        return latencies( Field.P99 );
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP999() {
+        return latencies( Field.P999 );
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMax() {
+        return latencies( Field.MAX );
+    }
+
+    private ServerStats stats() {
+        try {
+            return _service.getServerStats();
+        } catch ( final TException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private Map<String, Long> latencies( final Field field ) {
+        final Map<String, Long> result = new HashMap<String, Long>();
+        for ( final Map.Entry<String, LatencyStats> entry : stats().getLatencies().entrySet() ) {
+            result.put( entry.getKey(), Long.valueOf( field.of( entry.getValue() ) ) );
+        }
+        return result;
+    }
+
+    private enum Field {
+        CALLS {
+            @Override
+            long of( final LatencyStats stats ) {
+                return stats.getCalls();
+            }
+        },
+        FAILURES {
+            @Override
+            long of( final LatencyStats stats ) {
+                return stats.getFailures();
+            }
+        },
+        P50 {
+            @Override
+            long of( final LatencyStats stats ) {
+                return stats.getP50();
+            }
+        },
+        P99 {
+            @Override
+            long of( final LatencyStats stats ) {
+                return stats.getP99();
+            }
+        },
+        P999 {
+            @Override
+            long of( final LatencyStats stats ) {
+                return stats.getP999();
+            }
+        },
+        MAX {
+            @Override
+            long of( final LatencyStats stats ) {
+                return stats.getMax();
+            }
+        };
+
+        abstract long of( LatencyStats stats );
+    }
+
+}
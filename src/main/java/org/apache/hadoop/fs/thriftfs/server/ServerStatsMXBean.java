@@ -0,0 +1,44 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.Map;
+
+/**
+ * JMX view of the server statistics (the getServerStats rpc), registered as
+ * <code>org.apache.hadoop.fs.thriftfs:type=ServerStats</code>. Latencies are
+ * in microseconds of service time, by rpc name.
+ *
+ * @author Axel Mannhardt
+ */
+public interface ServerStatsMXBean {
+
+    long getUptimeMillis();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    int getOpenReadHandles();
+
+    int getOpenWriteHandles();
+
+    int getOpenListings();
+
+    int getOpenScans();
+
+    int getOpenUploads();
+
+    Map<String, Long> getErrors();
+
+    Map<String, Long> getCalls();
+
+    Map<String, Long> getFailures();
+
+    Map<String, Long> getLatencyP50();
+
+    Map<String, Long> getLatencyP99();
+
+    Map<String, Long> getLatencyP999();
+
+    Map<String, Long> getLatencyMax();
+
+}
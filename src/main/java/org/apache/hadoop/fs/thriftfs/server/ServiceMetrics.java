@@ -0,0 +1,105 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.thriftfs.api.LatencyStats;
+
+/**
+ * Counters of a running service: a {@link LatencyHistogram} per rpc (recorded
+ * by the {@link InstrumentedProcessor}), the bytes read and written, and the
+ * errors by exception type, including the calls shed per lane. Counting is
+ * lock free and does not allocate once every rpc and error type has been seen.
+ *
+ * @author Axel Mannhardt
+ */
+final class ServiceMetrics {
+
+    private final long _startMillis = System.currentTimeMillis();
+    private final ConcurrentMap<String, LatencyHistogram> _latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, AtomicLong> _errors = new ConcurrentHashMap<String, AtomicLong>();
+    private final LongAdder _bytesRead = new LongAdder();
+    private final LongAdder _bytesWritten = new LongAdder();
+
+    long uptimeMillis() {
+        return System.currentTimeMillis() - _startMillis;
+    }
+
+    LatencyHistogram latency( final String rpc ) {
+        LatencyHistogram histogram = _latencies.get( rpc );
+        if ( histogram == null ) {
+            histogram = new LatencyHistogram();
+            final LatencyHistogram raced = _latencies.putIfAbsent( rpc, histogram );
+            if ( raced != null ) {
+                histogram = raced;
+            }
+        }
+        return histogram;
+    }
+
+    void error( final Class<? extends Throwable> type ) {
+        count( type.getSimpleName() );
+    }
+
+    /**
+     * Counts a call rejected by the {@link CallScheduler}, among the errors.
+     */
+    void overloaded( final String lane ) {
+        count( "Overloaded(" + lane + ")" );
+    }
+
+    private void count( final String name ) {
+        AtomicLong count = _errors.get( name );
+        if ( count == null ) {
+            count = new AtomicLong();
+            final AtomicLong raced = _errors.putIfAbsent( name, count );
+            if ( raced != null ) {
+                count = raced;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void bytesRead( final long bytes ) {
+        _bytesRead.add( bytes );
+    }
+
+    void bytesWritten( final long bytes ) {
+        _bytesWritten.add( bytes );
+    }
+
+    long bytesRead() {
+        return _bytesRead.sum();
+    }
+
+    long bytesWritten() {
+        return _bytesWritten.sum();
+    }
+
+    /**
+     * Latencies of the rpcs called at least once.
+     */
+    Map<String, LatencyStats> latencies() {
+        final Map<String, LatencyStats> result = new HashMap<String, LatencyStats>();
+        for ( final Map.Entry<String, LatencyHistogram> entry : _latencies.entrySet() ) {
+            final LatencyStats stats = entry.getValue().snapshot();
+            if ( stats.getCalls() > 0 ) {
+                result.put( entry.getKey(), stats );
+            }
+        }
+        return result;
+    }
+
+    Map<String, Long> errors() {
+        final Map<String, Long> result = new HashMap<String, Long>();
+        for ( final Map.Entry<String, AtomicLong> entry : _errors.entrySet() ) {
+            result.put( entry.getKey(), Long.valueOf( entry.getValue().get() ) );
+        }
+        return result;
+    }
+
+}
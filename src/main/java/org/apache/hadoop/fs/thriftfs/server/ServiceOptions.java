@@ -0,0 +1,404 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+/**
+ * Tuning options of the {@link HdfsService}, set from the command line of
+ * {@link RunHdfsServer}. The defaults keep the service's plain behavior.
+ *
+ * @author Axel Mannhardt
+ */
+final class ServiceOptions {
+
+    private int _asyncWriteQueueBytes = 0;
+    private int _asyncWriterThreads = 4;
+    private int _metadataCacheEntries = 0;
+    private long _metadataCacheTtlMillis = 10000;
+    private long _readCacheBytes = 0;
+    private int _readCacheChunkBytes = 1024 * 1024;
+    private int _readAheadChunks = 4;
+    private int _readAheadThreads = 4;
+    private long _handleIdleTimeoutMillis = 0;
+    private int _maxOpenHandles = 0;
+    private int _parallelCompressionBlockBytes = 0;
+    private int _compressionThreads = Runtime.getRuntime().availableProcessors();
+    private int _checkpointIndexEntries = 1000;
+    private long _checkpointIntervalBytes = 1024 * 1024;
+    private boolean _checkpointSidecars = false;
+    private int _batchParallelism = 16;
+    private int _walkParallelism = 16;
+    private int _parallelReadPieceBytes = 4 * 1024 * 1024;
+    private byte[] _statelessReadSecret = null;
+    private long _statelessReadTtlMillis = 0;
+    private int _statelessReadStreams = 256;
+    private long _statelessReadIdleMillis = 60000;
+    private int _metadataConcurrency = 0;
+    private int _dataConcurrency = 0;
+    private int _adminConcurrency = 0;
+    private int _laneQueueLength = 100;
+    private long _bufferPoolBytes = 64 * 1024 * 1024;
+    private long _uploadExpiryMillis = 60 * 60 * 1000;
+
+    /**
+     * Bytes that may be queued per write handle before writes block, 0 (the
+     * default) writes synchronously.
+     */
+    int asyncWriteQueueBytes() {
+        return _asyncWriteQueueBytes;
+    }
+
+    ServiceOptions asyncWriteQueueBytes( final int bytes ) {
+        _asyncWriteQueueBytes = requireNotNegative( "async write queue bytes", bytes );
+        return this;
+    }
+
+    int asyncWriterThreads() {
+        return _asyncWriterThreads;
+    }
+
+    ServiceOptions asyncWriterThreads( final int threads ) {
+        _asyncWriterThreads = requirePositive( "async writer threads", threads );
+        return this;
+    }
+
+    /**
+     * Maximum paths cached by the metadata cache, 0 (the default) disables it.
+     */
+    int metadataCacheEntries() {
+        return _metadataCacheEntries;
+    }
+
+    ServiceOptions metadataCacheEntries( final int entries ) {
+        _metadataCacheEntries = requireNotNegative( "metadata cache entries", entries );
+        return this;
+    }
+
+    long metadataCacheTtlMillis() {
+        return _metadataCacheTtlMillis;
+    }
+
+    ServiceOptions metadataCacheTtlMillis( final long millis ) {
+        _metadataCacheTtlMillis = requirePositive( "metadata cache ttl", millis );
+        return this;
+    }
+
+    /**
+     * Off heap bytes of the block read cache, 0 (the default) disables it.
+     */
+    long readCacheBytes() {
+        return _readCacheBytes;
+    }
+
+    ServiceOptions readCacheBytes( final long bytes ) {
+        _readCacheBytes = requireNotNegative( "read cache bytes", bytes );
+        return this;
+    }
+
+    int readCacheChunkBytes() {
+        return _readCacheChunkBytes;
+    }
+
+    ServiceOptions readCacheChunkBytes( final int bytes ) {
+        _readCacheChunkBytes = requirePositive( "read cache chunk bytes", bytes );
+        return this;
+    }
+
+    /**
+     * Chunks loaded ahead of a sequential reader, 0 disables read ahead.
+     */
+    int readAheadChunks() {
+        return _readAheadChunks;
+    }
+
+    ServiceOptions readAheadChunks( final int chunks ) {
+        _readAheadChunks = requireNotNegative( "read ahead chunks", chunks );
+        return this;
+    }
+
+    int readAheadThreads() {
+        return _readAheadThreads;
+    }
+
+    ServiceOptions readAheadThreads( final int threads ) {
+        _readAheadThreads = requirePositive( "read ahead threads", threads );
+        return this;
+    }
+
+    /**
+     * Time after which handles not used are closed, 0 (the default) keeps them
+     * until closed by the client.
+     */
+    long handleIdleTimeoutMillis() {
+        return _handleIdleTimeoutMillis;
+    }
+
+    ServiceOptions handleIdleTimeoutMillis( final long millis ) {
+        _handleIdleTimeoutMillis = requireNotNegative( "handle idle timeout", millis );
+        return this;
+    }
+
+    /**
+     * Maximum read, write and listing handles open at a time, 0 (the default)
+     * for no limit.
+     */
+    int maxOpenHandles() {
+        return _maxOpenHandles;
+    }
+
+    ServiceOptions maxOpenHandles( final int handles ) {
+        _maxOpenHandles = requireNotNegative( "max open handles", handles );
+        return this;
+    }
+
+    /**
+     * Block size of the parallel compression of gzip and bzip2 files (bzip2
+     * blocks are capped at 700000 bytes, less with a bzip2 block size below
+     * 9), 0 (the default) compresses on the writing thread.
+     */
+    int parallelCompressionBlockBytes() {
+        return _parallelCompressionBlockBytes;
+    }
+
+    ServiceOptions parallelCompressionBlockBytes( final int bytes ) {
+        _parallelCompressionBlockBytes = requireNotNegative( "parallel compression block bytes", bytes );
+        return this;
+    }
+
+    int compressionThreads() {
+        return _compressionThreads;
+    }
+
+    ServiceOptions compressionThreads( final int threads ) {
+        _compressionThreads = requirePositive( "compression threads", threads );
+        return this;
+    }
+
+    /**
+     * Number of compressed files whose checkpoint index is kept in memory.
+     */
+    int checkpointIndexEntries() {
+        return _checkpointIndexEntries;
+    }
+
+    ServiceOptions checkpointIndexEntries( final int entries ) {
+        _checkpointIndexEntries = requirePositive( "checkpoint index entries", entries );
+        return this;
+    }
+
+    /**
+     * Minimum distance (uncompressed) of the checkpoints kept in an index.
+     */
+    long checkpointIntervalBytes() {
+        return _checkpointIntervalBytes;
+    }
+
+    ServiceOptions checkpointIntervalBytes( final long bytes ) {
+        _checkpointIntervalBytes = requireNotNegative( "checkpoint interval bytes", bytes );
+        return this;
+    }
+
+    /**
+     * Whether checkpoint indexes are also stored as sidecar files next to the
+     * compressed files.
+     */
+    boolean checkpointSidecars() {
+        return _checkpointSidecars;
+    }
+
+    ServiceOptions checkpointSidecars( final boolean sidecars ) {
+        _checkpointSidecars = sidecars;
+        return this;
+    }
+
+    /**
+     * File system calls of the batch rpcs in flight at a time, over all
+     * batches.
+     */
+    int batchParallelism() {
+        return _batchParallelism;
+    }
+
+    ServiceOptions batchParallelism( final int parallelism ) {
+        _batchParallelism = requirePositive( "batch parallelism", parallelism );
+        return this;
+    }
+
+    /**
+     * Bytes per piece of preadParallel, should divide the hdfs block size.
+     */
+    int parallelReadPieceBytes() {
+        return _parallelReadPieceBytes;
+    }
+
+    ServiceOptions parallelReadPieceBytes( final int bytes ) {
+        _parallelReadPieceBytes = requirePositive( "parallel read piece bytes", bytes );
+        return this;
+    }
+
+    /**
+     * Key signing stateless read handles, shared by all servers of a cluster;
+     * null (the default) issues plain handles.
+     */
+    byte[] statelessReadSecret() {
+        return _statelessReadSecret;
+    }
+
+    ServiceOptions statelessReadSecret( final byte[] secret ) {
+        if ( secret != null && secret.length < 16 ) {
+            throw new IllegalArgumentException( "stateless read secret must have at least 16 bytes, was: " + secret.length );
+        }
+        _statelessReadSecret = secret;
+        return this;
+    }
+
+    /**
+     * Milliseconds a stateless read handle is valid, 0 (the default) for
+     * unlimited.
+     */
+    long statelessReadTtlMillis() {
+        return _statelessReadTtlMillis;
+    }
+
+    ServiceOptions statelessReadTtlMillis( final long millis ) {
+        _statelessReadTtlMillis = requireNotNegative( "stateless read ttl", millis );
+        return this;
+    }
+
+    /**
+     * Files kept open for the reads of stateless handles.
+     */
+    int statelessReadStreams() {
+        return _statelessReadStreams;
+    }
+
+    ServiceOptions statelessReadStreams( final int streams ) {
+        _statelessReadStreams = requirePositive( "stateless read streams", streams );
+        return this;
+    }
+
+    /**
+     * Milliseconds after which a file unused by stateless reads is closed.
+     */
+    long statelessReadIdleMillis() {
+        return _statelessReadIdleMillis;
+    }
+
+    ServiceOptions statelessReadIdleMillis( final long millis ) {
+        _statelessReadIdleMillis = requirePositive( "stateless read idle millis", millis );
+        return this;
+    }
+
+    /**
+     * Metadata calls running at a time, 0 (the default) for no limit; see
+     * {@link CallScheduler}.
+     */
+    int metadataConcurrency() {
+        return _metadataConcurrency;
+    }
+
+    ServiceOptions metadataConcurrency( final int calls ) {
+        _metadataConcurrency = requireNotNegative( "metadata concurrency", calls );
+        return this;
+    }
+
+    /**
+     * Data (read and write) calls running at a time, 0 (the default) for no
+     * limit.
+     */
+    int dataConcurrency() {
+        return _dataConcurrency;
+    }
+
+    ServiceOptions dataConcurrency( final int calls ) {
+        _dataConcurrency = requireNotNegative( "data concurrency", calls );
+        return this;
+    }
+
+    /**
+     * Admin (stats and control) calls running at a time, 0 (the default) for
+     * no limit.
+     */
+    int adminConcurrency() {
+        return _adminConcurrency;
+    }
+
+    ServiceOptions adminConcurrency( final int calls ) {
+        _adminConcurrency = requireNotNegative( "admin concurrency", calls );
+        return this;
+    }
+
+    /**
+     * Calls per lane waiting for a slot before calls are rejected.
+     */
+    int laneQueueLength() {
+        return _laneQueueLength;
+    }
+
+    ServiceOptions laneQueueLength( final int calls ) {
+        _laneQueueLength = requireNotNegative( "lane queue length", calls );
+        return this;
+    }
+
+    /**
+     * Bytes of free buffers the {@link BufferPool} keeps for reuse.
+     */
+    long bufferPoolBytes() {
+        return _bufferPoolBytes;
+    }
+
+    ServiceOptions bufferPoolBytes( final long bytes ) {
+        _bufferPoolBytes = requireNotNegative( "buffer pool bytes", bytes );
+        return this;
+    }
+
+    /**
+     * Time without calls after which a multipart upload is aborted, 0 to keep
+     * it until completed or aborted.
+     */
+    long uploadExpiryMillis() {
+        return _uploadExpiryMillis;
+    }
+
+    ServiceOptions uploadExpiryMillis( final long millis ) {
+        _uploadExpiryMillis = requireNotNegative( "upload expiry", millis );
+        return this;
+    }
+
+    /**
+     * Directories listed at a time by the recursive rpcs (contentSummary,
+     * globStatus, listRecursive), over all their calls.
+     */
+    int walkParallelism() {
+        return _walkParallelism;
+    }
+
+    ServiceOptions walkParallelism( final int parallelism ) {
+        _walkParallelism = requirePositive( "walk parallelism", parallelism );
+        return this;
+    }
+
+    boolean scheduling() {
+        return _metadataConcurrency > 0 || _dataConcurrency > 0 || _adminConcurrency > 0;
+    }
+
+    private static int requireNotNegative( final String name, final int value ) {
+        return (int) requireNotNegative( name, (long) value );
+    }
+
+    private static long requireNotNegative( final String name, final long value ) {
+        if ( value < 0 ) {
+            throw new IllegalArgumentException( name + " must not be negative, was: " + value );
+        }
+        return value;
+    }
+
+    private static int requirePositive( final String name, final int value ) {
+        return (int) requirePositive( name, (long) value );
+    }
+
+    private static long requirePositive( final String name, final long value ) {
+        if ( value < 1 ) {
+            throw new IllegalArgumentException( name + " has to be positive, was: " + value );
+        }
+        return value;
+    }
+
+}
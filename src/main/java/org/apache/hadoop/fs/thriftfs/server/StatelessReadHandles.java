@@ -0,0 +1,290 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.thriftfs.api.ErrorCode;
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+import org.apache.hadoop.thriftfs.api.ThriftIOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Read handles that carry their state: the token of such a handle holds the
+ * path, the file version (modification time and length), an optional expiry
+ * and an HMAC-SHA256 signature with a secret shared by all servers. Any server
+ * knowing the secret serves reads of the handle, after a restart as well, so
+ * readers can be spread over replicas behind a load balancer.
+ *
+ * Streams for such reads are pooled per file version and shared by all
+ * readers; a stream unused for the idle time, or evicted by the size bound, is
+ * closed once its last read finished. The cache only expires streams while
+ * it is used, so {@link #cleanUp()} has to be called periodically to close
+ * idle streams when reads stop. A read of a file changed since the handle was
+ * issued fails.
+ *
+ * @author Axel Mannhardt
+ */
+final class StatelessReadHandles {
+
+    /**
+     * Opens a pooled stream, failing with {@link #checkVersion} if the file is
+     * no longer of the given version.
+     */
+    interface Opener {
+        ReadHandle open( Path path, long modificationTime, long length ) throws IOException;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger( StatelessReadHandles.class );
+
+    private static final String VERSION = "1";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec _key;
+    private final long _ttlMillis;
+    private final Opener _opener;
+    private final Cache<String, Pooled> _streams;
+
+    /**
+     * @param ttlMillis lifetime of an issued handle, 0 for unlimited
+     */
+    StatelessReadHandles( final byte[] secret, final long ttlMillis, final int maxStreams, final long idleMillis,
+            final Opener opener ) {
+        _key = new SecretKeySpec( secret, MAC_ALGORITHM );
+        _ttlMillis = ttlMillis;
+        _opener = opener;
+        _streams =
+                CacheBuilder.newBuilder().maximumSize( maxStreams ).expireAfterAccess( idleMillis, TimeUnit.MILLISECONDS )
+                        .removalListener( new RemovalListener<String, Pooled>() {
+                            @Override
+                            public void onRemoval( final RemovalNotification<String, Pooled> notification ) {
+                                notification.getValue().retire();
+                            }
+                        } ).build();
+    }
+
+    static boolean isStateless( final ThriftHandle handle ) {
+        return handle.isSetToken();
+    }
+
+    /**
+     * A handle for the file, without opening it.
+     */
+    ThriftHandle issue( final FileStatus status ) {
+        final long expiry = _ttlMillis > 0 ? System.currentTimeMillis() + _ttlMillis : 0;
+        final String payload =
+                VERSION + "." + ENCODER.encodeToString( status.getPath().toString().getBytes( StandardCharsets.UTF_8 ) ) + "."
+                        + status.getModificationTime() + "." + status.getLen() + "." + expiry;
+        final ThriftHandle handle = new ThriftHandle( 0 );
+        handle.setToken( payload + "." + ENCODER.encodeToString( sign( payload ) ) );
+        return handle;
+    }
+
+    /**
+     * Expires the streams idle for longer than the idle time, returns how
+     * many streams were removed.
+     */
+    int cleanUp() {
+        final long before = _streams.size();
+        _streams.cleanUp();
+        return (int) Math.max( 0, before - _streams.size() );
+    }
+
+    /**
+     * Borrows the pooled stream of the handle's file, which has to be
+     * returned with {@link Lease#release()}.
+     */
+    Lease lease( final ThriftHandle handle ) throws IOException, ThriftIOException {
+        final Token token = verify( handle.getToken() );
+        while ( true ) {
+            final Pooled pooled;
+            try {
+                pooled = _streams.get( token._key, new Callable<Pooled>() {
+                    @Override
+                    public Pooled call() throws IOException {
+                        return new Pooled( _opener.open( token._path, token._modificationTime, token._length ) );
+                    }
+                } );
+            } catch ( final ExecutionException e ) {
+                if ( e.getCause() instanceof IOException ) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException( "opening " + token._path + " failed", e.getCause() );
+            }
+            if ( pooled.acquire() ) {
+                return new Lease( pooled );
+            }
+            // retired between lookup and acquire
+            _streams.asMap().remove( token._key, pooled );
+        }
+    }
+
+    /**
+     * Whether the handle's token was signed with this server's secret and has
+     * not expired.
+     */
+    boolean isValid( final ThriftHandle handle ) {
+        try {
+            verify( handle.getToken() );
+            return true;
+        } catch ( final ThriftIOException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks the version of a newly opened file against its handle's.
+     */
+    static void checkVersion( final FileStatus status, final long modificationTime, final long length ) throws IOException {
+        if ( status.getModificationTime() != modificationTime || status.getLen() != length ) {
+            throw new FileChangedException( "file changed since the read handle was issued: " + status.getPath() );
+        }
+    }
+
+    private Token verify( final String token ) throws ThriftIOException {
+        final int signatureStart = token.lastIndexOf( '.' );
+        final String[] fields = token.split( "\\." );
+        if ( signatureStart < 0 || fields.length != 6 || !VERSION.equals( fields[0] ) ) {
+            throw ErrorCodes.error( ErrorCode.UNKNOWN_HANDLE, "malformed read handle token" );
+        }
+        try {
+            final byte[] signature = DECODER.decode( fields[5] );
+            if ( !MessageDigest.isEqual( signature, sign( token.substring( 0, signatureStart ) ) ) ) {
+                throw ErrorCodes.error( ErrorCode.UNKNOWN_HANDLE, "invalid read handle signature" );
+            }
+            final long expiry = Long.parseLong( fields[4] );
+            if ( expiry > 0 && expiry < System.currentTimeMillis() ) {
+                throw ErrorCodes.error( ErrorCode.HANDLE_EXPIRED, "read handle expired" );
+            }
+            return new Token( new Path( new String( DECODER.decode( fields[1] ), StandardCharsets.UTF_8 ) ),
+                    Long.parseLong( fields[2] ), Long.parseLong( fields[3] ) );
+        } catch ( final IllegalArgumentException e ) {
+            throw ErrorCodes.error( ErrorCode.UNKNOWN_HANDLE, "malformed read handle token" );
+        }
+    }
+
+    private byte[] sign( final String payload ) {
+        try {
+            final Mac mac = Mac.getInstance( MAC_ALGORITHM );
+            mac.init( _key );
+            return mac.doFinal( payload.getBytes( StandardCharsets.UTF_8 ) );
+        } catch ( final GeneralSecurityException e ) {
+            throw new IllegalStateException( MAC_ALGORITHM + " not available", e );
+        }
+    }
+
+    /**
+     * The file of a handle is not of the handle's version anymore.
+     */
+    static final class FileChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FileChangedException( final String message ) {
+            super( message );
+        }
+    }
+
+    /**
+     * A borrowed pooled stream.
+     */
+    static final class Lease {
+        private final Pooled _pooled;
+
+        Lease( final Pooled pooled ) {
+            _pooled = pooled;
+        }
+
+        ReadHandle readHandle() {
+            return _pooled._readHandle;
+        }
+
+        void release() {
+            _pooled.release();
+        }
+    }
+
+    /**
+     * A pooled stream with the count of its current readers; retired streams
+     * are closed by their last reader. A failed acquire of a retired stream
+     * brings the count back to the retired mark as well, so the close is
+     * guarded to happen once.
+     */
+    private static final class Pooled {
+        private static final int RETIRED = Integer.MIN_VALUE / 2;
+
+        private final ReadHandle _readHandle;
+        private final AtomicInteger _users = new AtomicInteger();
+        private final AtomicBoolean _closed = new AtomicBoolean();
+
+        Pooled( final ReadHandle readHandle ) {
+            _readHandle = readHandle;
+        }
+
+        boolean acquire() {
+            if ( _users.incrementAndGet() > 0 ) {
+                return true;
+            }
+            release();
+            return false;
+        }
+
+        void release() {
+            if ( _users.decrementAndGet() == RETIRED ) {
+                close();
+            }
+        }
+
+        void retire() {
+            if ( _users.addAndGet( RETIRED ) == RETIRED ) {
+                close();
+            }
+        }
+
+        private void close() {
+            if ( !_closed.compareAndSet( false, true ) ) {
+                return;
+            }
+            try {
+                _readHandle.close();
+            } catch ( final IOException e ) {
+                LOG.warn( "closing a pooled read stream failed", e );
+            }
+        }
+    }
+
+    private static final class Token {
+        private final Path _path;
+        private final long _modificationTime;
+        private final long _length;
+        /** The key of the file version in the pool. */
+        private final String _key;
+
+        Token( final Path path, final long modificationTime, final long length ) {
+            _path = path;
+            _modificationTime = modificationTime;
+            _length = length;
+            _key = path + "@" + modificationTime + "@" + length;
+        }
+    }
+
+}
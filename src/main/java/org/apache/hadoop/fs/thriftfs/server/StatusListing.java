@@ -0,0 +1,68 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.thriftfs.api.StatusProjection;
+
+/**
+ * A directory listing handed out page by page. It wraps hadoop's
+ * {@link RemoteIterator}, which fetches the entries from the name node in
+ * batches, so the memory needed does not depend on the directory size.
+ *
+ * @author Axel Mannhardt
+ */
+final class StatusListing implements Closeable {
+
+    private final RemoteIterator<FileStatus> _entries;
+    private final StatusProjection _projection;
+    private final boolean _skipChecksumFiles;
+    private FileStatus _next;
+
+    /**
+     * @param skipChecksumFiles whether to hide the checksum files of a
+     *            {@link ChecksumFileSystem}, which its iterator (unlike its
+     *            listStatus) does not filter
+     */
+    StatusListing( final RemoteIterator<FileStatus> entries, final StatusProjection projection, final boolean skipChecksumFiles ) {
+        _entries = entries;
+        _projection = projection;
+        _skipChecksumFiles = skipChecksumFiles;
+    }
+
+    StatusProjection projection() {
+        return _projection;
+    }
+
+    /**
+     * Adds up to <code>maxEntries</code> entries to <code>page</code>, returns
+     * whether there are more.
+     */
+    synchronized boolean nextPage( final int maxEntries, final List<FileStatus> page ) throws IOException {
+        while ( page.size() < maxEntries && hasNext() ) {
+            page.add( _next );
+            _next = null;
+        }
+        return hasNext();
+    }
+
+    private boolean hasNext() throws IOException {
+        while ( _next == null && _entries.hasNext() ) {
+            final FileStatus next = _entries.next();
+            if ( !_skipChecksumFiles || !ChecksumFileSystem.isChecksumFile( next.getPath() ) ) {
+                _next = next;
+            }
+        }
+        return _next != null;
+    }
+
+    @Override
+    public void close() {
+        // the remote iterator holds no resources besides its current batch
+    }
+
+}
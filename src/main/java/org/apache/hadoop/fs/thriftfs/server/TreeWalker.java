@@ -0,0 +1,464 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.thriftfs.api.ContentSummary;
+
+/**
+ * Walks directory trees concurrently for the recursive rpcs: the directories
+ * are listed by the tasks of one fork join pool. A semaphore of
+ * <code>parallelism</code> permits bounds the listings in flight over all
+ * walks - the namenode is the limit, not the server - as the pool itself
+ * does not: it starts extra threads to make up for tasks blocked in a join.
+ * Waiting for a permit and the namenode call are a
+ * {@link ForkJoinPool.ManagedBlocker}, so the pool makes up for those
+ * workers as well instead of idling with queued tasks. Directories are read
+ * with <code>listStatusIterator</code>, a summary does not hold the entries
+ * of a huge directory at once. Directories removed during a walk are
+ * skipped.
+ *
+ * @author Axel Mannhardt
+ */
+final class TreeWalker {
+
+    private static final Comparator<FileStatus> BY_PATH = new Comparator<FileStatus>() {
+        @Override
+        public int compare( final FileStatus a, final FileStatus b ) {
+            return a.getPath().compareTo( b.getPath() );
+        }
+    };
+
+    private static final EntryFilter ALL = new EntryFilter() {
+        @Override
+        public boolean accept( final FileStatus entry ) {
+            return true;
+        }
+    };
+
+    private final ForkJoinPool _pool;
+    private final int _parallelism;
+    /** Permits of the namenode calls in flight. */
+    private final Semaphore _calls;
+
+    TreeWalker( final int parallelism ) {
+        _pool = new ForkJoinPool( parallelism );
+        _parallelism = parallelism;
+        _calls = new Semaphore( parallelism );
+    }
+
+    /**
+     * Sums up the files below the path (or the file itself), listing every
+     * directory as a task of its own.
+     */
+    ContentSummary summarize( final FileSystem fs, final Path path ) throws IOException {
+        final FileStatus status = fs.getFileStatus( path );
+        if ( !status.isDirectory() ) {
+            return new ContentSummary( status.getLen(), 1, 0, status.getLen() * status.getReplication() );
+        }
+        try {
+            return _pool.invoke( new SummaryTask( fs, path, true ) );
+        } catch ( final UncheckedIOException e ) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Files and directories below the path, the entries of a directory follow
+     * it (not necessarily right after it). <code>parallelism</code>
+     * directories are listed at a time, when the entries listed before are
+     * consumed.
+     */
+    RemoteIterator<FileStatus> listRecursive( final FileSystem fs, final Path path ) {
+        return new RecursiveListing( fs, path );
+    }
+
+    /**
+     * The paths matching the pattern, sorted. Its components are matched one
+     * after the other, listing all directories matched so far concurrently;
+     * components without wildcards are appended without listing. Unlike
+     * hadoop's glob, a {a,b} alternative must not span a <code>/</code>.
+     */
+    List<FileStatus> glob( final FileSystem fs, final Path pattern ) throws IOException {
+        final Path qualified = fs.makeQualified( pattern );
+        final String[] components = qualified.toUri().getPath().split( Path.SEPARATOR );
+        List<Path> candidates = Collections.singletonList( new Path( qualified.toUri().resolve( Path.SEPARATOR ) ) );
+        List<FileStatus> matches = null;
+        for ( int i = 0; i < components.length; i++ ) {
+            if ( components[i].isEmpty() ) {
+                continue;
+            }
+            final GlobPattern component = new GlobPattern( components[i] );
+            if ( !component.hasWildcard() ) {
+                final String name = unescape( components[i] );
+                final List<Path> children = new ArrayList<Path>( candidates.size() );
+                for ( final Path candidate : candidates ) {
+                    children.add( new Path( candidate, name ) );
+                }
+                candidates = children;
+                matches = null;
+                continue;
+            }
+            final boolean last = i == components.length - 1;
+            matches = new ArrayList<FileStatus>();
+            final EntryFilter filter = new EntryFilter() {
+                @Override
+                public boolean accept( final FileStatus child ) {
+                    return component.matches( child.getPath().getName() ) && ( last || child.isDirectory() );
+                }
+            };
+            for ( final List<FileStatus> children : listAll( fs, candidates, filter ) ) {
+                matches.addAll( children );
+            }
+            candidates = new ArrayList<Path>( matches.size() );
+            for ( final FileStatus match : matches ) {
+                candidates.add( match.getPath() );
+            }
+        }
+        if ( matches == null ) {
+            // the pattern ends with literal components, whose paths may not exist
+            matches = statAll( fs, candidates );
+        }
+        Collections.sort( matches, BY_PATH );
+        return matches;
+    }
+
+    private static String unescape( final String component ) {
+        return component.replaceAll( "\\\\(.)", "$1" );
+    }
+
+    /**
+     * The entries of the directories accepted by the filter, in the order of
+     * the directories; a missing directory or a file has none.
+     */
+    private List<List<FileStatus>> listAll( final FileSystem fs, final List<Path> directories, final EntryFilter filter )
+        throws IOException {
+        final List<Callable<List<FileStatus>>> listings = new ArrayList<Callable<List<FileStatus>>>( directories.size() );
+        for ( final Path directory : directories ) {
+            listings.add( new Callable<List<FileStatus>>() {
+                @Override
+                public List<FileStatus> call() throws IOException {
+                    final List<FileStatus> entries = new ArrayList<FileStatus>();
+                    listDirectory( fs, directory, new EntryVisitor() {
+                        @Override
+                        public void visit( final FileStatus entry ) {
+                            if ( filter.accept( entry ) ) {
+                                entries.add( entry );
+                            }
+                        }
+                    } );
+                    return entries;
+                }
+            } );
+        }
+        return invokeAll( listings );
+    }
+
+    private List<FileStatus> statAll( final FileSystem fs, final List<Path> paths ) throws IOException {
+        final List<Callable<FileStatus[]>> stats = new ArrayList<Callable<FileStatus[]>>( paths.size() );
+        for ( final Path path : paths ) {
+            stats.add( new Callable<FileStatus[]>() {
+                @Override
+                public FileStatus[] call() throws IOException {
+                    return namenodeCall( new NamenodeCall<FileStatus[]>() {
+                        @Override
+                        public FileStatus[] call() throws IOException {
+                            try {
+                                return new FileStatus[] { fs.getFileStatus( path ) };
+                            } catch ( final FileNotFoundException e ) {
+                                return new FileStatus[0];
+                            }
+                        }
+                    } );
+                }
+            } );
+        }
+        final List<FileStatus> result = new ArrayList<FileStatus>( paths.size() );
+        for ( final FileStatus[] status : invokeAll( stats ) ) {
+            result.addAll( Arrays.asList( status ) );
+        }
+        return result;
+    }
+
+    private <T> List<T> invokeAll( final List<Callable<T>> tasks ) throws IOException {
+        final List<T> results = new ArrayList<T>( tasks.size() );
+        try {
+            for ( final Future<T> future : _pool.invokeAll( tasks ) ) {
+                results.add( future.get() );
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while listing" );
+        } catch ( final ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException( e.getCause() );
+        }
+        return results;
+    }
+
+    /**
+     * Hands the directory's entries to the visitor as they are listed, none if
+     * it is missing (removed during the walk) or a file.
+     */
+    private void listDirectory( final FileSystem fs, final Path directory, final EntryVisitor visitor ) throws IOException {
+        final Path qualified = fs.makeQualified( directory );
+        try {
+            listStatus( fs, directory, new EntryVisitor() {
+                @Override
+                public void visit( final FileStatus entry ) {
+                    // the listing of a file is the file, a directory does not contain itself
+                    if ( entry.isDirectory() || !entry.getPath().equals( qualified ) ) {
+                        visitor.visit( entry );
+                    }
+                }
+            } );
+        } catch ( final FileNotFoundException e ) {
+            // removed, the entries visited before stay
+        }
+    }
+
+    /**
+     * Hands the entries of the directory (the file, for a file) to the
+     * visitor as they are listed, holding a permit throughout.
+     */
+    private void listStatus( final FileSystem fs, final Path directory, final EntryVisitor visitor ) throws IOException {
+        namenodeCall( new NamenodeCall<Void>() {
+            @Override
+            public Void call() throws IOException {
+                final RemoteIterator<FileStatus> entries = fs.listStatusIterator( directory );
+                while ( entries.hasNext() ) {
+                    visitor.visit( entries.next() );
+                }
+                return null;
+            }
+        } );
+    }
+
+    private List<FileStatus> listStatus( final FileSystem fs, final Path directory ) throws IOException {
+        final List<FileStatus> entries = new ArrayList<FileStatus>();
+        listStatus( fs, directory, new EntryVisitor() {
+            @Override
+            public void visit( final FileStatus entry ) {
+                entries.add( entry );
+            }
+        } );
+        return entries;
+    }
+
+    /**
+     * Runs the call with a permit, as a managed block when on a worker of the
+     * pool.
+     */
+    private <T> T namenodeCall( final NamenodeCall<T> call ) throws IOException {
+        final CallBlocker<T> blocker = new CallBlocker<T>( call );
+        try {
+            ForkJoinPool.managedBlock( blocker );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while listing" );
+        }
+        return blocker.result();
+    }
+
+    /**
+     * A call to the namenode.
+     */
+    private interface NamenodeCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Receives the entries of a directory as they are listed.
+     */
+    private interface EntryVisitor {
+        void visit( FileStatus entry );
+    }
+
+    /**
+     * Selects the entries of a listing to keep.
+     */
+    private interface EntryFilter {
+        boolean accept( FileStatus entry );
+    }
+
+    /**
+     * Waits for a permit and runs the call in {@link #block()}, keeping its
+     * result or failure for the caller.
+     */
+    private final class CallBlocker<T> implements ForkJoinPool.ManagedBlocker {
+        private final NamenodeCall<T> _call;
+        private boolean _done;
+        private T _result;
+        private IOException _failure;
+
+        CallBlocker( final NamenodeCall<T> call ) {
+            _call = call;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            _calls.acquire();
+            try {
+                _result = _call.call();
+            } catch ( final IOException e ) {
+                _failure = e;
+            } finally {
+                _calls.release();
+            }
+            _done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return _done;
+        }
+
+        T result() throws IOException {
+            if ( _failure != null ) {
+                throw _failure;
+            }
+            return _result;
+        }
+    }
+
+    /**
+     * Sums a directory: its files here, its subdirectories in forked tasks.
+     */
+    private final class SummaryTask extends RecursiveTask<ContentSummary> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileSystem _fs;
+        private final Path _directory;
+        private final boolean _root;
+
+        SummaryTask( final FileSystem fs, final Path directory, final boolean root ) {
+            _fs = fs;
+            _directory = directory;
+            _root = root;
+        }
+
+        @Override
+        protected ContentSummary compute() {
+            final ContentSummary summary = new ContentSummary( 0, 0, 1, 0 );
+            final List<SummaryTask> subdirectories = new ArrayList<SummaryTask>();
+            final EntryVisitor counter = new EntryVisitor() {
+                @Override
+                public void visit( final FileStatus entry ) {
+                    if ( entry.isDirectory() ) {
+                        final SummaryTask task = new SummaryTask( _fs, entry.getPath(), false );
+                        task.fork();
+                        subdirectories.add( task );
+                    } else {
+                        summary.setLength( summary.getLength() + entry.getLen() );
+                        summary.setFileCount( summary.getFileCount() + 1 );
+                        summary.setSpaceConsumed( summary.getSpaceConsumed() + entry.getLen() * entry.getReplication() );
+                    }
+                }
+            };
+            try {
+                // a missing root is an error, a directory removed meanwhile is not
+                if ( _root ) {
+                    listStatus( _fs, _directory, counter );
+                } else {
+                    listDirectory( _fs, _directory, counter );
+                }
+            } catch ( final IOException e ) {
+                throw new UncheckedIOException( e );
+            }
+            for ( final SummaryTask task : subdirectories ) {
+                final ContentSummary sub = task.join();
+                summary.setLength( summary.getLength() + sub.getLength() );
+                summary.setFileCount( summary.getFileCount() + sub.getFileCount() );
+                summary.setDirectoryCount( summary.getDirectoryCount() + sub.getDirectoryCount() );
+                summary.setSpaceConsumed( summary.getSpaceConsumed() + sub.getSpaceConsumed() );
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * Lists the directories found so far in batches of <code>parallelism</code>
+     * directories, when the entries listed before are consumed. Directories
+     * found are listed before those found earlier (depth first), which keeps
+     * the pending directories few in wide trees.
+     */
+    private final class RecursiveListing implements RemoteIterator<FileStatus> {
+        private final FileSystem _fs;
+        private final Path _root;
+        private final Deque<Path> _pending = new ArrayDeque<Path>();
+        private final Deque<FileStatus> _listed = new ArrayDeque<FileStatus>();
+        private boolean _started;
+
+        RecursiveListing( final FileSystem fs, final Path root ) {
+            _fs = fs;
+            _root = root;
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            if ( !_started ) {
+                _started = true;
+                // a missing root fails, a file root lists the file
+                _listed.addAll( listStatus( _fs, _root ) );
+                queueDirectories( new ArrayList<FileStatus>( _listed ) );
+            }
+            while ( _listed.isEmpty() && !_pending.isEmpty() ) {
+                final List<Path> batch = new ArrayList<Path>( _parallelism );
+                while ( batch.size() < _parallelism && !_pending.isEmpty() ) {
+                    batch.add( _pending.pollFirst() );
+                }
+                final List<FileStatus> found = new ArrayList<FileStatus>();
+                for ( final List<FileStatus> entries : listAll( _fs, batch, ALL ) ) {
+                    found.addAll( entries );
+                }
+                _listed.addAll( found );
+                queueDirectories( found );
+            }
+            return !_listed.isEmpty();
+        }
+
+        private void queueDirectories( final List<FileStatus> entries ) {
+            for ( int i = entries.size() - 1; i >= 0; i-- ) {
+                if ( entries.get( i ).isDirectory() ) {
+                    _pending.addFirst( entries.get( i ).getPath() );
+                }
+            }
+        }
+
+        @Override
+        public FileStatus next() throws IOException {
+            if ( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            return _listed.pollFirst();
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A file opened for writing.
+ *
+ * In synchronous mode every write goes straight to the (hdfs or compression)
+ * stream. In asynchronous mode a write returns as soon as the data is queued;
+ * the queue is bounded in bytes and drained by a shared writer pool, one drain
+ * task per handle at a time so chunks are written in queue order. A full queue
+ * blocks the writing rpc thread (backpressure). A failed background write is
+ * reported by the next write or by {@link #close()}. Queued chunks are copied
+ * into buffers of the {@link BufferPool}, returned once written.
+ *
+ * Writes racing {@link #close()} either complete before the stream is closed
+ * or fail with an IOException, in both modes.
+ *
+ * @author Axel Mannhardt
+ */
+final class WriteHandle implements Closeable {
+
+    private final OutputStream _stream;
+    private final Path _path;
+    private final Executor _writers;
+    private final int _queueBytes;
+    private final Semaphore _queueBudget;
+    private final BufferPool _buffers;
+    private final Queue<ByteBuffer> _queue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicBoolean _draining = new AtomicBoolean();
+    private final AtomicBoolean _closed = new AtomicBoolean();
+    private final Runnable _drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private volatile IOException _failure;
+
+    /**
+     * @param writers background writers, <code>null</code> for synchronous mode
+     * @param queueBytes maximum bytes queued in asynchronous mode
+     */
+    WriteHandle( final OutputStream stream, final Path path, final Executor writers, final int queueBytes, final BufferPool buffers ) {
+        _stream = stream;
+        _buffers = buffers;
+        _path = path;
+        _writers = writers;
+        _queueBytes = queueBytes;
+        _queueBudget = writers == null ? null : new Semaphore( queueBytes );
+    }
+
+    Path path() {
+        return _path;
+    }
+
+    void write( final ByteBuffer data ) throws IOException {
+        checkFailure();
+        if ( _writers == null ) {
+            synchronized ( this ) {
+                checkOpen();
+                writeTo( _stream, data );
+            }
+        } else {
+            enqueue( data );
+        }
+    }
+
+    void writeBatch( final List<ByteBuffer> chunks ) throws IOException {
+        checkFailure();
+        if ( _writers == null ) {
+            synchronized ( this ) {
+                checkOpen();
+                for ( final ByteBuffer chunk : chunks ) {
+                    writeTo( _stream, chunk );
+                }
+            }
+        } else {
+            for ( final ByteBuffer chunk : chunks ) {
+                enqueue( chunk );
+            }
+        }
+    }
+
+    /**
+     * Waits for queued data to be written, then closes the stream. Throws a
+     * pending background write failure. Closing again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if ( !_closed.compareAndSet( false, true ) ) {
+            return;
+        }
+        if ( _writers == null ) {
+            // waits for a write in progress
+            synchronized ( this ) {
+                _stream.close();
+            }
+            return;
+        }
+        // all permits are back once everything queued has been written
+        _queueBudget.acquireUninterruptibly( _queueBytes );
+        try {
+            checkFailure();
+        } finally {
+            try {
+                _stream.close();
+            } finally {
+                // wakes writes waiting for the queue, they fail as the handle is closed
+                _queueBudget.release( _queueBytes );
+            }
+        }
+    }
+
+    private void enqueue( final ByteBuffer data ) throws IOException {
+        checkOpen();
+        final int length = data.remaining();
+        try {
+            _queueBudget.acquire( permits( length ) );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while waiting for the write queue" );
+        }
+        if ( _closed.get() ) {
+            // closed meanwhile: close waits for these permits or is done, the chunk would never be written
+            _queueBudget.release( permits( length ) );
+            checkOpen();
+        }
+        // thrift may hand out a view on its frame buffer, which is reused after the call
+        final byte[] copy = _buffers.acquire( length );
+        data.duplicate().get( copy, 0, length );
+        _queue.add( ByteBuffer.wrap( copy, 0, length ) );
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if ( _draining.compareAndSet( false, true ) ) {
+            _writers.execute( _drain );
+        }
+    }
+
+    private void drain() {
+        try {
+            ByteBuffer chunk;
+            while ( ( chunk = _queue.poll() ) != null ) {
+                try {
+                    if ( _failure == null ) {
+                        _stream.write( chunk.array(), 0, chunk.limit() );
+                    }
+                } catch ( final IOException e ) {
+                    _failure = e;
+                } finally {
+                    _buffers.release( chunk.array() );
+                    _queueBudget.release( permits( chunk.limit() ) );
+                }
+            }
+        } finally {
+            _draining.set( false );
+        }
+        // a chunk queued after the last poll might have missed the running drain
+        if ( !_queue.isEmpty() ) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Chunks bigger than the whole queue take all of it.
+     */
+    private int permits( final int length ) {
+        return Math.min( length, _queueBytes );
+    }
+
+    private void checkOpen() throws IOException {
+        if ( _closed.get() ) {
+            throw new IOException( "write handle of " + _path + " is closed" );
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException failure = _failure;
+        if ( failure != null ) {
+            throw new IOException( "asynchronous write failed: " + failure.getMessage(), failure );
+        }
+    }
+
+    private static void writeTo( final OutputStream stream, final ByteBuffer data ) throws IOException {
+        if ( data.hasArray() ) {
+            stream.write( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+        } else {
+            final byte[] copy = new byte[data.remaining()];
+            data.duplicate().get( copy );
+            stream.write( copy );
+        }
+    }
+
+}
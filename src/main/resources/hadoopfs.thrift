@@ -23,8 +23,16 @@
 namespace java org.apache.hadoop.thriftfs.api
 #namespace php hadoopfs
 
+// bytes of file data a call returns (read, pread, scan pages) or accepts
+// (uploadPart) at most: 8 MiB, half of the framed transport's default maximum
+// message size of 16384000 bytes, which leaves room for a scan page's last line
+const i32 MAX_DATA_PER_CALL = 8388608
+
 struct ThriftHandle {
-  i64 id
+  i64 id, // implicit field id, kept for compatibility
+  // set instead of the id by servers issuing stateless read handles: the
+  // signed path and version of the file, readable on any server sharing the key
+  2: optional string token
 }
 
 struct Pathname {
@@ -43,6 +51,50 @@ struct FileStatus {
   9: string group
 }
 
+/* fields of FileStatus returned by listStatusPaged */
+enum StatusProjection {
+  FULL = 0,                      /* all fields */
+  BRIEF = 1                      /* without permission, owner and group */
+}
+
+struct FileStatusPage {
+  1: list<FileStatus> entries,
+  2: string cursor,              /* pass to the next call, empty on the last page */
+  3: bool hasMore
+}
+
+struct ContentSummary {
+  1: i64 length,                 /* bytes of all files */
+  2: i64 fileCount,
+  3: i64 directoryCount,         /* including the directory itself */
+  4: i64 spaceConsumed           /* bytes stored, with replication */
+}
+
+/* what a scan returns, all bounds and filters are optional */
+struct ScanRequest {
+  1: Pathname path,
+  2: optional i64 startOffset,   /* scans the lines starting in [startOffset, endOffset) */
+  3: optional i64 endOffset,     /* of the uncompressed content */
+  4: optional i64 firstLine,     /* scans lines firstLine..lastLine (inclusive), */
+  5: optional i64 lastLine,      /* numbered from 0 at the first line scanned */
+  6: optional string contains,   /* a line must contain this substring */
+  7: optional string regex,      /* a line must contain a match of this java regex */
+  8: optional i64 limit          /* matching lines returned over all pages */
+}
+
+struct ScanRecord {
+  1: i64 lineNumber,
+  2: i64 offset,                 /* of the line in the uncompressed content */
+  3: binary line,                /* without the line break */
+  4: optional bool truncated     /* the line was longer than 1 MiB */
+}
+
+struct ScanPage {
+  1: list<ScanRecord> records,
+  2: string cursor,              /* pass to the next call, empty on the last page */
+  3: bool hasMore                /* a page may be empty while hasMore is set */
+}
+
 struct BlockLocation {
   1: list<string> hosts,         /* hostnames of datanodes */
   2: list<string> names,         /* hostname:portNumber of datanodes */
@@ -50,12 +102,77 @@ struct BlockLocation {
   4: i64 length                  /* length of data */
 }
 
+/* counters of a server side cache */
+struct CacheStats {
+  1: i64 hits,
+  2: i64 misses,
+  3: i64 evictions,
+  4: i64 size,                   /* current size, in the cache's unit */
+  5: i64 capacity                /* maximum size, 0 if the cache is disabled */
+}
+
+/* latency distribution of one rpc, in microseconds of service time */
+struct LatencyStats {
+  1: i64 calls,
+  2: i64 failures,               /* calls ending with an exception */
+  3: double mean,
+  4: i64 p50,
+  5: i64 p90,
+  6: i64 p99,
+  7: i64 p999,
+  8: i64 max
+}
+
+/* counters of a running server, since its start */
+struct ServerStats {
+  1: i64 uptimeMillis,
+  2: map<string, LatencyStats> latencies,   /* by rpc name, only rpcs called */
+  3: i64 bytesRead,
+  4: i64 bytesWritten,
+  5: i32 openReadHandles,
+  6: i32 openWriteHandles,
+  7: i32 openListings,
+  8: map<string, i64> errors,               /* by exception type */
+  9: map<string, CacheStats> caches,        /* by cache name, see getCacheStats */
+  10: i32 openScans,                        /* scans with pages left */
+  11: i32 openUploads                       /* multipart uploads not completed or aborted */
+}
+
+/* outcome of a batch call for one path, in the order of the request */
+struct PathResult {
+  1: string path,
+  2: bool result,                /* as the single path call, false on error */
+  3: optional string error       /* set if the call failed for this path */
+}
+
+struct StatResult {
+  1: string path,
+  2: optional FileStatus status, /* unset if the path does not exist or on error */
+  3: optional string error       /* set if the call failed for this path */
+}
+
 exception MalformedInputException {
   string message
 }
 
+/* cause of a ThriftIOException */
+enum ErrorCode {
+  IO_ERROR = 0,             /* any other failure of the file system */
+  NOT_FOUND = 1,
+  ALREADY_EXISTS = 2,
+  PERMISSION_DENIED = 3,
+  DIRECTORY_NOT_EMPTY = 4,
+  INVALID_ARGUMENT = 5,     /* e.g. a negative offset or an empty batch */
+  UNKNOWN_HANDLE = 6,       /* closed, released when idle, or forged */
+  HANDLE_EXPIRED = 7,
+  FILE_CHANGED = 8,         /* since a stateless read handle was issued */
+  LIMIT_EXCEEDED = 9,       /* e.g. too many open handles */
+  UNSUPPORTED = 10
+}
+
 exception ThriftIOException {
-   string message
+   string message,            /* short, without stack trace (logged at debug level on the server) */
+   2: optional ErrorCode code
 }
 
 service ThriftHadoopFileSystem
@@ -78,7 +195,8 @@ service ThriftHadoopFileSystem
                           5:i16 block_replication, 6:i64 blocksize) 
                           throws (1:ThriftIOException ouch),
 
-  // returns a handle to an existing file  for reading
+  // returns a handle to an existing file  for reading; servers with a
+  // stateless read secret return a token handle that needs no close
   ThriftHandle open(1:Pathname path) throws (1:ThriftIOException ouch),
 
   // returns a handle to an existing file for appending to it.
@@ -87,9 +205,24 @@ service ThriftHadoopFileSystem
   // write a string to the open handle for the file
   bool write(1:ThriftHandle handle, string data) throws (1:ThriftIOException ouch),
 
+  // write bytes to the open handle for the file. If the server writes
+  // asynchronously, a failure is reported by a later write or closeWriteHandle
+  bool writeBytes(1:ThriftHandle handle, 2:binary data) throws (1:ThriftIOException ouch),
+
+  // write several chunks in order to the open handle for the file
+  bool writeBatch(1:ThriftHandle handle, 2:list<binary> chunks) throws (1:ThriftIOException ouch),
+
   // read some bytes from the open handle for the file
   string read(1:ThriftHandle handle, i64 offset, i32 size) throws (1:ThriftIOException ouch),
 
+  // read up to size bytes at offset of the (uncompressed) file content,
+  // returns less bytes only at the end of the file
+  binary pread(1:ThriftHandle handle, 2:i64 offset, 3:i32 size) throws (1:ThriftIOException ouch),
+
+  // as pread, but the server reads the block aligned pieces of the range
+  // concurrently: for large reads of plain files over a single connection
+  binary preadParallel(1:ThriftHandle handle, 2:i64 offset, 3:i32 size) throws (1:ThriftIOException ouch),
+
   // close file opened for reading
   bool closeReadHandle(1:ThriftHandle out) throws (1:ThriftIOException ouch),
 
@@ -111,9 +244,71 @@ service ThriftHadoopFileSystem
   // Returns status about the path
   FileStatus stat(1:Pathname path) throws (1:ThriftIOException ouch),
 
+  // batch variants: the paths are processed concurrently, a failure of one
+  // path is reported in its result and does not affect the others
+  list<StatResult> statBatch(1:list<Pathname> paths) throws (1:ThriftIOException ouch),
+
+  list<PathResult> existsBatch(1:list<Pathname> paths) throws (1:ThriftIOException ouch),
+
+  list<PathResult> mkdirsBatch(1:list<Pathname> paths) throws (1:ThriftIOException ouch),
+
+  list<PathResult> rmBatch(1:list<Pathname> paths, 2:bool recursive) throws (1:ThriftIOException ouch),
+
   // If the path is a directory, then returns the list of pathnames in that directory
   list<FileStatus> listStatus(1:Pathname path) throws (1:ThriftIOException ouch),
 
+  // lists a directory page by page: start with an empty cursor, then pass the
+  // cursor of the previous page while hasMore is set. maxEntries <= 0 uses
+  // the server default, the server may return fewer entries
+  FileStatusPage listStatusPaged(1:Pathname path, 2:string cursor, 3:i32 maxEntries,
+                                 4:StatusProjection projection) throws (1:ThriftIOException ouch),
+
+  // starts an upload of the file at path in parts, returns the upload's id.
+  // Parts may be uploaded concurrently over any connections of the server,
+  // completeUpload assembles them into the file (replacing an existing one)
+  // in one step. Uploads without calls expire (default: after an hour)
+  string initUpload(1:Pathname path) throws (1:ThriftIOException ouch),
+
+  // stores part partNumber (>= 1) of an upload, replacing an earlier upload
+  // of the same part. Part numbers need not be contiguous, a part holds at
+  // most MAX_DATA_PER_CALL bytes
+  void uploadPart(1:string uploadId, 2:i32 partNumber, 3:binary data) throws (1:ThriftIOException ouch),
+
+  // assembles the parts in ascending order of their numbers into the file
+  // and ends the upload, returns the file's status
+  FileStatus completeUpload(1:string uploadId) throws (1:ThriftIOException ouch),
+
+  // ends an upload and deletes its parts
+  bool abortUpload(1:string uploadId) throws (1:ThriftIOException ouch),
+
+  // returns the matching lines of a text file (compressed ones decompressed)
+  // page by page: start with an empty cursor, then pass the cursor of the
+  // previous page while hasMore is set. A page holds up to maxBytes of lines
+  // (<= 0 for the server default, at most MAX_DATA_PER_CALL) plus the last
+  // line, the request is only read with the first call
+  ScanPage scan(1:ScanRequest request, 2:string cursor, 3:i32 maxBytes) throws (1:ThriftIOException ouch),
+
+  // release the cursor of a scan that is not read to its end
+  bool closeScan(1:string cursor) throws (1:ThriftIOException ouch),
+
+  // release the cursor of a listing that is not read to its end
+  bool closeListing(1:string cursor) throws (1:ThriftIOException ouch),
+
+  // all files and directories below path, paged as listStatusPaged (closeListing
+  // releases the cursor). Directories are listed concurrently on the server; the
+  // entries of a directory come after it, but not in a sorted order
+  FileStatusPage listRecursive(1:Pathname path, 2:string cursor, 3:i32 maxEntries,
+                               4:StatusProjection projection) throws (1:ThriftIOException ouch),
+
+  // the paths matching a glob pattern (as hadoop's globStatus, but a {a,b}
+  // alternative must stay within a path component), sorted and paged as
+  // listStatusPaged. No match returns an empty page
+  FileStatusPage globStatus(1:Pathname pattern, 2:string cursor, 3:i32 maxEntries,
+                            4:StatusProjection projection) throws (1:ThriftIOException ouch),
+
+  // sizes and counts of the files below path, in one call
+  ContentSummary contentSummary(1:Pathname path) throws (1:ThriftIOException ouch),
+
   // Set permission for this file
   void chmod(1:Pathname path, 2:i16 mode) throws (1:ThriftIOException ouch),
 
@@ -125,4 +320,11 @@ service ThriftHadoopFileSystem
 
   // get the locations of the blocks of this file
   list<BlockLocation> getFileBlockLocations(1:Pathname path, 2:i64 start, 3:i64 length) throws (1:ThriftIOException ouch),
+
+  // counters of a server side cache, by name: "metadata" (unit: paths)
+  // or "read" (unit: chunks, size and capacity in bytes)
+  CacheStats getCacheStats(1:string cache) throws (1:ThriftIOException ouch),
+
+  // latencies, traffic, open handles and errors of the server
+  ServerStats getServerStats() throws (1:ThriftIOException ouch),
 }
@@ -0,0 +1,113 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Concurrent misses on one chunk load it once; the chunks are loaded through
+ * pooled buffers.
+ *
+ * @author Axel Mannhardt
+ */
+public class BlockReadCacheTest {
+
+    private static final int CHUNK = 64 * 1024;
+    private static final int READERS = 8;
+
+    private final ExecutorService _threads = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        _threads.shutdownNow();
+    }
+
+    @Test( timeout = 30000 )
+    public void concurrentMissesLoadTheChunkOnce() throws Exception {
+        final BufferPool buffers = new BufferPool( 1 << 22 );
+        final BlockReadCache cache = new BlockReadCache( 16 * CHUNK, CHUNK, 0, 1, buffers );
+        final byte[] data = new byte[4 * CHUNK];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[i] = (byte) ( i * 31 );
+        }
+        final SlowFile in = new SlowFile( data );
+        final BlockReadCache.CachedFile file = new BlockReadCache.CachedFile( in, "/file", 1, data.length );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final List<Future<byte[]>> reads = new ArrayList<Future<byte[]>>();
+        for ( int i = 0; i < READERS; i++ ) {
+            final int offset = 1000 * i;
+            reads.add( _threads.submit( new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    start.await();
+                    final byte[] buffer = new byte[5000];
+                    assertEquals( buffer.length, cache.read( file, offset, buffer, 0, buffer.length ) );
+                    return buffer;
+                }
+            } ) );
+        }
+        start.countDown();
+        for ( int i = 0; i < READERS; i++ ) {
+            assertArrayEquals( Arrays.copyOfRange( data, 1000 * i, 1000 * i + 5000 ), reads.get( i ).get() );
+        }
+        assertEquals( 1, in._reads.get() );
+
+        // a chunk crossing read loads the next chunk, with a buffer released by the first load
+        final byte[] crossing = new byte[2000];
+        assertEquals( crossing.length, cache.read( file, CHUNK - 1000, crossing, 0, crossing.length ) );
+        assertArrayEquals( Arrays.copyOfRange( data, CHUNK - 1000, CHUNK + 1000 ), crossing );
+        assertEquals( 2, in._reads.get() );
+        assertTrue( buffers.stats().getHits() > 0 );
+    }
+
+    /**
+     * A file whose reads take a while, so concurrent misses overlap.
+     */
+    private static final class SlowFile implements PositionedReadable {
+        final AtomicInteger _reads = new AtomicInteger();
+        private final byte[] _data;
+
+        SlowFile( final byte[] data ) {
+            _data = data;
+        }
+
+        @Override
+        public int read( final long position, final byte[] buffer, final int offset, final int length ) throws IOException {
+            _reads.incrementAndGet();
+            try {
+                Thread.sleep( 200 );
+            } catch ( final InterruptedException e ) {
+                throw new IOException( e );
+            }
+            final int read = (int) Math.min( length, _data.length - position );
+            System.arraycopy( _data, (int) position, buffer, offset, read );
+            return read;
+        }
+
+        @Override
+        public void readFully( final long position, final byte[] buffer, final int offset, final int length ) throws IOException {
+            read( position, buffer, offset, length );
+        }
+
+        @Override
+        public void readFully( final long position, final byte[] buffer ) throws IOException {
+            read( position, buffer, 0, buffer.length );
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.thriftfs.server.CallScheduler.Lane;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The {@link CallScheduler} on a shared worker pool, as in the hsha and
+ * selector modes: a saturated data lane must leave workers for metadata
+ * calls.
+ *
+ * @author Axel Mannhardt
+ */
+public class CallSchedulerTest {
+
+    private static final int WORKERS = 8;
+
+    private final ExecutorService _workers = Executors.newFixedThreadPool( WORKERS );
+
+    @After
+    public void tearDown() {
+        _workers.shutdownNow();
+    }
+
+    @Test
+    public void metadataCallsPassSaturatedDataLane() throws Exception {
+        final CallScheduler scheduler =
+                new CallScheduler( new ServiceOptions().dataConcurrency( 2 ).laneQueueLength( 100 ), WORKERS );
+        final CountDownLatch dataRunning = new CountDownLatch( 1 );
+        final CountDownLatch unblockData = new CountDownLatch( 1 );
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger dataDone = new AtomicInteger();
+        final int dataCalls = 200;
+        for ( int i = 0; i < dataCalls; i++ ) {
+            _workers.execute( new Runnable() {
+                @Override
+                public void run() {
+                    if ( !scheduler.acquire( Lane.DATA, CallSchedulerTest.class ) ) {
+                        rejected.incrementAndGet();
+                        return;
+                    }
+                    try {
+                        dataRunning.countDown();
+                        unblockData.await();
+                    } catch ( final InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        scheduler.release( Lane.DATA );
+                        dataDone.incrementAndGet();
+                    }
+                }
+            } );
+        }
+        assertTrue( dataRunning.await( 10, TimeUnit.SECONDS ) );
+
+        final int metadataCalls = 50;
+        final CountDownLatch metadataDone = new CountDownLatch( metadataCalls );
+        for ( int i = 0; i < metadataCalls; i++ ) {
+            _workers.execute( new Runnable() {
+                @Override
+                public void run() {
+                    if ( scheduler.acquire( Lane.METADATA, CallSchedulerTest.class ) ) {
+                        scheduler.release( Lane.METADATA );
+                        metadataDone.countDown();
+                    }
+                }
+            } );
+        }
+        assertTrue( "metadata calls starved by the data lane", metadataDone.await( 10, TimeUnit.SECONDS ) );
+        assertTrue( "data lane not saturated", rejected.get() > 0 && dataDone.get() == 0 );
+
+        unblockData.countDown();
+        _workers.shutdown();
+        assertTrue( _workers.awaitTermination( 10, TimeUnit.SECONDS ) );
+        assertEquals( dataCalls, dataDone.get() + rejected.get() );
+    }
+
+    @Test
+    public void ownThreadPerConnectionKeepsQueue() throws Exception {
+        final CallScheduler scheduler = new CallScheduler( new ServiceOptions().dataConcurrency( 1 ).laneQueueLength( 100 ), 0 );
+        assertTrue( scheduler.acquire( Lane.DATA, CallSchedulerTest.class ) );
+        final CountDownLatch waited = new CountDownLatch( 1 );
+        _workers.execute( new Runnable() {
+            @Override
+            public void run() {
+                if ( scheduler.acquire( Lane.DATA, CallSchedulerTest.class ) ) {
+                    scheduler.release( Lane.DATA );
+                    waited.countDown();
+                }
+            }
+        } );
+        Thread.sleep( 50 );
+        assertEquals( 1, waited.getCount() );
+        scheduler.release( Lane.DATA );
+        assertTrue( waited.await( 10, TimeUnit.SECONDS ) );
+    }
+
+}
@@ -0,0 +1,114 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.fs.thriftfs.server.HdfsService.HdfsConfig;
+import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checkpoints within gzip members: a file written in one piece gets one every
+ * interval, and reads restarted there return the right data.
+ *
+ * @author Axel Mannhardt
+ */
+public class CheckpointIndexTest {
+
+    private static final int INTERVAL = 256 * 1024;
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    @Test
+    public void singleMemberGetsCheckpointsWithin() throws IOException {
+        final byte[] data = data( 16 * INTERVAL );
+        final CheckpointIndex index = CheckpointIndex.buildGzip( new ByteArrayInputStream( gzip( data ) ), INTERVAL );
+        assertTrue( "checkpoints " + index.size(), index.size() >= 12 );
+        assertEquals( 0, index.uncompressedOffset( 0 ) );
+        assertFalse( index.hasWindow( 0 ) );
+        for ( int i = 1; i < index.size(); i++ ) {
+            assertTrue( index.hasWindow( i ) );
+            assertTrue( index.uncompressedOffset( i ) - index.uncompressedOffset( i - 1 ) >= INTERVAL );
+            final byte[] window = index.window( i );
+            final int end = (int) index.uncompressedOffset( i );
+            assertArrayEquals( Arrays.copyOfRange( data, end - window.length, end ), window );
+        }
+    }
+
+    @Test
+    public void readsResumeAtCheckpointsWithinMembers() throws Exception {
+        // two members, so resumed reads continue into the next one; the binary part makes stored blocks
+        final byte[] data = data( 12 * INTERVAL );
+        final byte[] binary = new byte[2 * INTERVAL];
+        new Random( 5 ).nextBytes( binary );
+        System.arraycopy( binary, 0, data, 3 * INTERVAL, binary.length );
+        final File file = _folder.newFile( "single.gz" );
+        final OutputStream out = new FileOutputStream( file );
+        try {
+            out.write( gzip( Arrays.copyOfRange( data, 0, 7 * INTERVAL + 123 ) ) );
+            out.write( gzip( Arrays.copyOfRange( data, 7 * INTERVAL + 123, data.length ) ) );
+        } finally {
+            out.close();
+        }
+        final InputStream in = new FileInputStream( file );
+        try {
+            assertTrue( CheckpointIndex.buildGzip( in, INTERVAL ).size() >= 8 );
+        } finally {
+            in.close();
+        }
+
+        final HdfsService service = new HdfsService( HdfsConfig.forUri( "file:///" ),
+                new ServiceOptions().checkpointIntervalBytes( INTERVAL ) );
+        final ThriftHandle handle = service.open( new Pathname( file.getPath() ) );
+        final Random random = new Random( 3 );
+        for ( int i = 0; i < 60; i++ ) {
+            final int offset = random.nextInt( data.length );
+            final int length = 1 + random.nextInt( 20000 );
+            final ByteBuffer read = service.pread( handle, offset, length );
+            final byte[] got = new byte[read.remaining()];
+            read.get( got );
+            assertArrayEquals( "at " + offset, Arrays.copyOfRange( data, offset, Math.min( data.length, offset + length ) ), got );
+        }
+        service.closeReadHandle( handle );
+    }
+
+    private static byte[] gzip( final byte[] data ) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final GZIPOutputStream out = new GZIPOutputStream( bytes );
+        out.write( data );
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] data( final int length ) {
+        final String[] words = { "alpha ", "beta ", "gamma\n", "delta ", "epsilon ", "zeta\n" };
+        final Random random = new Random( 7 );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream( length + 16 );
+        while ( out.size() < length ) {
+            final byte[] word = ( words[random.nextInt( words.length )] + random.nextInt( 1000 ) ).getBytes( StandardCharsets.US_ASCII );
+            out.write( word, 0, word.length );
+        }
+        return Arrays.copyOf( out.toByteArray(), length );
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.thriftfs.server.HdfsService.HdfsConfig;
+import org.apache.hadoop.thriftfs.api.ErrorCode;
+import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.ScanPage;
+import org.apache.hadoop.thriftfs.api.ScanRequest;
+import org.apache.hadoop.thriftfs.api.ThriftIOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Scans with client regexes: a regular one filters lines, one backtracking
+ * catastrophically fails the scan instead of occupying a worker.
+ *
+ * @author Axel Mannhardt
+ */
+public class LineScannerTest {
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    @Test( timeout = 30000 )
+    public void backtrackingRegexFailsTheScan() throws Exception {
+        final HdfsService service = new HdfsService( HdfsConfig.forUri( "file:///" ) );
+        final ScanRequest request = new ScanRequest( new Pathname( file().getPath() ) ).setRegex( "(.*a){12}!x" );
+        try {
+            service.scan( request, "", 0 );
+            fail( "scanned with a backtracking regex" );
+        } catch ( final ThriftIOException e ) {
+            assertEquals( ErrorCode.LIMIT_EXCEEDED, e.getCode() );
+        }
+    }
+
+    @Test
+    public void regexFiltersLines() throws Exception {
+        final HdfsService service = new HdfsService( HdfsConfig.forUri( "file:///" ) );
+        final ScanPage page = service.scan( new ScanRequest( new Pathname( file().getPath() ) ).setRegex( "^b.*\\d$" ), "", 0 );
+        assertEquals( 1, page.getRecords().size() );
+        assertEquals( "beta 2", new String( page.getRecords().get( 0 ).getLine(), StandardCharsets.UTF_8 ) );
+        assertEquals( 1, page.getRecords().get( 0 ).getLineNumber() );
+    }
+
+    private File file() throws Exception {
+        final StringBuilder lines = new StringBuilder( "alpha 1\nbeta 2\n" );
+        for ( int i = 0; i < 40; i++ ) {
+            lines.append( 'a' );
+        }
+        lines.append( "!\ngamma 3\n" );
+        final File file = _folder.newFile( "lines.txt" );
+        FileUtils.writeStringToFile( file, lines.toString(), StandardCharsets.UTF_8 );
+        return file;
+    }
+
+}
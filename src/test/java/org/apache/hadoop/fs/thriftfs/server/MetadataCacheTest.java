@@ -0,0 +1,111 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.thriftfs.api.FileStatus;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Loads interleaving with invalidations: a status loaded before its path
+ * changed is returned to its caller but not cached.
+ *
+ * @author Axel Mannhardt
+ */
+public class MetadataCacheTest {
+
+    private final ExecutorService _threads = Executors.newCachedThreadPool();
+    private final MetadataCache _cache = new MetadataCache( 100, 60000 );
+
+    @After
+    public void tearDown() {
+        _threads.shutdownNow();
+    }
+
+    @Test( timeout = 30000 )
+    public void loadRacingInvalidateIsNotCached() throws Exception {
+        final FileStatus before = new FileStatus();
+        final Future<FileStatus> load = loadBlocked( "/dir/file", before, new Runnable() {
+            @Override
+            public void run() {
+                _cache.invalidate( "/dir/file", "/dir" );
+            }
+        } );
+        assertSame( before, load.get() );
+        final FileStatus after = new FileStatus();
+        assertSame( after, _cache.status( "/dir/file", loader( after ) ) );
+        assertSame( after, _cache.status( "/dir/file", loader( new FileStatus() ) ) );
+    }
+
+    @Test( timeout = 30000 )
+    public void loadRacingTreeInvalidateIsNotCached() throws Exception {
+        final FileStatus before = new FileStatus();
+        final Future<FileStatus> load = loadBlocked( "/dir/sub/file", before, new Runnable() {
+            @Override
+            public void run() {
+                _cache.invalidateTree( "/dir", "/" );
+            }
+        } );
+        assertSame( before, load.get() );
+        final FileStatus after = new FileStatus();
+        assertSame( after, _cache.status( "/dir/sub/file", loader( after ) ) );
+    }
+
+    @Test
+    public void loadWithoutInvalidateIsCached() throws IOException {
+        final FileStatus status = new FileStatus();
+        assertSame( status, _cache.status( "/file", loader( status ) ) );
+        _cache.invalidate( "/other", "/" );
+        assertSame( status, _cache.status( "/file", loader( new FileStatus() ) ) );
+    }
+
+    /**
+     * Loads the status of the path on another thread, running the
+     * invalidation while the load is in progress.
+     */
+    private Future<FileStatus> loadBlocked( final String path, final FileStatus status, final Runnable invalidation )
+        throws InterruptedException {
+        final CountDownLatch loading = new CountDownLatch( 1 );
+        final CountDownLatch invalidated = new CountDownLatch( 1 );
+        final Future<FileStatus> load = _threads.submit( new Callable<FileStatus>() {
+            @Override
+            public FileStatus call() throws IOException {
+                return _cache.status( path, new MetadataCache.Loader<FileStatus>() {
+                    @Override
+                    public FileStatus load() throws IOException {
+                        loading.countDown();
+                        try {
+                            invalidated.await();
+                        } catch ( final InterruptedException e ) {
+                            throw new IOException( e );
+                        }
+                        return status;
+                    }
+                } );
+            }
+        } );
+        assertTrue( loading.await( 10, TimeUnit.SECONDS ) );
+        invalidation.run();
+        invalidated.countDown();
+        return load;
+    }
+
+    private static MetadataCache.Loader<FileStatus> loader( final FileStatus status ) {
+        return new MetadataCache.Loader<FileStatus>() {
+            @Override
+            public FileStatus load() {
+                return status;
+            }
+        };
+    }
+
+}
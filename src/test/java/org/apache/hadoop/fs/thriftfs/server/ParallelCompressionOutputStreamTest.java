@@ -0,0 +1,81 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.thriftfs.server.HdfsService.HdfsConfig;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.bzip2.Bzip2Factory;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Files compressed block by block read back as written, with the codec's
+ * reader (which checks the bzip2 crcs).
+ *
+ * @author Axel Mannhardt
+ */
+public class ParallelCompressionOutputStreamTest {
+
+    private final ForkJoinPool _pool = new ForkJoinPool( 4 );
+    private final HdfsContext _context = new HdfsContext( HdfsConfig.forUri( "file:///" ) );
+
+    @After
+    public void tearDown() {
+        _pool.shutdownNow();
+    }
+
+    @Test
+    public void bzip2WithSmallBlockSize() throws IOException {
+        final Configuration conf = new Configuration();
+        Bzip2Factory.setBlockSize( conf, 1 );
+        roundTrip( ReflectionUtils.newInstance( BZip2Codec.class, conf ), 1 << 20 );
+    }
+
+    @Test
+    public void bzip2() throws IOException {
+        roundTrip( ReflectionUtils.newInstance( BZip2Codec.class, new Configuration() ), 1 << 20 );
+    }
+
+    @Test
+    public void gzip() throws IOException {
+        roundTrip( ReflectionUtils.newInstance( GzipCodec.class, new Configuration() ), 256 * 1024 );
+    }
+
+    private void roundTrip( final CompressionCodec codec, final int blockSize ) throws IOException {
+        final byte[] data = new byte[3 * 1024 * 1024 + 17];
+        final Random random = new Random( 11 );
+        for ( int i = 0; i < data.length; i++ ) {
+            // compressible, with runs the bzip2 run length encoding expands
+            data[i] = (byte) ( i % 1000 < 400 ? 'a' : 'a' + random.nextInt( 4 ) );
+        }
+        final BufferPool buffers = new BufferPool( 64 * 1024 * 1024 );
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final ParallelCompressionOutputStream out =
+                new ParallelCompressionOutputStream( compressed, codec, _context, _pool, buffers, blockSize, 4 );
+        for ( int offset = 0; offset < data.length; offset += 10000 ) {
+            out.write( data, offset, Math.min( 10000, data.length - offset ) );
+        }
+        out.close();
+        final InputStream in = codec.createInputStream( new ByteArrayInputStream( compressed.toByteArray() ) );
+        try {
+            assertArrayEquals( data, IOUtils.toByteArray( in ) );
+        } finally {
+            in.close();
+        }
+        assertTrue( "blocks reused", buffers.stats().hits > 0 );
+    }
+
+}
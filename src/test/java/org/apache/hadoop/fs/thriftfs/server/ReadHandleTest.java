@@ -0,0 +1,156 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Preads racing {@link ReadHandle#close()}, as closeReadHandle or the idle
+ * reaper release a handle: the stream is closed only after the reads in
+ * flight, later reads fail.
+ *
+ * @author Axel Mannhardt
+ */
+public class ReadHandleTest {
+
+    private final ExecutorService _threads = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        _threads.shutdownNow();
+    }
+
+    @Test( timeout = 30000 )
+    public void closeWaitsForPreadInFlight() throws Exception {
+        final SlowStream stream = new SlowStream();
+        final ReadHandle handle = new ReadHandle( new FSDataInputStream( stream ) );
+        final Future<Integer> read = _threads.submit( new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return Integer.valueOf( handle.read( 10, new byte[100], 100 ) );
+            }
+        } );
+        assertTrue( stream._reading.await( 10, TimeUnit.SECONDS ) );
+        final Future<?> close = _threads.submit( new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                handle.close();
+                return null;
+            }
+        } );
+        Thread.sleep( 200 );
+        assertFalse( "closed while a read was in flight", close.isDone() );
+        assertFalse( stream._closed );
+
+        stream._proceed.countDown();
+        assertEquals( 100, read.get().intValue() );
+        close.get();
+        assertTrue( stream._closed );
+        try {
+            handle.read( 0, new byte[10], 10 );
+            fail( "read a closed handle" );
+        } catch ( final IOException e ) {
+            assertEquals( "read handle is closed", e.getMessage() );
+        }
+        handle.close();
+    }
+
+    @Test( timeout = 30000 )
+    public void concurrentPreadsDoNotWaitForEachOther() throws Exception {
+        final SlowStream stream = new SlowStream();
+        final ReadHandle handle = new ReadHandle( new FSDataInputStream( stream ) );
+        final Future<Integer> blocked = _threads.submit( new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return Integer.valueOf( handle.read( 0, new byte[10], 10 ) );
+            }
+        } );
+        assertTrue( stream._reading.await( 10, TimeUnit.SECONDS ) );
+        // a second read passes the one blocked in the stream
+        stream._slow = false;
+        assertEquals( 10, handle.read( 50, new byte[10], 10 ) );
+        assertFalse( blocked.isDone() );
+        stream._proceed.countDown();
+        assertEquals( 10, blocked.get().intValue() );
+        handle.close();
+    }
+
+    /**
+     * An endless stream of zeros whose first slow pread blocks until
+     * released; reading it closed fails the test.
+     */
+    private static final class SlowStream extends InputStream implements Seekable, PositionedReadable {
+        final CountDownLatch _reading = new CountDownLatch( 1 );
+        final CountDownLatch _proceed = new CountDownLatch( 1 );
+        volatile boolean _slow = true;
+        volatile boolean _closed;
+
+        @Override
+        public int read( final long position, final byte[] buffer, final int offset, final int length ) throws IOException {
+            if ( _slow ) {
+                _reading.countDown();
+                try {
+                    _proceed.await();
+                } catch ( final InterruptedException e ) {
+                    throw new IOException( e );
+                }
+            }
+            if ( _closed ) {
+                throw new IllegalStateException( "read after close" );
+            }
+            return length;
+        }
+
+        @Override
+        public void readFully( final long position, final byte[] buffer, final int offset, final int length ) throws IOException {
+            read( position, buffer, offset, length );
+        }
+
+        @Override
+        public void readFully( final long position, final byte[] buffer ) throws IOException {
+            read( position, buffer, 0, buffer.length );
+        }
+
+        @Override
+        public int read() {
+            return 0;
+        }
+
+        @Override
+        public void seek( final long pos ) {
+            // positioned reads only
+        }
+
+        @Override
+        public long getPos() {
+            return 0;
+        }
+
+        @Override
+        public boolean seekToNewSource( final long targetPos ) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            _closed = true;
+        }
+    }
+
+}
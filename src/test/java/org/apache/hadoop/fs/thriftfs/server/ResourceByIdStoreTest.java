@@ -0,0 +1,190 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Multi threaded stress test of {@link ResourceByIdStore}: worker threads
+ * store, look up and remove resources at random while a reaper releases idle
+ * ones concurrently, so slots are reused all the time. It fails if an id
+ * resolves to a resource other than the one stored under it, a removed id
+ * resolves at all, or a resource is closed other than exactly once by the end.
+ *
+ * @author Axel Mannhardt
+ */
+public class ResourceByIdStoreTest {
+
+    /** Removed ids a worker keeps to look up again. */
+    private static final int STALE_IDS = 1024;
+
+    @Test( timeout = 60000 )
+    public void concurrentStoreLookupRemoveAndReap() throws InterruptedException {
+        final StressTest test = new StressTest( 64, TimeUnit.MILLISECONDS.toNanos( 50 ) );
+        test.run( 2 * Runtime.getRuntime().availableProcessors(), 3000 );
+        assertNull( test.verify() );
+        assertTrue( test._operations.get() > 0 && test._staleLookups.get() > 0 );
+    }
+
+    /**
+     * A resource counting how often it was closed.
+     */
+    private static final class Probe implements Closeable {
+        private final AtomicInteger _closed = new AtomicInteger();
+
+        @Override
+        public void close() {
+            _closed.incrementAndGet();
+        }
+    }
+
+    private static final class StressTest {
+        private final ResourceByIdStore<Probe> _store = new ResourceByIdStore<Probe>();
+        private final Queue<Probe> _stored = new ConcurrentLinkedQueue<Probe>();
+        private final AtomicReference<String> _failure = new AtomicReference<String>();
+        private final AtomicLong _operations = new AtomicLong();
+        private final AtomicLong _staleLookups = new AtomicLong();
+        private final int _handles;
+        private final long _idleNanos;
+        private volatile boolean _stopped;
+
+        StressTest( final int handles, final long idleNanos ) {
+            _handles = handles;
+            _idleNanos = idleNanos;
+        }
+
+        void run( final int threads, final long runMillis ) throws InterruptedException {
+            final CountDownLatch done = new CountDownLatch( threads + 1 );
+            for ( int i = 0; i < threads; i++ ) {
+                final long seed = i;
+                start( "stress-" + i, done, new Runnable() {
+                    @Override
+                    public void run() {
+                        work( new Random( seed ) );
+                    }
+                } );
+            }
+            start( "stress-reaper", done, new Runnable() {
+                @Override
+                public void run() {
+                    reap();
+                }
+            } );
+            Thread.sleep( runMillis );
+            _stopped = true;
+            done.await();
+        }
+
+        private void start( final String name, final CountDownLatch done, final Runnable task ) {
+            final Thread thread = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch ( final RuntimeException e ) {
+                        fail( name + " failed: " + e );
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, name );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        private void work( final Random random ) {
+            final List<Long> ids = new ArrayList<Long>();
+            final List<Probe> probes = new ArrayList<Probe>();
+            final long[] stale = new long[STALE_IDS];
+            int staleCount = 0;
+            while ( !_stopped && _failure.get() == null ) {
+                final int operation = random.nextInt( 10 );
+                if ( operation < 4 || ids.isEmpty() ) {
+                    if ( ids.size() < _handles ) {
+                        final Probe probe = new Probe();
+                        _stored.add( probe );
+                        ids.add( Long.valueOf( _store.storeNew( probe ) ) );
+                        probes.add( probe );
+                    }
+                } else if ( operation < 9 ) {
+                    final int index = random.nextInt( ids.size() );
+                    final long id = ids.get( index ).longValue();
+                    final Probe probe = probes.get( index );
+                    final Probe found = operation < 7 ? _store.getResource( id ) : _store.remove( id );
+                    if ( found != null && found != probe ) {
+                        fail( "id " + id + " resolved to another resource" );
+                    }
+                    if ( found == null || operation >= 7 ) {
+                        // removed here, or released by the reaper
+                        if ( found != null ) {
+                            probe.close();
+                        }
+                        ids.remove( index );
+                        probes.remove( index );
+                        stale[staleCount++ % STALE_IDS] = id;
+                    }
+                } else if ( staleCount > 0 ) {
+                    final long id = stale[random.nextInt( Math.min( staleCount, STALE_IDS ) )];
+                    if ( _store.getResource( id ) != null || _store.remove( id ) != null ) {
+                        fail( "removed id " + id + " resolved" );
+                    }
+                    _staleLookups.incrementAndGet();
+                }
+                _operations.incrementAndGet();
+            }
+        }
+
+        private void reap() {
+            while ( !_stopped && _failure.get() == null ) {
+                _store.releaseIdle( _idleNanos );
+                try {
+                    Thread.sleep( 1 );
+                } catch ( final InterruptedException e ) {
+                    return;
+                }
+            }
+        }
+
+        private void fail( final String failure ) {
+            _failure.compareAndSet( null, failure );
+        }
+
+        /**
+         * Releases the resources left and checks every resource was closed
+         * once, returns the first failure or <code>null</code>.
+         */
+        String verify() {
+            for ( final Long id : _store.ids() ) {
+                _store.release( id.longValue() );
+            }
+            if ( _failure.get() != null ) {
+                return _failure.get();
+            }
+            if ( _store.size() != 0 ) {
+                return _store.size() + " resources left after releasing all";
+            }
+            int index = 0;
+            for ( final Probe probe : _stored ) {
+                if ( probe._closed.get() != 1 ) {
+                    return "resource " + index + " of " + _stored.size() + " closed " + probe._closed.get() + " times";
+                }
+                index++;
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.fs.thriftfs.server.HdfsService.HdfsConfig;
+import org.apache.hadoop.thriftfs.api.Pathname;
+import org.apache.hadoop.thriftfs.api.ThriftHandle;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pooled streams of stateless read handles evicted while being read are
+ * closed once, after their last read; closing a stateless handle checks its
+ * token.
+ *
+ * @author Axel Mannhardt
+ */
+public class StatelessReadHandlesTest {
+
+    private static final byte[] SECRET = "0123456789abcdef".getBytes( StandardCharsets.US_ASCII );
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    @Test( timeout = 60000 )
+    public void evictedStreamsAreClosedOnceAfterTheirReads() throws Exception {
+        final Queue<CountingStream> opened = new ConcurrentLinkedQueue<CountingStream>();
+        // one pooled stream for two files: leases evict each other all the time
+        final StatelessReadHandles handles = new StatelessReadHandles( SECRET, 0, 1, 60000, new StatelessReadHandles.Opener() {
+            @Override
+            public ReadHandle open( final Path path, final long modificationTime, final long length ) {
+                final CountingStream stream = new CountingStream();
+                opened.add( stream );
+                return new ReadHandle( new FSDataInputStream( stream ) );
+            }
+        } );
+        final ThriftHandle[] files = { handles.issue( status( "/a" ) ), handles.issue( status( "/b" ) ) };
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch( threads );
+        for ( int i = 0; i < threads; i++ ) {
+            final ThriftHandle file = files[i % 2];
+            final Thread thread = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for ( int j = 0; j < 20000 && failure.get() == null; j++ ) {
+                            final StatelessReadHandles.Lease lease = handles.lease( file );
+                            try {
+                                lease.readHandle().read( 0, new byte[1], 1 );
+                            } finally {
+                                lease.release();
+                            }
+                        }
+                    } catch ( final Exception e ) {
+                        failure.compareAndSet( null, e.toString() );
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            } );
+            thread.setDaemon( true );
+            thread.start();
+        }
+        done.await();
+        assertNull( failure.get() );
+        assertTrue( opened.size() > 1 );
+        for ( final CountingStream stream : opened ) {
+            assertTrue( "closed " + stream._closes.get() + " times", stream._closes.get() <= 1 );
+        }
+    }
+
+    @Test
+    public void closingAForgedHandleFails() throws Exception {
+        final File file = _folder.newFile( "read.txt" );
+        FileUtils.writeStringToFile( file, "content", StandardCharsets.UTF_8 );
+        final HdfsService service = new HdfsService( HdfsConfig.forUri( "file:///" ), new ServiceOptions().statelessReadSecret( SECRET ) );
+        final ThriftHandle handle = service.open( new Pathname( file.getPath() ) );
+        assertTrue( StatelessReadHandles.isStateless( handle ) );
+
+        final ThriftHandle forged = new ThriftHandle( 0 );
+        final String token = handle.getToken();
+        forged.setToken( token.substring( 0, token.length() - 2 ) + ( token.endsWith( "AA" ) ? "BB" : "AA" ) );
+        assertFalse( service.closeReadHandle( forged ) );
+        final ThriftHandle malformed = new ThriftHandle( 0 );
+        malformed.setToken( "1.x" );
+        assertFalse( service.closeReadHandle( malformed ) );
+        assertTrue( service.closeReadHandle( handle ) );
+        assertFalse( new HdfsService( HdfsConfig.forUri( "file:///" ) ).closeReadHandle( handle ) );
+    }
+
+    private static FileStatus status( final String path ) {
+        return new FileStatus( 10, false, 1, 1, 1, new Path( path ) );
+    }
+
+    /**
+     * An endless stream of zeros counting its closes; reading it closed
+     * fails.
+     */
+    private static final class CountingStream extends InputStream implements Seekable, PositionedReadable {
+        final AtomicInteger _closes = new AtomicInteger();
+
+        @Override
+        public int read( final long position, final byte[] buffer, final int offset, final int length ) throws IOException {
+            if ( _closes.get() > 0 ) {
+                throw new IOException( "read after close" );
+            }
+            return length;
+        }
+
+        @Override
+        public void readFully( final long position, final byte[] buffer, final int offset, final int length ) throws IOException {
+            read( position, buffer, offset, length );
+        }
+
+        @Override
+        public void readFully( final long position, final byte[] buffer ) throws IOException {
+            read( position, buffer, 0, buffer.length );
+        }
+
+        @Override
+        public int read() {
+            return 0;
+        }
+
+        @Override
+        public void seek( final long pos ) {
+            // positioned reads only
+        }
+
+        @Override
+        public long getPos() {
+            return 0;
+        }
+
+        @Override
+        public boolean seekToNewSource( final long targetPos ) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            _closes.incrementAndGet();
+        }
+    }
+
+}
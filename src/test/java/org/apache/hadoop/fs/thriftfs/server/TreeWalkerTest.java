@@ -0,0 +1,90 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.thriftfs.api.ContentSummary;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Walks of a tree wider and deeper than the walker's parallelism: the
+ * listings blocked for a permit do not stall the pool.
+ *
+ * @author Axel Mannhardt
+ */
+public class TreeWalkerTest {
+
+    private static final int DIRECTORIES = 20;
+    private static final int FILES_PER_DIRECTORY = 30;
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    private final TreeWalker _walker = new TreeWalker( 2 );
+    private FileSystem _fs;
+    private Path _root;
+
+    @Before
+    public void setUp() throws IOException {
+        _fs = FileSystem.getLocal( new Configuration() );
+        File directory = _folder.newFolder( "tree" );
+        _root = new Path( directory.getPath() );
+        // a chain of directories, each with files and a wide sibling
+        for ( int i = 0; i < DIRECTORIES; i++ ) {
+            final File wide = new File( directory, "wide" );
+            wide.mkdirs();
+            for ( int j = 0; j < FILES_PER_DIRECTORY; j++ ) {
+                FileUtils.writeStringToFile( new File( wide, "file-" + j ), "12345", "UTF-8" );
+            }
+            directory = new File( directory, "deep" );
+            directory.mkdirs();
+        }
+    }
+
+    @Test( timeout = 60000 )
+    public void summarizesEveryFile() throws IOException {
+        final ContentSummary summary = _walker.summarize( _fs, _root );
+        assertEquals( DIRECTORIES * FILES_PER_DIRECTORY, summary.getFileCount() );
+        assertEquals( 5L * DIRECTORIES * FILES_PER_DIRECTORY, summary.getLength() );
+        // the root, the deep chain and the wide directories
+        assertEquals( 1 + 2 * DIRECTORIES, summary.getDirectoryCount() );
+    }
+
+    @Test( timeout = 60000 )
+    public void listsEveryEntry() throws IOException {
+        final RemoteIterator<FileStatus> entries = _walker.listRecursive( _fs, _root );
+        int count = 0;
+        while ( entries.hasNext() ) {
+            entries.next();
+            count++;
+        }
+        assertEquals( DIRECTORIES * FILES_PER_DIRECTORY + 2 * DIRECTORIES, count );
+    }
+
+    @Test( timeout = 60000 )
+    public void globsWhileListing() throws IOException {
+        final List<FileStatus> matches = _walker.glob( _fs, new Path( _root, "deep/deep/wide/file-1*" ) );
+        final List<String> names = new ArrayList<String>();
+        for ( final FileStatus match : matches ) {
+            names.add( match.getPath().getName() );
+        }
+        assertEquals( 11, names.size() );
+        assertEquals( "file-1", names.get( 0 ) );
+        assertEquals( 0, _walker.glob( _fs, new Path( _root, "missing/*" ) ).size() );
+        assertEquals( 10, _walker.glob( _fs, new Path( _root, "wide/file-2?" ) ).size() );
+    }
+
+}
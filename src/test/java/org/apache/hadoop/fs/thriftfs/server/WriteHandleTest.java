@@ -0,0 +1,135 @@
+package org.apache.hadoop.fs.thriftfs.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Writes racing {@link WriteHandle#close()}: every write either reaches the
+ * stream before it is closed or fails, none blocks or is dropped silently.
+ *
+ * @author Axel Mannhardt
+ */
+public class WriteHandleTest {
+
+    private static final int WRITERS = 8;
+    private static final int CHUNK = 1000;
+
+    private final ExecutorService _asyncWriters = Executors.newFixedThreadPool( 2 );
+
+    @After
+    public void tearDown() {
+        _asyncWriters.shutdownNow();
+    }
+
+    @Test
+    public void asyncWritesRacingCloseFailOrAreWritten() throws Exception {
+        for ( int round = 0; round < 20; round++ ) {
+            // a queue of three chunks keeps writers waiting for the queue while close runs
+            raceClose( _asyncWriters, 3 * CHUNK );
+        }
+    }
+
+    @Test
+    public void syncWritesRacingCloseFailOrAreWritten() throws Exception {
+        for ( int round = 0; round < 20; round++ ) {
+            raceClose( null, 0 );
+        }
+    }
+
+    @Test( expected = IOException.class )
+    public void asyncWriteAfterCloseFails() throws IOException {
+        final WriteHandle handle = new WriteHandle( new SlowStream(), new Path( "/closed" ), _asyncWriters, CHUNK, new BufferPool( 0 ) );
+        handle.close();
+        handle.write( ByteBuffer.allocate( 10 ) );
+    }
+
+    private static void raceClose( final ExecutorService asyncWriters, final int queueBytes ) throws Exception {
+        final SlowStream stream = new SlowStream();
+        final WriteHandle handle = new WriteHandle( stream, new Path( "/race" ), asyncWriters, queueBytes, new BufferPool( 0 ) );
+        final AtomicLong accepted = new AtomicLong();
+        final AtomicReference<Throwable> unexpected = new AtomicReference<Throwable>();
+        final CountDownLatch started = new CountDownLatch( WRITERS );
+        final Thread[] writers = new Thread[WRITERS];
+        for ( int i = 0; i < WRITERS; i++ ) {
+            writers[i] = new Thread( new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        while ( true ) {
+                            handle.write( ByteBuffer.allocate( CHUNK ) );
+                            accepted.addAndGet( CHUNK );
+                        }
+                    } catch ( final IOException e ) {
+                        // closed
+                    } catch ( final Throwable e ) {
+                        unexpected.set( e );
+                    }
+                }
+            }, "race-writer-" + i );
+            writers[i].setDaemon( true );
+            writers[i].start();
+        }
+        started.await();
+        Thread.sleep( 5 );
+        handle.close();
+        for ( final Thread writer : writers ) {
+            writer.join( TimeUnit.SECONDS.toMillis( 10 ) );
+            assertFalse( writer.getName() + " still blocked after close", writer.isAlive() );
+        }
+        assertNull( unexpected.get() );
+        assertTrue( stream._closed );
+        assertFalse( "written after close", stream._writtenAfterClose );
+        assertEquals( "accepted writes lost", accepted.get(), stream._written.get() );
+    }
+
+    /**
+     * Takes a while per write, so writes pile up in the queue.
+     */
+    private static final class SlowStream extends OutputStream {
+        private final AtomicLong _written = new AtomicLong();
+        private volatile boolean _closed;
+        private volatile boolean _writtenAfterClose;
+
+        @Override
+        public void write( final int b ) throws IOException {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            if ( _closed ) {
+                _writtenAfterClose = true;
+                throw new IOException( "stream closed" );
+            }
+            try {
+                Thread.sleep( 0, 200000 );
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+            _written.addAndGet( len );
+        }
+
+        @Override
+        public void close() {
+            _closed = true;
+        }
+    }
+
+}